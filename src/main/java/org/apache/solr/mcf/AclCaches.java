@@ -0,0 +1,64 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+/**
+* The caches an AclFilter may use.  Any of them may be null.
+*/
+public class AclCaches
+{
+  protected final AclFilterCache filterCache;
+  protected final OpenDocumentCache openDocumentCache;
+  protected final TokenPostingsCache postingsCache;
+  protected final IncrementalAclCache incrementalCache;
+
+  /** Constructor.
+  *@param filterCache is the cache for segment results.
+  *@param openDocumentCache is the cache of open documents.
+  *@param postingsCache is the cache of common tokens' postings.
+  *@param incrementalCache is the cache of per-level results to derive similar token sets from.
+  */
+  public AclCaches(AclFilterCache filterCache, OpenDocumentCache openDocumentCache, TokenPostingsCache postingsCache,
+    IncrementalAclCache incrementalCache)
+  {
+    this.filterCache = filterCache;
+    this.openDocumentCache = openDocumentCache;
+    this.postingsCache = postingsCache;
+    this.incrementalCache = incrementalCache;
+  }
+
+  public AclFilterCache getFilterCache()
+  {
+    return filterCache;
+  }
+
+  public OpenDocumentCache getOpenDocumentCache()
+  {
+    return openDocumentCache;
+  }
+
+  public TokenPostingsCache getPostingsCache()
+  {
+    return postingsCache;
+  }
+
+  public IncrementalAclCache getIncrementalCache()
+  {
+    return incrementalCache;
+  }
+
+}
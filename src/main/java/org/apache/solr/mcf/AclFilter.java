@@ -0,0 +1,595 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.search.SolrIndexReader;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* Filter that evaluates ManifoldCF document security directly against the postings of the
+* access token fields, one index segment at a time.  For each level (share, parent, document)
+* a document is allowed if it is open at that level, or if the allow field contains one of the
+* user's tokens, and it is not denied by any of the user's tokens in the deny field.  A document
+* must be allowed at every level.
+*
+* When parallel construction is enabled, the first request for any segment's DocIdSet starts
+* the evaluation of all segments of the same index in a shared thread pool, split by segment,
+* level, and allow/deny field.  Each segment's result is combined in the calling thread when
+* it is asked for.
+*
+* The filter can use several caches (see AclCaches).  With an AclFilterCache, each segment's
+* result is kept in compressed form and reused by later filters with the same token set.  With
+* an OpenDocumentCache that keeps levels, the open documents of each level are taken from it
+* rather than from the postings.  With a TokenPostingsCache, the postings of common tokens are
+* taken from it, and only those of rare tokens are read from the index.  With an
+* IncrementalAclCache, a segment's per-level sets are derived from those of a similar token
+* set whenever possible.
+*
+* A lazy filter, for queries whose results Solr does not cache, does not build the segments'
+* results at all, unless they are already in the AclFilterCache; they are evaluated as they
+* are iterated over, by a LeapfrogAclIterator.
+*/
+public class AclFilter extends Filter
+{
+  private static final long serialVersionUID = 1L;
+
+  /** Shared pool for parallel ACL construction.  Threads are daemons. */
+  protected static final ExecutorService executor;
+  static
+  {
+    int poolSize = Runtime.getRuntime().availableProcessors();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize,poolSize,60L,TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(),new ThreadFactory()
+      {
+        protected final AtomicInteger threadCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+          Thread t = new Thread(r,"mcf-acl-construction-"+threadCount.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    pool.allowCoreThreadTimeOut(true);
+    executor = pool;
+  }
+
+  protected final String[] allowFields;
+  protected final String[] denyFields;
+  protected final String[] tokens;
+  protected final boolean parallel;
+  protected final boolean lazy;
+  protected final AclFilterCache cache;
+  protected final OpenDocumentCache openDocuments;
+  protected final TokenPostingsCache postingsCache;
+  protected final IncrementalAclCache incrementalCache;
+  protected final AclFilterCache.TokenSetKey tokenSetKey;
+
+  /** Segment results being computed in parallel, keyed by segment reader */
+  protected transient Map<IndexReader,Future<OpenBitSet>> pending = null;
+  /** The top-level reader whose segments are in pending.  Weak, since this filter may outlive it as a cache key. */
+  protected transient WeakReference<IndexReader> pendingRoot = null;
+
+  /** Constructor.
+  *@param allowFields are the allow fields, one per level.
+  *@param denyFields are the corresponding deny fields.
+  *@param userAccessTokens are the user's access tokens.
+  *@param parallel is true if segments should be evaluated in parallel.
+  */
+  public AclFilter(String[] allowFields, String[] denyFields, Collection<String> userAccessTokens, boolean parallel)
+  {
+    this(allowFields,denyFields,userAccessTokens,parallel,null);
+  }
+
+  /** Constructor.
+  *@param allowFields are the allow fields, one per level.
+  *@param denyFields are the corresponding deny fields.
+  *@param userAccessTokens are the user's access tokens.
+  *@param parallel is true if segments should be evaluated in parallel.
+  *@param caches are the caches to use, or null for none.
+  */
+  public AclFilter(String[] allowFields, String[] denyFields, Collection<String> userAccessTokens, boolean parallel,
+    AclCaches caches)
+  {
+    this(allowFields,denyFields,userAccessTokens,parallel,caches,false);
+  }
+
+  /** Constructor.
+  *@param allowFields are the allow fields, one per level.
+  *@param denyFields are the corresponding deny fields.
+  *@param userAccessTokens are the user's access tokens.
+  *@param parallel is true if segments should be evaluated in parallel.
+  *@param caches are the caches to use, or null for none.
+  *@param lazy is true if segments not in the ACL filter cache should be evaluated lazily, as
+  *  they are iterated over (see LeapfrogAclIterator), rather than built in full.
+  */
+  public AclFilter(String[] allowFields, String[] denyFields, Collection<String> userAccessTokens, boolean parallel,
+    AclCaches caches, boolean lazy)
+  {
+    this.lazy = lazy;
+    this.allowFields = allowFields;
+    this.denyFields = denyFields;
+    // Sort and deduplicate, so that equal token sets make equal filters
+    SortedSet<String> sortedTokens = new TreeSet<String>(userAccessTokens);
+    this.tokens = sortedTokens.toArray(new String[sortedTokens.size()]);
+    this.parallel = parallel;
+    this.cache = (caches == null) ? null : caches.getFilterCache();
+    this.openDocuments = (caches == null) ? null : caches.getOpenDocumentCache();
+    this.postingsCache = (caches == null) ? null : caches.getPostingsCache();
+    this.incrementalCache = (caches == null) ? null : caches.getIncrementalCache();
+    this.tokenSetKey = new AclFilterCache.TokenSetKey(allowFields,denyFields,tokens);
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(IndexReader reader)
+    throws IOException
+  {
+    if (cache != null)
+    {
+      DocIdSet cached = cache.get(reader,tokenSetKey);
+      if (cached != null)
+        return cached;
+    }
+    if (lazy)
+      return new LeapfrogDocIdSet(reader);
+    return cacheResult(reader,getBitSet(reader));
+  }
+
+  /** Add a freshly computed segment result to the cache, if there is one.
+  *@return the set to use for the segment.
+  */
+  protected DocIdSet cacheResult(IndexReader reader, OpenBitSet bits)
+  {
+    if (cache == null)
+      return bits;
+    return cache.put(reader,tokenSetKey,bits);
+  }
+
+  /** Compute a segment's result, in parallel with its siblings if configured.
+  */
+  protected OpenBitSet getBitSet(IndexReader reader)
+    throws IOException
+  {
+    if (incrementalCache != null)
+    {
+      OpenBitSet derived = deriveDocIdSet(reader);
+      if (derived != null)
+        return derived;
+    }
+    if (!parallel)
+      return computeDocIdSet(reader);
+    Future<OpenBitSet> future;
+    synchronized (this)
+    {
+      if (pending == null || !pending.containsKey(reader))
+      {
+        if (pendingRoot != null && pendingRoot.get() == getRoot(reader))
+        {
+          // Asked again for a segment we already handed out; don't redo the siblings
+          future = null;
+        }
+        else
+        {
+          startParallel(reader);
+          future = pending.remove(reader);
+        }
+      }
+      else
+        future = pending.remove(reader);
+    }
+    if (future == null)
+      return computeDocIdSet(reader);
+    try
+    {
+      return future.get();
+    }
+    catch (ExecutionException e)
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new IOException("ACL construction failed: "+cause.getMessage(),cause);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted building ACL filter");
+    }
+  }
+
+  /** Find the top-level reader a segment reader belongs to.
+  */
+  protected static IndexReader getRoot(IndexReader reader)
+  {
+    if (!(reader instanceof SolrIndexReader))
+      return reader;
+    SolrIndexReader top = (SolrIndexReader)reader;
+    while (top.getParent() != null)
+      top = top.getParent();
+    return top;
+  }
+
+  /** Start building the DocIdSets of a segment and all its sibling segments.
+  */
+  protected void startParallel(IndexReader reader)
+  {
+    // Anything left over belongs to a different index reader
+    pending = new IdentityHashMap<IndexReader,Future<OpenBitSet>>();
+    IndexReader root = getRoot(reader);
+    pendingRoot = new WeakReference<IndexReader>(root);
+    IndexReader[] segments = new IndexReader[]{reader};
+    if (root instanceof SolrIndexReader)
+      segments = ((SolrIndexReader)root).getLeafReaders();
+    for (final IndexReader segment : segments)
+    {
+      // Segments already cached are looked up when asked for
+      if (segment != reader && cache != null && cache.contains(segment,tokenSetKey))
+        continue;
+      final List<Future<OpenBitSet>> allowParts = new ArrayList<Future<OpenBitSet>>(allowFields.length);
+      final List<Future<OpenBitSet>> denyParts = new ArrayList<Future<OpenBitSet>>(denyFields.length);
+      for (int level = 0; level < allowFields.length; level++)
+      {
+        allowParts.add(executor.submit(new AllowCallable(segment,level)));
+        denyParts.add(executor.submit(new DenyCallable(segment,level)));
+      }
+      // The combination step is cheap, so it runs in whichever thread asks for the result
+      FutureTask<OpenBitSet> combination = new FutureTask<OpenBitSet>(new Callable<OpenBitSet>()
+        {
+          @Override
+          public OpenBitSet call()
+            throws Exception
+          {
+            OpenBitSet[] allowBits = new OpenBitSet[allowParts.size()];
+            OpenBitSet[] denyBits = new OpenBitSet[denyParts.size()];
+            for (int level = 0; level < allowBits.length; level++)
+            {
+              allowBits[level] = allowParts.get(level).get();
+              denyBits[level] = denyParts.get(level).get();
+            }
+            return combine(segment,allowBits,denyBits);
+          }
+        });
+      pending.put(segment,new RunOnGetFuture<OpenBitSet>(combination));
+    }
+    if (!pending.containsKey(reader))
+    {
+      // Not one of the leaves we found; compute it on its own
+      pending.put(reader,new RunOnGetFuture<OpenBitSet>(new FutureTask<OpenBitSet>(new SegmentCallable(reader))));
+    }
+  }
+
+  /** Compute the DocIdSet for one segment, in the calling thread.
+  */
+  protected OpenBitSet computeDocIdSet(IndexReader reader)
+    throws IOException
+  {
+    OpenBitSet[] allowBits = new OpenBitSet[allowFields.length];
+    OpenBitSet[] denyBits = new OpenBitSet[denyFields.length];
+    for (int level = 0; level < allowFields.length; level++)
+    {
+      allowBits[level] = getAllowBits(reader,level);
+      denyBits[level] = getDenyBits(reader,level);
+    }
+    return combine(reader,allowBits,denyBits);
+  }
+
+  /** Derive the DocIdSet for one segment from the cached per-level sets of a similar token set.
+  *@return the result, or null if there is no suitable token set.
+  */
+  protected OpenBitSet deriveDocIdSet(IndexReader reader)
+    throws IOException
+  {
+    OpenBitSet[] allowBits = new OpenBitSet[allowFields.length];
+    OpenBitSet[] denyBits = new OpenBitSet[denyFields.length];
+    if (!incrementalCache.derive(reader,tokenSetKey,allowBits,denyBits))
+      return null;
+    // The cached sets may include documents deleted since
+    for (OpenBitSet levelBits : allowBits)
+      CompressedDocIdSets.clearDeletions(levelBits,reader);
+    return combine(reader,allowBits,denyBits);
+  }
+
+  /** Combine the per-level allow and deny sets of a segment into its result.  The sets are
+  * modified.
+  */
+  protected OpenBitSet combine(IndexReader reader, OpenBitSet[] allowBits, OpenBitSet[] denyBits)
+  {
+    if (incrementalCache != null)
+      incrementalCache.putLevels(reader,tokenSetKey,allowBits,denyBits);
+    OpenBitSet result = null;
+    for (int level = 0; level < allowBits.length; level++)
+    {
+      OpenBitSet levelBits = allowBits[level];
+      levelBits.andNot(denyBits[level]);
+      if (result == null)
+        result = levelBits;
+      else
+        result.and(levelBits);
+    }
+    return result;
+  }
+
+  /** Compute the documents allowed at a level, not considering denials: the documents that are
+  * open at that level, plus those with any of the tokens in the allow field.
+  */
+  protected OpenBitSet getAllowBits(IndexReader reader, int level)
+    throws IOException
+  {
+    OpenBitSet bits = (openDocuments == null) ? null : openDocuments.getLevelBits(reader,level);
+    TermDocs termDocs = reader.termDocs();
+    try
+    {
+      if (bits == null)
+      {
+        // Open documents have the special token in both the allow and the deny field
+        bits = new OpenBitSet(reader.maxDoc());
+        addPostings(termDocs,new Term(allowFields[level],ManifoldCFSearchComponent.NOSECURITY_TOKEN),bits);
+        OpenBitSet denyOpen = new OpenBitSet(reader.maxDoc());
+        addPostings(termDocs,new Term(denyFields[level],ManifoldCFSearchComponent.NOSECURITY_TOKEN),denyOpen);
+        bits.and(denyOpen);
+      }
+      boolean usedCache = false;
+      SortedTermIntersection intersection = new SortedTermIntersection(reader,allowFields[level],tokens);
+      try
+      {
+        while (intersection.next())
+        {
+          usedCache |= addTokenPostings(reader,termDocs,intersection,bits);
+        }
+      }
+      finally
+      {
+        intersection.close();
+      }
+      // Cached postings may include documents deleted since
+      if (usedCache)
+        CompressedDocIdSets.clearDeletions(bits,reader);
+    }
+    finally
+    {
+      termDocs.close();
+    }
+    return bits;
+  }
+
+  /** Compute the documents denied at a level: those with any of the tokens in the deny field.
+  */
+  protected OpenBitSet getDenyBits(IndexReader reader, int level)
+    throws IOException
+  {
+    OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+    TermDocs termDocs = reader.termDocs();
+    SortedTermIntersection intersection = new SortedTermIntersection(reader,denyFields[level],tokens);
+    try
+    {
+      while (intersection.next())
+      {
+        addTokenPostings(reader,termDocs,intersection,bits);
+      }
+    }
+    finally
+    {
+      intersection.close();
+      termDocs.close();
+    }
+    return bits;
+  }
+
+  /** Set the bits for all documents containing the current term of a token intersection, from
+  * the postings cache if possible.  Otherwise the postings are read from the intersection's
+  * TermEnum, with no further terms dictionary lookup.
+  *@return true if the cache was used, in which case deleted documents may have been set.
+  */
+  protected boolean addTokenPostings(IndexReader reader, TermDocs termDocs, SortedTermIntersection intersection, OpenBitSet bits)
+    throws IOException
+  {
+    if (postingsCache != null)
+    {
+      DocIdSet cached = postingsCache.getPostings(reader,intersection.getTerm());
+      if (cached != null)
+      {
+        CompressedDocIdSets.or(bits,cached);
+        return true;
+      }
+    }
+    termDocs.seek(intersection.getTermEnum());
+    readPostings(termDocs,bits);
+    return false;
+  }
+
+  /** Set the bits for all documents containing a term.  Deleted documents are skipped.
+  */
+  protected static void addPostings(TermDocs termDocs, Term term, OpenBitSet bits)
+    throws IOException
+  {
+    termDocs.seek(term);
+    readPostings(termDocs,bits);
+  }
+
+  /** Set the bits for all documents of the term a TermDocs is positioned on.
+  */
+  protected static void readPostings(TermDocs termDocs, OpenBitSet bits)
+    throws IOException
+  {
+    int[] docs = new int[64];
+    int[] freqs = new int[64];
+    while (true)
+    {
+      int count = termDocs.read(docs,freqs);
+      if (count == 0)
+        break;
+      for (int i = 0; i < count; i++)
+      {
+        bits.fastSet(docs[i]);
+      }
+    }
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (!(o instanceof AclFilter))
+      return false;
+    return tokenSetKey.equals(((AclFilter)o).tokenSetKey);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return tokenSetKey.hashCode();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "AclFilter(" + tokens.length + " tokens)";
+  }
+
+  /** A segment's result, evaluated as it is iterated over.
+  */
+  protected class LeapfrogDocIdSet extends DocIdSet
+  {
+    protected final IndexReader reader;
+
+    public LeapfrogDocIdSet(IndexReader reader)
+    {
+      this.reader = reader;
+    }
+
+    @Override
+    public DocIdSetIterator iterator()
+      throws IOException
+    {
+      return LeapfrogAclIterator.create(reader,allowFields,denyFields,tokens,openDocuments);
+    }
+  }
+
+  protected class AllowCallable implements Callable<OpenBitSet>
+  {
+    protected final IndexReader reader;
+    protected final int level;
+
+    public AllowCallable(IndexReader reader, int level)
+    {
+      this.reader = reader;
+      this.level = level;
+    }
+
+    @Override
+    public OpenBitSet call()
+      throws Exception
+    {
+      return getAllowBits(reader,level);
+    }
+  }
+
+  protected class DenyCallable implements Callable<OpenBitSet>
+  {
+    protected final IndexReader reader;
+    protected final int level;
+
+    public DenyCallable(IndexReader reader, int level)
+    {
+      this.reader = reader;
+      this.level = level;
+    }
+
+    @Override
+    public OpenBitSet call()
+      throws Exception
+    {
+      return getDenyBits(reader,level);
+    }
+  }
+
+  protected class SegmentCallable implements Callable<OpenBitSet>
+  {
+    protected final IndexReader reader;
+
+    public SegmentCallable(IndexReader reader)
+    {
+      this.reader = reader;
+    }
+
+    @Override
+    public OpenBitSet call()
+      throws Exception
+    {
+      return computeDocIdSet(reader);
+    }
+  }
+
+  /** A future whose task is run by the first thread that asks for its result.
+  */
+  protected static class RunOnGetFuture<V> implements Future<V>
+  {
+    protected final FutureTask<V> task;
+
+    public RunOnGetFuture(FutureTask<V> task)
+    {
+      this.task = task;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+      return task.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+      return task.isCancelled();
+    }
+
+    @Override
+    public boolean isDone()
+    {
+      return task.isDone();
+    }
+
+    @Override
+    public V get()
+      throws InterruptedException, ExecutionException
+    {
+      task.run();
+      return task.get();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException
+    {
+      task.run();
+      return task.get(timeout,unit);
+    }
+  }
+
+}
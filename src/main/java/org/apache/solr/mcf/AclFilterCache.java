@@ -0,0 +1,242 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.SolrIndexReader;
+import org.slf4j.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* A memory-bounded cache of ACL filter results, per index segment and token set.  Results are
+* stored in compressed form (see CompressedDocIdSets).  The cache can be saved to a snapshot
+* file, from which a later instance loads results for segments that have not changed.
+*/
+public class AclFilterCache extends SegmentDocIdSetCache
+{
+  /** A logger we can use */
+  private static final Logger LOG = LoggerFactory.getLogger(AclFilterCache.class);
+
+  /** The identity of each segment seen, by segment core */
+  protected final Map<Object,String> segmentIDs = new WeakHashMap<Object,String>();
+  protected File snapshotFile = null;
+  protected volatile AclFilterCacheSnapshot snapshot = null;
+  protected long snapshotLoads = 0L;
+
+  /** Constructor.
+  *@param maxBytes is the memory budget for cached results, in bytes.
+  */
+  public AclFilterCache(long maxBytes)
+  {
+    super("aclCache",maxBytes);
+  }
+
+  /** Use a snapshot file.  Results in an existing snapshot are loaded as segments are
+  * searched, and writeSnapshot() replaces it.
+  */
+  public synchronized void setSnapshotFile(File snapshotFile)
+  {
+    this.snapshotFile = snapshotFile;
+    this.snapshot = new AclFilterCacheSnapshot(snapshotFile);
+  }
+
+  /** Compress a segment's result and add it to the cache.
+  *@return the compressed set.
+  */
+  public DocIdSet put(IndexReader reader, TokenSetKey tokenSet, OpenBitSet bits)
+  {
+    DocIdSet set = CompressedDocIdSets.compress(bits,reader.maxDoc());
+    put(reader,tokenSet,set,CompressedDocIdSets.ramBytesUsed(bits));
+    return set;
+  }
+
+  @Override
+  public void put(IndexReader reader, Object key, DocIdSet set, long uncompressedSize)
+  {
+    // Remember the segment's identity, for the snapshot
+    if (snapshotFile != null)
+      getSegmentID(reader);
+    super.put(reader,key,set,uncompressedSize);
+  }
+
+  /** Look up the set for a segment, falling back to the snapshot file if there is one.
+  */
+  @Override
+  public DocIdSet getUnfiltered(IndexReader reader, Object key)
+  {
+    DocIdSet set = super.getUnfiltered(reader,key);
+    if (set != null || snapshot == null || !(key instanceof TokenSetKey))
+      return set;
+    String segmentID = getSegmentID(reader);
+    if (segmentID == null)
+      return null;
+    try
+    {
+      set = snapshot.get(segmentID,((TokenSetKey)key).getDigest());
+    }
+    catch (IOException e)
+    {
+      LOG.warn("Could not read ACL filter cache snapshot "+snapshotFile+": "+e.getMessage(),e);
+      snapshot = null;
+      return null;
+    }
+    if (set == null)
+      return null;
+    synchronized (this)
+    {
+      snapshotLoads++;
+    }
+    put(reader,key,set,(long)(reader.maxDoc() + 63) / 64L * 8L + CompressedDocIdSets.BITSET_OVERHEAD);
+    return set;
+  }
+
+  /** Save the cached results to the snapshot file.
+  *@return the number of results saved.
+  */
+  public int writeSnapshot()
+    throws IOException
+  {
+    if (snapshotFile == null)
+      return 0;
+    Map<String,DocIdSet> sets = new LinkedHashMap<String,DocIdSet>();
+    synchronized (this)
+    {
+      for (Map.Entry<Key,DocIdSet> entry : cache.entrySet())
+      {
+        Object coreKey = entry.getKey().core.get();
+        String segmentID = (coreKey == null) ? null : segmentIDs.get(coreKey);
+        if (segmentID != null && entry.getKey().key instanceof TokenSetKey)
+          sets.put(segmentID+" "+((TokenSetKey)entry.getKey().key).getDigest(),entry.getValue());
+      }
+    }
+    AclFilterCacheSnapshot.write(snapshotFile,sets);
+    return sets.size();
+  }
+
+  @Override
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    super.addStatistics(stats);
+    if (snapshotFile != null)
+      stats.add(statisticsPrefix+"SnapshotLoads",snapshotLoads);
+  }
+
+  /** Identify a segment by its name, size, and the length and modification time of its
+  * files, so that a snapshot is not applied to a different segment of the same name (for
+  * instance in an index that was rebuilt).  Deletions do not change the identity.
+  *@return the identity, or null if the reader is not a segment reader.
+  */
+  @SuppressWarnings("deprecation")
+  protected String getSegmentID(IndexReader reader)
+  {
+    Object coreKey = reader.getCoreCacheKey();
+    synchronized (segmentIDs)
+    {
+      String segmentID = segmentIDs.get(coreKey);
+      if (segmentID != null)
+        return segmentID;
+      // Solr wraps each segment's reader
+      IndexReader segmentReader = reader;
+      while (segmentReader instanceof SolrIndexReader)
+        segmentReader = ((SolrIndexReader)segmentReader).getWrappedReader();
+      if (!(segmentReader instanceof SegmentReader))
+        return null;
+      String name = ((SegmentReader)segmentReader).getSegmentName();
+      Directory directory = reader.directory();
+      long length = 0L;
+      long modified = 0L;
+      try
+      {
+        for (String file : directory.listAll())
+        {
+          if (file.startsWith(name+"."))
+          {
+            length += directory.fileLength(file);
+            modified = Math.max(modified,directory.fileModified(file));
+          }
+        }
+      }
+      catch (IOException e)
+      {
+        return null;
+      }
+      segmentID = name+":"+reader.maxDoc()+":"+length+":"+modified;
+      segmentIDs.put(coreKey,segmentID);
+      return segmentID;
+    }
+  }
+
+  /** Identifies a token set, together with the fields it applies to.
+  */
+  public static class TokenSetKey
+  {
+    protected final String[] allowFields;
+    protected final String[] denyFields;
+    protected final String[] tokens;
+    protected final int hashCode;
+    protected String digest = null;
+
+    public TokenSetKey(String[] allowFields, String[] denyFields, String[] tokens)
+    {
+      this.allowFields = allowFields;
+      this.denyFields = denyFields;
+      this.tokens = tokens;
+      this.hashCode = Arrays.hashCode(allowFields) + 31 * Arrays.hashCode(denyFields) + 961 * Arrays.hashCode(tokens);
+    }
+
+    /** Get a digest of the fields and tokens, for use outside of this process.
+    */
+    public String getDigest()
+    {
+      if (digest != null)
+        return digest;
+      List<String> values = new ArrayList<String>(allowFields.length + denyFields.length + tokens.length + 2);
+      values.add(Integer.toString(allowFields.length));
+      values.addAll(Arrays.asList(allowFields));
+      values.add(Integer.toString(denyFields.length));
+      values.addAll(Arrays.asList(denyFields));
+      values.addAll(Arrays.asList(tokens));
+      digest = TokenSetRegistry.computeID(values);
+      return digest;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof TokenSetKey))
+        return false;
+      TokenSetKey other = (TokenSetKey)o;
+      return hashCode == other.hashCode &&
+        Arrays.equals(tokens,other.tokens) &&
+        Arrays.equals(allowFields,other.allowFields) &&
+        Arrays.equals(denyFields,other.denyFields);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hashCode;
+    }
+  }
+
+}
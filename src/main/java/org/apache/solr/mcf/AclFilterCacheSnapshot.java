@@ -0,0 +1,590 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+* A file of cached ACL filter results, written when a core closes so that the next start
+* begins with a warm AclFilterCache.  Results are keyed by segment identity and token set
+* digest.  The sets are written one after another, followed by an index of their locations;
+* when the file is read back, the sets are memory mapped and read in place, so a set that
+* is never searched is never paged in, and none of them is copied onto the heap.
+*/
+public class AclFilterCacheSnapshot
+{
+  protected static final int MAGIC = 0x4d434641;
+  protected static final int VERSION = 2;
+
+  protected static final byte TYPE_EMPTY = 0;
+  protected static final byte TYPE_SORTED = 1;
+  protected static final byte TYPE_INVERTED = 2;
+  protected static final byte TYPE_RUNS = 3;
+  protected static final byte TYPE_BITS = 4;
+
+  /** The file is mapped in windows of this size, since one mapping cannot exceed 2GB.  No set
+  * crosses a window boundary. */
+  protected static final long WINDOW_SIZE = 1L << 30;
+
+  protected final File file;
+  /** Offset and length of each set, by segment identity and token set digest */
+  protected Map<String,long[]> index = null;
+  protected MappedByteBuffer[] windows = null;
+
+  /** Constructor.  Nothing is read until the first lookup.
+  */
+  public AclFilterCacheSnapshot(File file)
+  {
+    this.file = file;
+  }
+
+  /** Look up a set.  The set is read from the mapped file as it is used.
+  *@param segmentID identifies the segment (see AclFilterCache.getSegmentID()).
+  *@param digest identifies the token set (see AclFilterCache.TokenSetKey.getDigest()).
+  *@return the set, or null if the snapshot does not have it.
+  */
+  public synchronized DocIdSet get(String segmentID, String digest)
+    throws IOException
+  {
+    if (index == null)
+      open();
+    long[] location = index.get(segmentID+" "+digest);
+    if (location == null)
+      return null;
+    int position = (int)(location[0] % WINDOW_SIZE);
+    return readSet(slice(windows[(int)(location[0] / WINDOW_SIZE)],position,(int)location[1]));
+  }
+
+  /** Read the index, and map the sets.  A missing or unreadable file is treated as empty.
+  */
+  protected void open()
+    throws IOException
+  {
+    index = new HashMap<String,long[]>();
+    if (!file.exists())
+      return;
+    RandomAccessFile raf = new RandomAccessFile(file,"r");
+    try
+    {
+      long length = raf.length();
+      if (length < 16L || raf.readInt() != MAGIC || raf.readInt() != VERSION)
+        return;
+      // The index location is the last thing written
+      raf.seek(length - 8L);
+      long indexStart = raf.readLong();
+      if (indexStart < 8L || indexStart > length - 8L)
+        return;
+      raf.seek(indexStart);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+      int count = in.readInt();
+      Map<String,long[]> entries = new HashMap<String,long[]>(count * 2);
+      for (int i = 0; i < count; i++)
+      {
+        String key = in.readUTF();
+        long offset = in.readLong();
+        entries.put(key,new long[]{offset,in.readInt()});
+      }
+      // The mappings stay valid after the file is closed
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer[] mapped = new MappedByteBuffer[(int)((indexStart + WINDOW_SIZE - 1L) / WINDOW_SIZE)];
+      for (int i = 0; i < mapped.length; i++)
+      {
+        long start = i * WINDOW_SIZE;
+        mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY,start,Math.min(WINDOW_SIZE,indexStart - start));
+      }
+      windows = mapped;
+      index = entries;
+    }
+    catch (EOFException e)
+    {
+      // Truncated; ignore it
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  /** Write a snapshot, replacing the file only once it is complete.  The sets are streamed to
+  * the file as they are encoded.
+  *@param file is the file to write.
+  *@param sets are the sets, keyed by segment identity and token set digest, separated by a space.
+  */
+  public static void write(File file, Map<String,DocIdSet> sets)
+    throws IOException
+  {
+    File temp = new File(file.getPath()+".tmp");
+    FileOutputStream stream = new FileOutputStream(temp);
+    try
+    {
+      FileChannel channel = stream.getChannel();
+      CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      DataOutputStream out = new DataOutputStream(counter);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      Map<String,long[]> locations = new LinkedHashMap<String,long[]>();
+      for (Map.Entry<String,DocIdSet> entry : sets.entrySet())
+      {
+        DocIdSet set = entry.getValue();
+        if (!isSupported(set))
+          continue;
+        long length = getEncodedLength(set);
+        if (length > WINDOW_SIZE)
+          continue;
+        long offset = counter.getCount();
+        if (offset / WINDOW_SIZE != (offset + length - 1L) / WINDOW_SIZE)
+        {
+          // Start the set in the next window instead
+          long windowStart = (offset / WINDOW_SIZE + 1L) * WINDOW_SIZE;
+          writePadding(out,windowStart - offset);
+          offset = windowStart;
+        }
+        writeSet(out,set);
+        locations.put(entry.getKey(),new long[]{offset,length});
+      }
+      long indexStart = counter.getCount();
+      out.writeInt(locations.size());
+      for (Map.Entry<String,long[]> entry : locations.entrySet())
+      {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue()[0]);
+        out.writeInt((int)entry.getValue()[1]);
+      }
+      out.writeLong(indexStart);
+      out.flush();
+      channel.force(true);
+    }
+    finally
+    {
+      stream.close();
+    }
+    // The old file may still be mapped, which prevents renaming over it on some platforms
+    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+      throw new IOException("Could not replace "+file);
+  }
+
+  /** Check whether a set has one of the representations produced by CompressedDocIdSets, or
+  * was itself read from a snapshot.
+  */
+  protected static boolean isSupported(DocIdSet set)
+  {
+    return set == DocIdSet.EMPTY_DOCIDSET || set instanceof SortedIntDocIdSet ||
+      set instanceof RunLengthDocIdSet || set instanceof OpenBitSet || set instanceof MappedDocIdSet;
+  }
+
+  /** Compute the number of bytes writeSet() writes for a set.
+  */
+  protected static long getEncodedLength(DocIdSet set)
+  {
+    if (set instanceof SortedIntDocIdSet)
+      return 1L + 4L + 4L + 4L * ((SortedIntDocIdSet)set).getDocs().length;
+    if (set instanceof RunLengthDocIdSet)
+      return 1L + 2L * (4L + 4L * ((RunLengthDocIdSet)set).getStarts().length);
+    if (set instanceof OpenBitSet)
+      return 1L + 4L + 8L * ((OpenBitSet)set).getNumWords();
+    if (set instanceof MappedDocIdSet)
+      return ((MappedDocIdSet)set).encoding.limit();
+    return 1L;
+  }
+
+  protected static void writeSet(DataOutputStream out, DocIdSet set)
+    throws IOException
+  {
+    if (set instanceof SortedIntDocIdSet)
+    {
+      SortedIntDocIdSet sorted = (SortedIntDocIdSet)set;
+      out.writeByte(sorted.isInverted()?TYPE_INVERTED:TYPE_SORTED);
+      out.writeInt(sorted.getMaxDoc());
+      writeInts(out,sorted.getDocs());
+    }
+    else if (set instanceof RunLengthDocIdSet)
+    {
+      RunLengthDocIdSet runs = (RunLengthDocIdSet)set;
+      out.writeByte(TYPE_RUNS);
+      writeInts(out,runs.getStarts());
+      writeInts(out,runs.getEnds());
+    }
+    else if (set instanceof OpenBitSet)
+    {
+      OpenBitSet bits = (OpenBitSet)set;
+      out.writeByte(TYPE_BITS);
+      out.writeInt(bits.getNumWords());
+      long[] words = bits.getBits();
+      for (int i = 0; i < bits.getNumWords(); i++)
+        out.writeLong(words[i]);
+    }
+    else if (set instanceof MappedDocIdSet)
+    {
+      // Already encoded; copy it as it is
+      ByteBuffer encoding = ((MappedDocIdSet)set).encoding.duplicate();
+      encoding.clear();
+      byte[] chunk = new byte[8192];
+      while (encoding.hasRemaining())
+      {
+        int amount = Math.min(chunk.length,encoding.remaining());
+        encoding.get(chunk,0,amount);
+        out.write(chunk,0,amount);
+      }
+    }
+    else
+      out.writeByte(TYPE_EMPTY);
+  }
+
+  protected static void writeInts(DataOutputStream out, int[] values)
+    throws IOException
+  {
+    out.writeInt(values.length);
+    for (int value : values)
+      out.writeInt(value);
+  }
+
+  protected static void writePadding(DataOutputStream out, long amount)
+    throws IOException
+  {
+    byte[] zeros = new byte[8192];
+    while (amount > 0L)
+    {
+      int chunk = (int)Math.min(zeros.length,amount);
+      out.write(zeros,0,chunk);
+      amount -= chunk;
+    }
+  }
+
+  /** Wrap an encoded set, without copying it.
+  *@param encoding holds exactly the set's encoding, starting at position 0.
+  */
+  protected static DocIdSet readSet(ByteBuffer encoding)
+  {
+    byte type = encoding.get(0);
+    switch (type)
+    {
+    case TYPE_SORTED:
+    case TYPE_INVERTED:
+      int maxDoc = encoding.getInt(1);
+      int count = encoding.getInt(5);
+      return new MappedSortedIntDocIdSet(encoding,slice(encoding,9,4 * count).asIntBuffer(),maxDoc,type == TYPE_INVERTED);
+    case TYPE_RUNS:
+      int runs = encoding.getInt(1);
+      IntBuffer starts = slice(encoding,5,4 * runs).asIntBuffer();
+      IntBuffer ends = slice(encoding,9 + 4 * runs,4 * runs).asIntBuffer();
+      return new MappedRunLengthDocIdSet(encoding,starts,ends);
+    case TYPE_BITS:
+      int numWords = encoding.getInt(1);
+      return new MappedBitSet(encoding,slice(encoding,5,8 * numWords).asLongBuffer());
+    default:
+      return DocIdSet.EMPTY_DOCIDSET;
+    }
+  }
+
+  /** Get a part of a buffer, as a buffer of its own.
+  */
+  protected static ByteBuffer slice(ByteBuffer buffer, int position, int length)
+  {
+    ByteBuffer rval = buffer.duplicate();
+    rval.limit(position + length);
+    rval.position(position);
+    return rval.slice();
+  }
+
+  /** Find the first index at or after start whose value is at least target.
+  */
+  protected static int seek(IntBuffer values, int start, int target)
+  {
+    int low = start;
+    int high = values.limit();
+    while (low < high)
+    {
+      int middle = (low + high) >>> 1;
+      if (values.get(middle) < target)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  /** A set read in place from a mapped snapshot.
+  */
+  protected abstract static class MappedDocIdSet extends DocIdSet
+  {
+    /** The set's encoding, as written by writeSet() */
+    protected final ByteBuffer encoding;
+
+    public MappedDocIdSet(ByteBuffer encoding)
+    {
+      this.encoding = encoding;
+    }
+
+    @Override
+    public boolean isCacheable()
+    {
+      return true;
+    }
+
+    /** Estimate the memory used, in bytes.  The encoding is mapped rather than on the heap,
+    * but its pages are resident while the set is in use, so it is charged in full.
+    */
+    public long ramBytesUsed()
+    {
+      return 32L + encoding.limit();
+    }
+  }
+
+  /** A SortedIntDocIdSet read in place.
+  */
+  protected static class MappedSortedIntDocIdSet extends MappedDocIdSet
+  {
+    protected final IntBuffer docs;
+    protected final int maxDoc;
+    protected final boolean inverted;
+
+    public MappedSortedIntDocIdSet(ByteBuffer encoding, IntBuffer docs, int maxDoc, boolean inverted)
+    {
+      super(encoding);
+      this.docs = docs;
+      this.maxDoc = maxDoc;
+      this.inverted = inverted;
+    }
+
+    @Override
+    public DocIdSetIterator iterator()
+    {
+      // Each iterator has its own view, so that iterators do not share a position
+      final IntBuffer values = docs.duplicate();
+      if (inverted)
+      {
+        return new DocIdSetIterator()
+          {
+            /** Index of the next excluded document at or after doc */
+            protected int index = 0;
+            protected int doc = -1;
+
+            @Override
+            public int docID()
+            {
+              return doc;
+            }
+
+            @Override
+            public int nextDoc()
+            {
+              return advance(doc + 1);
+            }
+
+            @Override
+            public int advance(int target)
+            {
+              if (doc == NO_MORE_DOCS)
+                return doc;
+              int candidate = target;
+              index = seek(values,index,candidate);
+              // Skip over any run of excluded documents
+              while (index < values.limit() && values.get(index) == candidate)
+              {
+                candidate++;
+                index++;
+              }
+              doc = (candidate < maxDoc) ? candidate : NO_MORE_DOCS;
+              return doc;
+            }
+          };
+      }
+      return new DocIdSetIterator()
+        {
+          protected int index = -1;
+          protected int doc = -1;
+
+          @Override
+          public int docID()
+          {
+            return doc;
+          }
+
+          @Override
+          public int nextDoc()
+          {
+            index++;
+            doc = (index < values.limit()) ? values.get(index) : NO_MORE_DOCS;
+            return doc;
+          }
+
+          @Override
+          public int advance(int target)
+          {
+            index = seek(values,Math.max(index,0),target);
+            doc = (index < values.limit()) ? values.get(index) : NO_MORE_DOCS;
+            return doc;
+          }
+        };
+    }
+  }
+
+  /** A RunLengthDocIdSet read in place.
+  */
+  protected static class MappedRunLengthDocIdSet extends MappedDocIdSet
+  {
+    protected final IntBuffer starts;
+    protected final IntBuffer ends;
+
+    public MappedRunLengthDocIdSet(ByteBuffer encoding, IntBuffer starts, IntBuffer ends)
+    {
+      super(encoding);
+      this.starts = starts;
+      this.ends = ends;
+    }
+
+    @Override
+    public DocIdSetIterator iterator()
+    {
+      return new DocIdSetIterator()
+        {
+          protected int run = 0;
+          protected int doc = -1;
+
+          @Override
+          public int docID()
+          {
+            return doc;
+          }
+
+          @Override
+          public int nextDoc()
+          {
+            return advance(doc + 1);
+          }
+
+          @Override
+          public int advance(int target)
+          {
+            while (run < starts.limit() && ends.get(run) <= target)
+              run++;
+            if (run == starts.limit())
+              doc = NO_MORE_DOCS;
+            else
+              doc = Math.max(target,starts.get(run));
+            return doc;
+          }
+        };
+    }
+  }
+
+  /** An OpenBitSet read in place.
+  */
+  protected static class MappedBitSet extends MappedDocIdSet
+  {
+    protected final LongBuffer words;
+
+    public MappedBitSet(ByteBuffer encoding, LongBuffer words)
+    {
+      super(encoding);
+      this.words = words;
+    }
+
+    @Override
+    public DocIdSetIterator iterator()
+    {
+      return new DocIdSetIterator()
+        {
+          protected int doc = -1;
+
+          @Override
+          public int docID()
+          {
+            return doc;
+          }
+
+          @Override
+          public int nextDoc()
+          {
+            if (doc == NO_MORE_DOCS)
+              return doc;
+            return advance(doc + 1);
+          }
+
+          @Override
+          public int advance(int target)
+          {
+            int word = target >>> 6;
+            if (word >= words.limit())
+            {
+              doc = NO_MORE_DOCS;
+              return doc;
+            }
+            // The bits of the first word below the target do not count
+            long bits = words.get(word) >>> (target & 63);
+            if (bits != 0L)
+            {
+              doc = target + Long.numberOfTrailingZeros(bits);
+              return doc;
+            }
+            while (++word < words.limit())
+            {
+              bits = words.get(word);
+              if (bits != 0L)
+              {
+                doc = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return doc;
+              }
+            }
+            doc = NO_MORE_DOCS;
+            return doc;
+          }
+        };
+    }
+  }
+
+  /** Counts the bytes written, as a long, since a snapshot may exceed 2GB.
+  */
+  protected static class CountingOutputStream extends FilterOutputStream
+  {
+    protected long count = 0L;
+
+    public CountingOutputStream(OutputStream out)
+    {
+      super(out);
+    }
+
+    public long getCount()
+    {
+      return count;
+    }
+
+    @Override
+    public void write(int b)
+      throws IOException
+    {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+      throws IOException
+    {
+      out.write(b,off,len);
+      count += len;
+    }
+  }
+
+}
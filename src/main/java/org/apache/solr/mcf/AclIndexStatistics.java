@@ -0,0 +1,121 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Statistics about the contents of the ACL fields, per index reader (and so per searcher):
+* whether a field contains any real tokens, and whether every document is open in it.  They
+* are gathered on first use for each reader, and used to leave out parts of the ACL query that
+* cannot change its result.
+*/
+public class AclIndexStatistics
+{
+  protected final Map<IndexReader,Map<String,FieldStatistics>> readers = new WeakHashMap<IndexReader,Map<String,FieldStatistics>>();
+
+  protected long levelsPruned = 0L;
+  protected long denyClausesPruned = 0L;
+
+  /** Get the statistics of a field in a reader.
+  */
+  public FieldStatistics getFieldStatistics(IndexReader reader, String field)
+    throws IOException
+  {
+    synchronized (this)
+    {
+      Map<String,FieldStatistics> fields = readers.get(reader);
+      if (fields != null)
+      {
+        FieldStatistics result = fields.get(field);
+        if (result != null)
+          return result;
+      }
+    }
+    FieldStatistics result = new FieldStatistics(reader,field);
+    synchronized (this)
+    {
+      Map<String,FieldStatistics> fields = readers.get(reader);
+      if (fields == null)
+      {
+        fields = new HashMap<String,FieldStatistics>();
+        readers.put(reader,fields);
+      }
+      fields.put(field,result);
+    }
+    return result;
+  }
+
+  /** Record that parts of a query were left out.
+  */
+  public synchronized void recordPruning(int levels, int denyClauses)
+  {
+    levelsPruned += levels;
+    denyClausesPruned += denyClauses;
+  }
+
+  /** Add the statistics about pruning to a statistics list.
+  */
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    stats.add("aclLevelsPruned",levelsPruned);
+    stats.add("aclDenyClausesPruned",denyClausesPruned);
+  }
+
+  /** What one ACL field of an index contains.
+  */
+  public static class FieldStatistics
+  {
+    /** True if any document has a token other than the no-security token */
+    public final boolean hasTokens;
+    /** True if every document has the no-security token */
+    public final boolean allOpen;
+
+    public FieldStatistics(IndexReader reader, String field)
+      throws IOException
+    {
+      boolean foundToken = false;
+      TermEnum termEnum = reader.terms(new Term(field,""));
+      try
+      {
+        do
+        {
+          Term term = termEnum.term();
+          if (term == null || !term.field().equals(field))
+            break;
+          if (!term.text().equals(ManifoldCFSearchComponent.NOSECURITY_TOKEN))
+          {
+            foundToken = true;
+            break;
+          }
+        }
+        while (termEnum.next());
+      }
+      finally
+      {
+        termEnum.close();
+      }
+      hasTokens = foundToken;
+      allOpen = !foundToken && reader.docFreq(new Term(field,ManifoldCFSearchComponent.NOSECURITY_TOKEN)) == reader.maxDoc();
+    }
+  }
+
+}
@@ -0,0 +1,148 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQuery;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.WrappedQuery;
+
+import java.io.*;
+
+/**
+* ACL filter for a user whose tokens are still being looked up.  As a post filter, it is
+* applied to the documents the main query collects, so the lookup overlaps with parsing the
+* request and setting up the search; it waits for the tokens when the first segment is
+* collected.  If Solr runs it as an ordinary filter instead (with a cost below 100), it waits
+* for them when it is rewritten.
+*
+* The query is equal only to itself, since its tokens are not known when Solr compares
+* filters; requests filtered this way are kept out of the query result cache (see
+* excludeFromQueryResultCache()).
+*/
+public class AclPostFilter extends ExtendedQueryBase implements PostFilter
+{
+  private static final long serialVersionUID = 1L;
+
+  protected final ManifoldCFSecurityService service;
+  protected final ManifoldCFSecurityService.TokenLookup lookup;
+
+  public AclPostFilter(ManifoldCFSecurityService service, ManifoldCFSecurityService.TokenLookup lookup)
+  {
+    this.service = service;
+    this.lookup = lookup;
+    setCache(false);
+    setCost(100);
+  }
+
+  /** Keep a request's results out of the query result cache.  Solr neither looks up nor adds
+  * the results of a main query that is not to be cached, so the main query is wrapped in one.
+  * Nothing is done if the main query has not been parsed yet.
+  */
+  public static void excludeFromQueryResultCache(ResponseBuilder rb)
+  {
+    Query query = rb.getQuery();
+    if (query == null)
+      return;
+    if (!(query instanceof ExtendedQuery) || ((ExtendedQuery)query).getCache())
+    {
+      WrappedQuery wrapped = new WrappedQuery(query);
+      wrapped.setCache(false);
+      rb.setQuery(wrapped);
+    }
+  }
+
+  /** Wait for the tokens, and build the ordinary ACL query from them.  Its results are not
+  * cached, since they are only ever advanced to the documents the main query collects.
+  */
+  protected Query getAccessQuery()
+    throws IOException
+  {
+    return service.getAccessQuery(lookup,false);
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader)
+    throws IOException
+  {
+    return getAccessQuery();
+  }
+
+  @Override
+  public DelegatingCollector getFilterCollector(final IndexSearcher searcher)
+  {
+    return new DelegatingCollector()
+      {
+        protected Weight weight = null;
+        protected DocIdSetIterator iterator = null;
+
+        @Override
+        public void setNextReader(IndexReader reader, int docBase)
+          throws IOException
+        {
+          if (weight == null)
+            weight = searcher.createNormalizedWeight(getAccessQuery());
+          Scorer scorer = weight.scorer(reader,true,false);
+          iterator = scorer;
+          super.setNextReader(reader,docBase);
+        }
+
+        @Override
+        public void collect(int doc)
+          throws IOException
+        {
+          if (iterator == null)
+            return;
+          int allowed = iterator.docID();
+          if (allowed < doc)
+            allowed = iterator.advance(doc);
+          if (allowed == doc)
+            delegate.collect(doc);
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder()
+        {
+          // The allowed documents are walked forward only
+          return false;
+        }
+      };
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    return o == this;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return System.identityHashCode(this);
+  }
+
+  @Override
+  public String toString(String field)
+  {
+    return getOptions()+"AclPostFilter";
+  }
+
+}
@@ -0,0 +1,171 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Query that matches the documents a user may see, given the user's access tokens.  It is
+* rewritten into a BooleanQuery against the index being searched, so that levels in which
+* every document is open, and deny clauses for fields and tokens that have no deny postings,
+* are left out (see AclIndexStatistics).  Because the pruning happens at rewrite time, a
+* cached instance stays correct when the index changes.
+*/
+public class AclQuery extends Query
+{
+  private static final long serialVersionUID = 1L;
+
+  protected final String[] allowFields;
+  protected final String[] denyFields;
+  protected final String[] tokens;
+  protected final AclIndexStatistics statistics;
+
+  /** Constructor.
+  *@param allowFields are the allow fields, one per level.
+  *@param denyFields are the corresponding deny fields.
+  *@param userAccessTokens are the user's access tokens.
+  *@param statistics holds the index statistics used for pruning.
+  */
+  public AclQuery(String[] allowFields, String[] denyFields, Collection<String> userAccessTokens, AclIndexStatistics statistics)
+  {
+    this.allowFields = allowFields;
+    this.denyFields = denyFields;
+    SortedSet<String> sortedTokens = new TreeSet<String>(userAccessTokens);
+    this.tokens = sortedTokens.toArray(new String[sortedTokens.size()]);
+    this.statistics = statistics;
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader)
+    throws IOException
+  {
+    BooleanQuery bq = new BooleanQuery();
+    int levelsPruned = 0;
+    int denyClausesPruned = 0;
+    for (int level = 0; level < allowFields.length; level++)
+    {
+      AclIndexStatistics.FieldStatistics allowStatistics = statistics.getFieldStatistics(reader,allowFields[level]);
+      AclIndexStatistics.FieldStatistics denyStatistics = statistics.getFieldStatistics(reader,denyFields[level]);
+      if (allowStatistics.allOpen && denyStatistics.allOpen)
+      {
+        // Every document is open at this level, so it can't exclude anything
+        levelsPruned++;
+        continue;
+      }
+      if (tokens.length == 0)
+      {
+        // Only open documents can be included.
+        bq.add(new TermQuery(new Term(allowFields[level],ManifoldCFSearchComponent.NOSECURITY_TOKEN)),BooleanClause.Occur.MUST);
+        bq.add(new TermQuery(new Term(denyFields[level],ManifoldCFSearchComponent.NOSECURITY_TOKEN)),BooleanClause.Occur.MUST);
+      }
+      else
+      {
+        // Extend the query appropriately for each user access token.
+        BooleanQuery levelQuery = calculateCompleteSubquery(reader,allowFields[level],denyFields[level],denyStatistics.hasTokens);
+        denyClausesPruned += tokens.length - countClauses(levelQuery,BooleanClause.Occur.MUST_NOT);
+        bq.add(levelQuery,BooleanClause.Occur.MUST);
+      }
+    }
+    statistics.recordPruning(levelsPruned,denyClausesPruned);
+    if (bq.clauses().size() == 0)
+      return new MatchAllDocsQuery();
+    return bq;
+  }
+
+  /** Calculate a complete subclause, representing something like:
+  * ((fieldAllowShare is empty AND fieldDenyShare is empty) OR fieldAllowShare HAS token1 OR fieldAllowShare HAS token2 ...)
+  *     AND fieldDenyShare DOESN'T_HAVE token1 AND fieldDenyShare DOESN'T_HAVE token2 ...
+  * Clauses are only generated for tokens that occur in the field, which are found by merging
+  * the sorted tokens with each field's terms in one pass (see SortedTermIntersection).
+  */
+  protected BooleanQuery calculateCompleteSubquery(IndexReader reader, String allowField, String denyField, boolean denyHasTokens)
+    throws IOException
+  {
+    BooleanQuery bq = new BooleanQuery();
+    BooleanQuery.setMaxClauseCount(1000000);
+
+    // Add the empty-acl case
+    BooleanQuery subUnprotectedClause = new BooleanQuery();
+    subUnprotectedClause.add(new TermQuery(new Term(allowField,ManifoldCFSearchComponent.NOSECURITY_TOKEN)),BooleanClause.Occur.MUST);
+    subUnprotectedClause.add(new TermQuery(new Term(denyField,ManifoldCFSearchComponent.NOSECURITY_TOKEN)),BooleanClause.Occur.MUST);
+    bq.add(subUnprotectedClause,BooleanClause.Occur.SHOULD);
+    addTokenClauses(bq,reader,allowField,BooleanClause.Occur.SHOULD);
+    if (denyHasTokens)
+      addTokenClauses(bq,reader,denyField,BooleanClause.Occur.MUST_NOT);
+    return bq;
+  }
+
+  /** Add a clause for each of the tokens that a field contains.
+  */
+  protected void addTokenClauses(BooleanQuery bq, IndexReader reader, String field, BooleanClause.Occur occur)
+    throws IOException
+  {
+    SortedTermIntersection intersection = new SortedTermIntersection(reader,field,tokens);
+    try
+    {
+      while (intersection.next())
+      {
+        bq.add(new TermQuery(new Term(field,intersection.getToken())),occur);
+      }
+    }
+    finally
+    {
+      intersection.close();
+    }
+  }
+
+  protected static int countClauses(BooleanQuery bq, BooleanClause.Occur occur)
+  {
+    int count = 0;
+    for (BooleanClause clause : bq.clauses())
+    {
+      if (clause.getOccur() == occur)
+        count++;
+    }
+    return count;
+  }
+
+  @Override
+  public String toString(String field)
+  {
+    return "AclQuery(" + tokens.length + " tokens)";
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (!(o instanceof AclQuery))
+      return false;
+    AclQuery other = (AclQuery)o;
+    return getBoost() == other.getBoost() &&
+      Arrays.equals(tokens,other.tokens) &&
+      Arrays.equals(allowFields,other.allowFields) &&
+      Arrays.equals(denyFields,other.denyFields);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return Float.floatToIntBits(getBoost()) + 31 * Arrays.hashCode(tokens) +
+      961 * (Arrays.hashCode(allowFields) + 31 * Arrays.hashCode(denyFields));
+  }
+
+}
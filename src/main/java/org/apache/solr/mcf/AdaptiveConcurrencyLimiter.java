@@ -0,0 +1,171 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.*;
+
+/**
+* Limits the number of concurrent authority requests, adapting the limit to the
+* observed latency (additive increase, multiplicative decrease).  While latency stays
+* close to the best recently seen, the limit grows slowly; when latency rises well above
+* it, or a request fails, the limit is cut back.  Requests over the limit wait in a
+* bounded queue, and are rejected immediately once the queue is full.
+*/
+public class AdaptiveConcurrencyLimiter
+{
+  /** Latency above this multiple of the baseline is taken as a sign of overload */
+  protected static final double LATENCY_TOLERANCE = 2.0;
+  /** Multiplicative decrease factor */
+  protected static final double BACKOFF_RATIO = 0.9;
+  /** How quickly the baseline latency drifts upwards towards observed latencies */
+  protected static final double BASELINE_DRIFT = 0.01;
+
+  protected final int minLimit;
+  protected final int maxLimit;
+  protected final int maxQueued;
+
+  protected double limit;
+  protected double baselineLatency = -1.0;
+  protected int inFlight = 0;
+  protected int queued = 0;
+  protected long rejected = 0L;
+
+  /** Constructor.
+  *@param initialLimit is the starting concurrency limit.
+  *@param maxLimit is the largest the limit may grow to.
+  *@param maxQueued is the maximum number of requests waiting for a slot.
+  */
+  public AdaptiveConcurrencyLimiter(int initialLimit, int maxLimit, int maxQueued)
+  {
+    this.minLimit = 1;
+    this.maxLimit = Math.max(1,maxLimit);
+    this.maxQueued = maxQueued;
+    this.limit = Math.max(minLimit,Math.min(initialLimit,this.maxLimit));
+  }
+
+  /** Wait for permission to send a request.
+  *@param deadline is the time (ms since epoch) after which to give up, or 0 for none.
+  */
+  public synchronized void acquire(long deadline)
+    throws IOException
+  {
+    if (inFlight < (int)limit)
+    {
+      inFlight++;
+      return;
+    }
+    if (queued >= maxQueued)
+    {
+      rejected++;
+      throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE,"Too many concurrent ManifoldCF authority service requests; queue is full");
+    }
+    queued++;
+    try
+    {
+      while (inFlight >= (int)limit)
+      {
+        if (deadline == 0L)
+          wait();
+        else
+        {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0L)
+            throw new AuthorityDeadlineExceededException("Deadline passed waiting for an authority request slot");
+          wait(remaining);
+        }
+      }
+      inFlight++;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for an authority request slot");
+    }
+    finally
+    {
+      queued--;
+    }
+  }
+
+  /** Take a slot if one is free, without waiting or queueing.
+  *@return true if a slot was taken.
+  */
+  public synchronized boolean tryAcquire()
+  {
+    if (inFlight >= (int)limit)
+      return false;
+    inFlight++;
+    return true;
+  }
+
+  /** Release a slot without adjusting the limit, for a request abandoned by its caller.
+  */
+  public synchronized void release()
+  {
+    inFlight--;
+    notifyAll();
+  }
+
+  /** Release a slot, and adjust the limit based on how the request went.
+  *@param latency is the time the request took, in milliseconds.
+  *@param success is true if the request completed normally.
+  */
+  public synchronized void release(long latency, boolean success)
+  {
+    // Only requests that were actually competing for slots tell us anything about the limit
+    boolean limited = inFlight >= (int)limit / 2;
+    inFlight--;
+    if (success)
+    {
+      if (baselineLatency < 0.0 || latency < baselineLatency)
+        baselineLatency = latency;
+      else
+        baselineLatency += (latency - baselineLatency) * BASELINE_DRIFT;
+    }
+    if (!success || latency > Math.max(1.0,baselineLatency) * LATENCY_TOLERANCE)
+      limit = Math.max(minLimit,limit * BACKOFF_RATIO);
+    else if (limited)
+      limit = Math.min(maxLimit,limit + 1.0 / limit);
+    notifyAll();
+  }
+
+  public synchronized int getLimit()
+  {
+    return (int)limit;
+  }
+
+  public synchronized int getQueueDepth()
+  {
+    return queued;
+  }
+
+  /** Add the limiter statistics to a statistics list.
+  */
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    stats.add("concurrencyLimit",(int)limit);
+    stats.add("concurrencyInFlight",inFlight);
+    stats.add("concurrencyQueueDepth",queued);
+    stats.add("concurrencyMaxQueueDepth",maxQueued);
+    stats.add("concurrencyRejected",rejected);
+    stats.add("concurrencyBaselineLatencyMs",baselineLatency);
+  }
+
+}
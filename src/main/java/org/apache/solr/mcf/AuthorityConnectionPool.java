@@ -0,0 +1,210 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.commons.httpclient.*;
+import org.apache.commons.httpclient.params.*;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* The pooled HTTP connections to an authority service, and their lifecycle.  Connections
+* are not checked for staleness before each request, which costs a blocking read per
+* request; instead a background thread closes connections that have been idle too long,
+* and a request that fails on a connection the server has already closed is retried once,
+* on a new connection.  (Authority requests are GETs, so retrying them is safe.)  Some
+* connections can also be opened ahead of the first requests.  Requests that must not
+* hold up their caller run on the pool's executor, which has at most one thread per
+* connection; when all are busy, the executor rejects the request, and the caller runs it
+* itself.
+*/
+public class AuthorityConnectionPool
+{
+  /** A logger we can use */
+  private static final Logger LOG = LoggerFactory.getLogger(AuthorityConnectionPool.class);
+
+  /** How long pre-warming waits for a pooled connection, in milliseconds */
+  protected static final long PREWARM_CONNECTION_WAIT = 1000L;
+
+  protected final MultiThreadedHttpConnectionManager connectionManager;
+  protected final HttpClient client;
+  protected final ThreadPoolExecutor executor;
+  protected IdleConnectionTimeoutThread idleConnectionThread = null;
+  protected final AtomicInteger prewarmedConnections = new AtomicInteger(0);
+
+  /** Constructor.
+  *@param poolSize is the most connections opened.
+  *@param staleChecking is true if each connection should be checked before it is used.
+  *@param connectionTimeOut is how long opening a connection may take, in ms, or 0 for no limit.
+  *@param idleTimeOut is how long a connection may stay idle before it is closed, in ms, or 0 to keep it.
+  *@param idleCheckInterval is how often idle connections are looked for, in ms.
+  */
+  public AuthorityConnectionPool(int poolSize, boolean staleChecking, int connectionTimeOut, long idleTimeOut, long idleCheckInterval)
+  {
+    HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+    params.setTcpNoDelay(true);
+    params.setConnectionTimeout(connectionTimeOut);
+    params.setStaleCheckingEnabled(staleChecking);
+    params.setDefaultMaxConnectionsPerHost(poolSize);
+    params.setMaxTotalConnections(poolSize);
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    connectionManager.setParams(params);
+    client = new HttpClient(connectionManager);
+    client.getParams().setParameter(HttpMethodParams.RETRY_HANDLER,new DefaultHttpMethodRetryHandler(1,true));
+    executor = new ThreadPoolExecutor(0,poolSize,60L,TimeUnit.SECONDS,new SynchronousQueue<Runnable>(),new ThreadFactory()
+      {
+        protected final AtomicInteger threadCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+          Thread t = new Thread(r,"mcf-authority-request-"+threadCount.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    if (idleTimeOut > 0L)
+    {
+      idleConnectionThread = new IdleConnectionTimeoutThread();
+      idleConnectionThread.setName("ManifoldCF idle connection reaper");
+      idleConnectionThread.setConnectionTimeout(idleTimeOut);
+      idleConnectionThread.setTimeoutInterval(idleCheckInterval);
+      idleConnectionThread.addConnectionManager(connectionManager);
+      idleConnectionThread.start();
+    }
+  }
+
+  public HttpClient getClient()
+  {
+    return client;
+  }
+
+  /** Get the executor for requests that run in the background.  It throws
+  * RejectedExecutionException when it has no thread free.
+  */
+  public ExecutorService getExecutor()
+  {
+    return executor;
+  }
+
+  /** Grow the pool, if it is smaller than the given size.
+  */
+  public void ensurePoolSize(int poolSize)
+  {
+    HttpConnectionManagerParams params = connectionManager.getParams();
+    if (params.getMaxTotalConnections() < poolSize)
+    {
+      params.setDefaultMaxConnectionsPerHost(poolSize);
+      params.setMaxTotalConnections(poolSize);
+      executor.setMaximumPoolSize(poolSize);
+    }
+  }
+
+  /** Open connections to a server in the background, so that the first requests need not.
+  * Connections already open count towards the number.
+  *@param url is any URL on the server.
+  *@param count is the number of connections wanted.
+  */
+  public void prewarm(String url, final int count)
+  {
+    final HostConfiguration hostConfiguration = new HostConfiguration();
+    try
+    {
+      hostConfiguration.setHost(new URI(url,true));
+    }
+    catch (URIException e)
+    {
+      LOG.warn("Not pre-warming connections to invalid URL "+url+": "+e.getMessage());
+      return;
+    }
+    Thread thread = new Thread("ManifoldCF connection pre-warming")
+      {
+        @Override
+        public void run()
+        {
+          openConnections(hostConfiguration,count);
+        }
+      };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Open connections, holding them all until the last is open so that each is a different one.
+  */
+  protected void openConnections(HostConfiguration hostConfiguration, int count)
+  {
+    List<HttpConnection> connections = new ArrayList<HttpConnection>(count);
+    try
+    {
+      for (int i = 0; i < count; i++)
+      {
+        HttpConnection connection = connectionManager.getConnectionWithTimeout(hostConfiguration,PREWARM_CONNECTION_WAIT);
+        connections.add(connection);
+        if (!connection.isOpen())
+        {
+          connection.open();
+          prewarmedConnections.incrementAndGet();
+        }
+      }
+    }
+    catch (ConnectionPoolTimeoutException e)
+    {
+      // The pool is busy, so it is already warm
+    }
+    catch (IllegalStateException e)
+    {
+      // The pool was shut down
+    }
+    catch (IOException e)
+    {
+      LOG.warn("Could not pre-warm connections to "+hostConfiguration.getHostURL()+": "+e.getMessage());
+    }
+    finally
+    {
+      for (HttpConnection connection : connections)
+        connection.releaseConnection();
+    }
+  }
+
+  /** Close the connections, and stop looking for idle ones.
+  */
+  public void shutdown()
+  {
+    if (idleConnectionThread != null)
+    {
+      idleConnectionThread.shutdown();
+      idleConnectionThread = null;
+    }
+    executor.shutdown();
+    connectionManager.shutdown();
+  }
+
+  /** Add the pool statistics to a statistics list.
+  */
+  public void addStatistics(NamedList<Object> stats)
+  {
+    stats.add("pooledConnections",connectionManager.getConnectionsInPool());
+    stats.add("prewarmedConnections",prewarmedConnections.get());
+  }
+
+}
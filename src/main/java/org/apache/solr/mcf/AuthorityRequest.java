@@ -0,0 +1,364 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.SolrException;
+import org.apache.commons.httpclient.*;
+import org.apache.commons.httpclient.methods.*;
+import org.slf4j.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import java.net.*;
+
+/**
+* A single /UserACLs request against a ManifoldCF authority service.
+* The request can be aborted from another thread, which is what allows a
+* duplicate (hedged) request to cancel the one that lost the race, and a
+* request that has run past its deadline to be abandoned.
+*/
+public class AuthorityRequest
+{
+  /** A logger we can use */
+  private static final Logger LOG = LoggerFactory.getLogger(AuthorityRequest.class);
+
+  protected final HttpClient client;
+  /** Runs the request when it must not hold up the caller */
+  protected final ExecutorService executor;
+  protected final String theURL;
+  protected final int socketTimeOut;
+  /** The time (in ms since epoch) by which the request must be complete, or 0 if none */
+  protected final long deadline;
+  /** True if a gzip-compressed response is acceptable */
+  protected final boolean acceptCompression;
+  /** True if a response in BinaryTokenFormat is acceptable */
+  protected final boolean acceptBinary;
+
+  /** The cached entry being revalidated, if any */
+  protected TokenCache.Entry cachedEntry = null;
+  /** The validator (ETag) of the response, if it had one */
+  protected volatile String responseValidator = null;
+
+  /** The method currently executing, if any */
+  protected volatile GetMethod method = null;
+  /** Set when the request has been aborted */
+  protected volatile boolean aborted = false;
+
+  public AuthorityRequest(AuthorityConnectionPool pool, String authorityBaseURL, Map<String,String> domainMap, int socketTimeOut, long deadline)
+    throws IOException
+  {
+    this(pool,authorityBaseURL,domainMap,socketTimeOut,deadline,false,false);
+  }
+
+  /** Constructor.
+  *@param pool supplies the connection, and the thread the request runs in if it has a deadline.
+  *@param acceptCompression is true if the response may be gzip-compressed.
+  *@param acceptBinary is true if the response may be in BinaryTokenFormat.  Either way,
+  *  the text format is understood.
+  */
+  public AuthorityRequest(AuthorityConnectionPool pool, String authorityBaseURL, Map<String,String> domainMap, int socketTimeOut, long deadline,
+    boolean acceptCompression, boolean acceptBinary)
+    throws IOException
+  {
+    this.client = pool.getClient();
+    this.executor = pool.getExecutor();
+    this.theURL = buildURL(authorityBaseURL,domainMap);
+    this.socketTimeOut = socketTimeOut;
+    this.deadline = deadline;
+    this.acceptCompression = acceptCompression;
+    this.acceptBinary = acceptBinary;
+  }
+
+  /** Compute the time left before the deadline.
+  *@return the remaining time in milliseconds, or Long.MAX_VALUE if there is no deadline.
+  */
+  public long getRemainingTime()
+  {
+    if (deadline == 0L)
+      return Long.MAX_VALUE;
+    return deadline - System.currentTimeMillis();
+  }
+
+  /** Build the /UserACLs URL for a set of domain/user tuples.
+  */
+  public static String buildURL(String authorityBaseURL, Map<String,String> domainMap)
+    throws IOException
+  {
+    // We can make this more complicated later, with support for https etc., but this is enough to demonstrate how it all should work.
+    StringBuilder urlBuffer = new StringBuilder(authorityBaseURL);
+    urlBuffer.append("/UserACLs");
+    int i = 0;
+    for (String domain : domainMap.keySet())
+    {
+      if (i == 0)
+        urlBuffer.append("?");
+      else
+        urlBuffer.append("&");
+      // For backwards compatibility, handle the singleton case specially
+      if (domainMap.size() == 1 && domain.length() == 0)
+      {
+        urlBuffer.append("username=").append(URLEncoder.encode(domainMap.get(domain),"utf-8"));
+      }
+      else
+      {
+        urlBuffer.append("username_").append(Integer.toString(i)).append("=").append(URLEncoder.encode(domainMap.get(domain),"utf-8")).append("&")
+          .append("domain_").append(Integer.toString(i)).append("=").append(URLEncoder.encode(domain,"utf-8"));
+      }
+      i++;
+    }
+    return urlBuffer.toString();
+  }
+
+  /** Make the request revalidate a cached token list.  If the entry has a validator, the
+  * request is made conditional on it, and a 304 Not Modified response returns the entry's
+  * token list.  Must be called before the request is executed.
+  */
+  public void setCachedEntry(TokenCache.Entry cachedEntry)
+  {
+    this.cachedEntry = cachedEntry;
+  }
+
+  /** Get the validator (ETag) of the response, once the request has completed.
+  *@return the validator, or null if the response had none.
+  */
+  public String getResponseValidator()
+  {
+    return responseValidator;
+  }
+
+  /** Check whether the request has been aborted.
+  */
+  public boolean isAborted()
+  {
+    return aborted;
+  }
+
+  /** Abort the request, if it is in progress.  Safe to call from any thread.
+  */
+  public void abort()
+  {
+    aborted = true;
+    GetMethod m = method;
+    if (m != null)
+      m.abort();
+  }
+
+  /** Get the executor the request runs in, when it must not hold up the caller.
+  */
+  public ExecutorService getExecutor()
+  {
+    return executor;
+  }
+
+  /** Execute the request, enforcing the deadline on the total time taken.
+  * If there is a deadline, the request runs in another thread, so that it can be
+  * abandoned (and aborted) as soon as the deadline passes.  If no thread is free, it runs
+  * in the calling thread, where the deadline bounds each socket read instead.
+  */
+  public List<String> executeWithinDeadline()
+    throws IOException
+  {
+    if (deadline == 0L)
+      return execute();
+    long remaining = getRemainingTime();
+    if (remaining <= 0L)
+      throw new AuthorityDeadlineExceededException("Deadline passed before authority request was sent");
+    Future<List<String>> future;
+    try
+    {
+      future = executor.submit(new RequestCallable(this));
+    }
+    catch (RejectedExecutionException e)
+    {
+      return execute();
+    }
+    try
+    {
+      return future.get(remaining,TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException e)
+    {
+      abort();
+      throw new AuthorityDeadlineExceededException("Authority request did not complete within "+Long.toString(remaining)+" ms");
+    }
+    catch (ExecutionException e)
+    {
+      throw unwrap(e);
+    }
+    catch (InterruptedException e)
+    {
+      abort();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for authority request");
+    }
+  }
+
+  /** Execute the request in the calling thread, and return the access tokens.  Each
+  * socket read is bounded by the socket timeout, or by the time left before the deadline,
+  * if that is less; a read that times out after the deadline, whether it is waiting for the
+  * response or reading its body, means the deadline was exceeded.
+  */
+  public List<String> execute()
+    throws IOException
+  {
+    GetMethod method = new GetMethod(theURL);
+    this.method = method;
+    try
+    {
+      if (aborted)
+        throw new InterruptedIOException("Authority request aborted");
+      int timeOut = socketTimeOut;
+      long remaining = getRemainingTime();
+      if (remaining < (long)timeOut)
+      {
+        if (remaining <= 0L)
+          throw new AuthorityDeadlineExceededException("Deadline passed before authority request was sent");
+        timeOut = (int)remaining;
+      }
+      method.getParams().setParameter("http.socket.timeout", timeOut);
+      method.setFollowRedirects(true);
+      if (acceptCompression)
+        method.setRequestHeader("Accept-Encoding","gzip");
+      if (acceptBinary)
+        method.setRequestHeader("Accept",BinaryTokenFormat.CONTENT_TYPE+", text/plain;q=0.5");
+      if (cachedEntry != null && cachedEntry.validator != null)
+        method.setRequestHeader("If-None-Match",cachedEntry.validator);
+      try
+      {
+        return executeMethod(method);
+      }
+      catch (SocketTimeoutException e)
+      {
+        if (getRemainingTime() <= 0L)
+          throw new AuthorityDeadlineExceededException("Authority request did not complete before the deadline");
+        throw e;
+      }
+      catch (ConnectTimeoutException e)
+      {
+        if (getRemainingTime() <= 0L)
+          throw new AuthorityDeadlineExceededException("Authority connection was not made before the deadline");
+        throw e;
+      }
+    }
+    finally
+    {
+      method.releaseConnection();
+    }
+  }
+
+  /** Send the request, and read the tokens from the response.
+  */
+  protected List<String> executeMethod(GetMethod method)
+    throws IOException
+  {
+    int rval = client.executeMethod(method);
+    Header etag = method.getResponseHeader("ETag");
+    if (etag != null)
+      responseValidator = etag.getValue();
+    if (rval == 304 && cachedEntry != null)
+      return cachedEntry.tokens;
+    if (rval != 200)
+    {
+      String response = method.getResponseBodyAsString();
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,"Couldn't fetch user's access tokens from ManifoldCF authority service: "+Integer.toString(rval)+"; "+response);
+    }
+    InputStream is = method.getResponseBodyAsStream();
+    try
+    {
+      Header contentEncoding = method.getResponseHeader("Content-Encoding");
+      if (contentEncoding != null && contentEncoding.getValue().trim().equalsIgnoreCase("gzip"))
+        is = new GZIPInputStream(is);
+      Header contentType = method.getResponseHeader("Content-Type");
+      if (contentType != null && contentType.getValue().trim().toLowerCase(Locale.ROOT).startsWith(BinaryTokenFormat.CONTENT_TYPE))
+        return BinaryTokenFormat.read(new BufferedInputStream(is));
+      Reader r = new InputStreamReader(is,method.getResponseCharSet());
+      try
+      {
+        BufferedReader br = new BufferedReader(r);
+        try
+        {
+          // Read the tokens, one line at a time.  If any authorities are down, we have no current way to note that, but someday we will.
+          List<String> tokenList = new ArrayList<String>();
+          while (true)
+          {
+            String line = br.readLine();
+            if (line == null)
+              break;
+            if (line.startsWith("TOKEN:"))
+            {
+              tokenList.add(line.substring("TOKEN:".length()));
+            }
+            else
+            {
+              // It probably says something about the state of the authority(s) involved, so log it
+              LOG.info("Saw authority response "+line);
+            }
+          }
+          return tokenList;
+        }
+        finally
+        {
+          br.close();
+        }
+      }
+      finally
+      {
+        r.close();
+      }
+    }
+    finally
+    {
+      is.close();
+    }
+  }
+
+  /** Convert the cause of an ExecutionException into something we can throw.
+  */
+  public static IOException unwrap(ExecutionException e)
+  {
+    Throwable cause = e.getCause();
+    if (cause instanceof IOException)
+      return (IOException)cause;
+    if (cause instanceof RuntimeException)
+      throw (RuntimeException)cause;
+    if (cause instanceof Error)
+      throw (Error)cause;
+    return new IOException("Authority request failed: "+cause.getMessage(),cause);
+  }
+
+  /** Callable wrapper, for running a request in another thread.
+  */
+  protected static class RequestCallable implements Callable<List<String>>
+  {
+    protected final AuthorityRequest request;
+
+    public RequestCallable(AuthorityRequest request)
+    {
+      this.request = request;
+    }
+
+    @Override
+    public List<String> call()
+      throws Exception
+    {
+      return request.execute();
+    }
+  }
+
+}
@@ -0,0 +1,286 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* Executes authority requests with optional hedging.  If the primary request
+* has not completed within a delay derived from a percentile of recently
+* observed latencies, a duplicate request is sent, and whichever request answers
+* first wins.  The loser is aborted.  The number of duplicate requests is capped
+* by a budget, expressed as a percentage of primary requests, and, with an adaptive
+* concurrency limit, a duplicate is only sent if the limit has a slot free for it.
+* Only the latencies of primary requests that complete are recorded: a hedge starts
+* late and is sent only when the primary is slow, so counting its wins would drag the
+* percentile down, and with it the delay before the next hedge.
+*/
+public class AuthorityRequestHedger
+{
+  /** A logger we can use */
+  private static final Logger LOG = LoggerFactory.getLogger(AuthorityRequestHedger.class);
+
+  /** The number of samples needed before the percentile is trusted */
+  protected static final int MIN_SAMPLES = 20;
+  /** The maximum number of hedges that can be saved up while traffic is quiet */
+  protected static final double MAX_BUDGET = 10.0;
+
+  protected final double percentile;
+  protected final long minDelay;
+  protected final double budgetRatio;
+  protected final LatencyTracker latencies = new LatencyTracker(1024);
+
+  // Budget
+  protected double budget = MAX_BUDGET;
+
+  // Statistics
+  protected final AtomicLong requests = new AtomicLong(0L);
+  protected final AtomicLong hedgesSent = new AtomicLong(0L);
+  protected final AtomicLong hedgesWon = new AtomicLong(0L);
+  protected final AtomicLong hedgesDenied = new AtomicLong(0L);
+  protected final AtomicLong hedgesDeniedByLimit = new AtomicLong(0L);
+
+  /** Constructor.
+  *@param percentile is the latency percentile (0-100) after which a hedge is sent.
+  *@param minDelay is the minimum delay before a hedge is sent, in milliseconds.
+  *@param budgetPercent is the maximum number of hedges, as a percentage of primary requests.
+  */
+  public AuthorityRequestHedger(double percentile, long minDelay, double budgetPercent)
+  {
+    this.percentile = percentile;
+    this.minDelay = minDelay;
+    this.budgetRatio = budgetPercent / 100.0;
+  }
+
+  /** Compute the current hedge delay, in milliseconds.
+  */
+  public long getHedgeDelay()
+  {
+    if (latencies.getCount() < MIN_SAMPLES)
+      return minDelay;
+    return Math.max(minDelay,latencies.getPercentile(percentile));
+  }
+
+  /** Execute a request, sending the hedge request if the primary is slow.
+  * Both requests are abandoned if the primary request's deadline passes.
+  *@param primary is the primary request.
+  *@param hedge is the duplicate request, to be used only if the primary is slow.
+  *@return the access tokens.
+  */
+  public List<String> execute(AuthorityRequest primary, AuthorityRequest hedge)
+    throws IOException
+  {
+    return execute(primary,hedge,null);
+  }
+
+  /** Execute a request, sending the hedge request if the primary is slow and the
+  * concurrency limit allows another request.  The caller holds the primary's slot.
+  *@param limiter is the concurrency limiter, or null if there is none.
+  *@return the access tokens.
+  */
+  public List<String> execute(AuthorityRequest primary, AuthorityRequest hedge, AdaptiveConcurrencyLimiter limiter)
+    throws IOException
+  {
+    requests.incrementAndGet();
+    replenishBudget();
+    long startTime = System.currentTimeMillis();
+    CompletionService<List<String>> completionService = new ExecutorCompletionService<List<String>>(primary.getExecutor());
+    try
+    {
+      completionService.submit(new AuthorityRequest.RequestCallable(primary));
+    }
+    catch (RejectedExecutionException e)
+    {
+      // No thread is free to run the requests, so there is no hedging either
+      return primary.execute();
+    }
+    Future<List<String>> hedgeFuture = null;
+    try
+    {
+      long hedgeDelay = getHedgeDelay();
+      long remaining = primary.getRemainingTime();
+      Future<List<String>> done = completionService.poll(Math.min(hedgeDelay,remaining),TimeUnit.MILLISECONDS);
+      int outstanding = 1;
+      if (done == null && hedgeDelay < remaining)
+      {
+        if (!spendBudget())
+          hedgesDenied.incrementAndGet();
+        else if (limiter != null && !limiter.tryAcquire())
+        {
+          // The hedge would be one request too many; it is not waited for
+          refundBudget();
+          hedgesDeniedByLimit.incrementAndGet();
+        }
+        else
+        {
+          try
+          {
+            hedgeFuture = completionService.submit(new LimitedRequestCallable(hedge,limiter));
+            hedgesSent.incrementAndGet();
+            if (LOG.isDebugEnabled())
+              LOG.debug("Authority request slow; sending hedge request");
+            outstanding++;
+          }
+          catch (RejectedExecutionException e)
+          {
+            if (limiter != null)
+              limiter.release();
+            refundBudget();
+            hedgesDeniedByLimit.incrementAndGet();
+          }
+        }
+      }
+      ExecutionException lastException = null;
+      while (true)
+      {
+        if (done == null)
+        {
+          remaining = primary.getRemainingTime();
+          if (remaining > 0L)
+            done = completionService.poll(remaining,TimeUnit.MILLISECONDS);
+          if (done == null)
+          {
+            abortAll(primary,hedge,hedgeFuture);
+            throw new AuthorityDeadlineExceededException("Authority request did not complete within the request deadline");
+          }
+        }
+        outstanding--;
+        try
+        {
+          List<String> rval = done.get();
+          if (done == hedgeFuture)
+          {
+            hedgesWon.incrementAndGet();
+            primary.abort();
+          }
+          else
+          {
+            if (hedgeFuture != null)
+              hedge.abort();
+            latencies.record(System.currentTimeMillis() - startTime);
+          }
+          return rval;
+        }
+        catch (ExecutionException e)
+        {
+          lastException = e;
+          if (outstanding == 0)
+            break;
+        }
+        done = null;
+      }
+      throw AuthorityRequest.unwrap(lastException);
+    }
+    catch (InterruptedException e)
+    {
+      abortAll(primary,hedge,hedgeFuture);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for authority request");
+    }
+  }
+
+  protected static void abortAll(AuthorityRequest primary, AuthorityRequest hedge, Future<List<String>> hedgeFuture)
+  {
+    primary.abort();
+    if (hedgeFuture != null)
+      hedge.abort();
+  }
+
+  protected synchronized void replenishBudget()
+  {
+    budget = Math.min(MAX_BUDGET,budget + budgetRatio);
+  }
+
+  protected synchronized boolean spendBudget()
+  {
+    if (budget < 1.0)
+      return false;
+    budget -= 1.0;
+    return true;
+  }
+
+  protected synchronized void refundBudget()
+  {
+    budget = Math.min(MAX_BUDGET,budget + 1.0);
+  }
+
+  /** Add the hedging statistics to a statistics list.
+  */
+  public void addStatistics(NamedList<Object> stats)
+  {
+    stats.add("hedgeRequests",requests.get());
+    stats.add("hedgesSent",hedgesSent.get());
+    stats.add("hedgesWon",hedgesWon.get());
+    stats.add("hedgesDeniedByBudget",hedgesDenied.get());
+    stats.add("hedgesDeniedByLimit",hedgesDeniedByLimit.get());
+    stats.add("hedgeDelayMs",getHedgeDelay());
+  }
+
+  public long getHedgesSent()
+  {
+    return hedgesSent.get();
+  }
+
+  public long getHedgesWon()
+  {
+    return hedgesWon.get();
+  }
+
+  /** Runs a hedge request, and gives its concurrency limiter slot back when it is done.
+  */
+  protected static class LimitedRequestCallable extends AuthorityRequest.RequestCallable
+  {
+    protected final AdaptiveConcurrencyLimiter limiter;
+
+    public LimitedRequestCallable(AuthorityRequest request, AdaptiveConcurrencyLimiter limiter)
+    {
+      super(request);
+      this.limiter = limiter;
+    }
+
+    @Override
+    public List<String> call()
+      throws Exception
+    {
+      if (limiter == null)
+        return super.call();
+      long startTime = System.currentTimeMillis();
+      boolean success = false;
+      try
+      {
+        List<String> rval = super.call();
+        success = true;
+        return rval;
+      }
+      finally
+      {
+        // A hedge that lost the race was aborted, which says nothing about the authority
+        if (request.isAborted())
+          limiter.release();
+        else
+          limiter.release(System.currentTimeMillis() - startTime,success);
+      }
+    }
+  }
+
+}
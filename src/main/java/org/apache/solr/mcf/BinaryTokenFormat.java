@@ -0,0 +1,139 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Compact binary encoding of a list of access tokens, which an authority service may send
+* instead of the "TOKEN:" text format when the request accepts CONTENT_TYPE.  Tokens are
+* sorted and front coded, since the tokens of one authority tend to share long prefixes
+* (e.g. "ActiveDirectory:S-1-5-21-...").  The layout is:
+*
+*   token count (vint)
+*   for each token, in sorted order:
+*     length of the prefix shared with the previous token, in UTF-8 bytes (vint)
+*     length of the rest (vint)
+*     the rest, in UTF-8
+*
+* A vint is an unsigned integer written 7 bits at a time, low bits first, with the high bit
+* set on every byte but the last.
+*/
+public class BinaryTokenFormat
+{
+  /** The content type of the binary format */
+  public static final String CONTENT_TYPE = "application/x-manifoldcf-tokens";
+
+  /** The most tokens to make room for before any have been read */
+  protected static final int MAX_INITIAL_CAPACITY = 1024;
+
+  /** Write tokens in binary form.
+  */
+  public static void write(Collection<String> tokens, OutputStream os)
+    throws IOException
+  {
+    SortedSet<String> sortedTokens = new TreeSet<String>(tokens);
+    writeVInt(os,sortedTokens.size());
+    byte[] previous = new byte[0];
+    for (String token : sortedTokens)
+    {
+      byte[] bytes = token.getBytes("UTF-8");
+      int prefix = 0;
+      int limit = Math.min(previous.length,bytes.length);
+      while (prefix < limit && previous[prefix] == bytes[prefix])
+        prefix++;
+      writeVInt(os,prefix);
+      writeVInt(os,bytes.length - prefix);
+      os.write(bytes,prefix,bytes.length - prefix);
+      previous = bytes;
+    }
+  }
+
+  /** Read tokens in binary form.  The counts and lengths come from the authority service,
+  * so they are checked before use, and memory is only allocated as the data arrives.
+  */
+  public static List<String> read(InputStream is)
+    throws IOException
+  {
+    int count = readVInt(is);
+    if (count < 0)
+      throw new IOException("Malformed binary token response");
+    List<String> tokens = new ArrayList<String>(Math.min(count,MAX_INITIAL_CAPACITY));
+    byte[] buffer = new byte[256];
+    int previousLength = 0;
+    for (int i = 0; i < count; i++)
+    {
+      int prefix = readVInt(is);
+      int suffix = readVInt(is);
+      if (prefix < 0 || suffix < 0 || prefix > previousLength || prefix + suffix < 0)
+        throw new IOException("Malformed binary token response");
+      int length = prefix + suffix;
+      buffer = readFully(is,buffer,prefix,suffix);
+      tokens.add(new String(buffer,0,length,"UTF-8"));
+      previousLength = length;
+    }
+    return tokens;
+  }
+
+  protected static void writeVInt(OutputStream os, int value)
+    throws IOException
+  {
+    while ((value & ~0x7f) != 0)
+    {
+      os.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    os.write(value);
+  }
+
+  protected static int readVInt(InputStream is)
+    throws IOException
+  {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7)
+    {
+      int b = is.read();
+      if (b == -1)
+        throw new EOFException("Truncated binary token response");
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IOException("Malformed binary token response");
+  }
+
+  /** Read length bytes into a buffer at offset, growing the buffer as the bytes arrive.
+  *@return the buffer, which may be a new one.
+  */
+  protected static byte[] readFully(InputStream is, byte[] buffer, int offset, int length)
+    throws IOException
+  {
+    int end = offset + length;
+    while (offset < end)
+    {
+      if (offset == buffer.length)
+        buffer = Arrays.copyOf(buffer,(int)Math.min((long)end,buffer.length * 2L));
+      int amount = is.read(buffer,offset,Math.min(end,buffer.length) - offset);
+      if (amount == -1)
+        throw new EOFException("Truncated binary token response");
+      offset += amount;
+    }
+    return buffer;
+  }
+
+}
@@ -0,0 +1,195 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.io.*;
+
+/**
+* Utilities for choosing the most compact representation of a DocIdSet.  ACL results tend
+* to be either very sparse (restricted content) or very dense (mostly public content), and
+* documents from the same source are usually indexed together, so a full bit set is rarely
+* the smallest choice.
+*/
+public class CompressedDocIdSets
+{
+  /** Fixed overhead of an OpenBitSet, in bytes */
+  protected static final long BITSET_OVERHEAD = 32L;
+
+  private CompressedDocIdSets()
+  {
+  }
+
+  /** Convert a bit set to whichever of the supported representations is smallest: a sorted
+  * array of the documents in the set, a sorted array of the documents not in the set, a list
+  * of runs, or the bit set itself.
+  *@param bits is the set.  It may be returned as is.
+  *@param maxDoc is the number of documents in the segment.
+  *@return the compact set.
+  */
+  public static DocIdSet compress(OpenBitSet bits, int maxDoc)
+  {
+    int cardinality = (int)bits.cardinality();
+    if (cardinality == 0)
+      return DocIdSet.EMPTY_DOCIDSET;
+
+    // Count the runs of consecutive documents
+    int runs = 0;
+    int previous = -2;
+    int doc = bits.nextSetBit(0);
+    while (doc != -1 && doc < maxDoc)
+    {
+      if (doc != previous + 1)
+        runs++;
+      previous = doc;
+      doc = bits.nextSetBit(doc + 1);
+    }
+
+    long sparseSize = 32L + 4L * cardinality;
+    long invertedSize = 32L + 4L * (maxDoc - cardinality);
+    long runSize = 48L + 8L * runs;
+    long bitSetSize = ramBytesUsed(bits);
+
+    if (sparseSize <= invertedSize && sparseSize <= runSize && sparseSize < bitSetSize)
+      return new SortedIntDocIdSet(toArray(bits,maxDoc,cardinality),maxDoc,false);
+    if (invertedSize <= runSize && invertedSize < bitSetSize)
+      return new SortedIntDocIdSet(toInvertedArray(bits,maxDoc,maxDoc - cardinality),maxDoc,true);
+    if (runSize < bitSetSize)
+      return toRuns(bits,maxDoc,runs);
+    return bits;
+  }
+
+  /** Estimate the memory used by a DocIdSet produced by compress(), in bytes.
+  */
+  public static long ramBytesUsed(DocIdSet set)
+  {
+    if (set instanceof SortedIntDocIdSet)
+      return ((SortedIntDocIdSet)set).ramBytesUsed();
+    if (set instanceof RunLengthDocIdSet)
+      return ((RunLengthDocIdSet)set).ramBytesUsed();
+    if (set instanceof OpenBitSet)
+      return BITSET_OVERHEAD + 8L * ((OpenBitSet)set).getBits().length;
+    if (set instanceof AclFilterCacheSnapshot.MappedDocIdSet)
+      return ((AclFilterCacheSnapshot.MappedDocIdSet)set).ramBytesUsed();
+    return 0L;
+  }
+
+  /** Limit a set that was built for an earlier state of a segment to the reader's live documents.
+  */
+  public static DocIdSet withoutDeletions(DocIdSet set, final IndexReader reader)
+  {
+    if (!reader.hasDeletions())
+      return set;
+    return new FilteredDocIdSet(set)
+      {
+        @Override
+        protected boolean match(int docid)
+        {
+          return !reader.isDeleted(docid);
+        }
+      };
+  }
+
+  /** Remove a reader's deleted documents from a bit set.
+  */
+  public static void clearDeletions(OpenBitSet bits, IndexReader reader)
+  {
+    if (!reader.hasDeletions())
+      return;
+    int doc = bits.nextSetBit(0);
+    while (doc != -1)
+    {
+      if (reader.isDeleted(doc))
+        bits.fastClear(doc);
+      doc = bits.nextSetBit(doc + 1);
+    }
+  }
+
+  /** Add the documents of a set to a bit set.
+  */
+  public static void or(OpenBitSet bits, DocIdSet set)
+    throws IOException
+  {
+    if (set instanceof OpenBitSet)
+    {
+      bits.or((OpenBitSet)set);
+      return;
+    }
+    DocIdSetIterator iterator = set.iterator();
+    if (iterator == null)
+      return;
+    int doc;
+    while ((doc = iterator.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+      bits.fastSet(doc);
+  }
+
+  protected static int[] toArray(OpenBitSet bits, int maxDoc, int count)
+  {
+    int[] docs = new int[count];
+    int i = 0;
+    int doc = bits.nextSetBit(0);
+    while (doc != -1 && doc < maxDoc)
+    {
+      docs[i++] = doc;
+      doc = bits.nextSetBit(doc + 1);
+    }
+    return docs;
+  }
+
+  protected static int[] toInvertedArray(OpenBitSet bits, int maxDoc, int count)
+  {
+    int[] docs = new int[count];
+    int i = 0;
+    int doc = 0;
+    while (doc < maxDoc)
+    {
+      int next = bits.nextSetBit(doc);
+      if (next == -1 || next > maxDoc)
+        next = maxDoc;
+      // Everything between here and the next set bit is excluded
+      while (doc < next)
+        docs[i++] = doc++;
+      doc = next + 1;
+    }
+    return docs;
+  }
+
+  protected static RunLengthDocIdSet toRuns(OpenBitSet bits, int maxDoc, int runs)
+  {
+    int[] starts = new int[runs];
+    int[] ends = new int[runs];
+    int run = -1;
+    int previous = -2;
+    int doc = bits.nextSetBit(0);
+    while (doc != -1 && doc < maxDoc)
+    {
+      if (doc != previous + 1)
+      {
+        run++;
+        starts[run] = doc;
+      }
+      ends[run] = doc + 1;
+      previous = doc;
+      doc = bits.nextSetBit(doc + 1);
+    }
+    return new RunLengthDocIdSet(starts,ends);
+  }
+
+}
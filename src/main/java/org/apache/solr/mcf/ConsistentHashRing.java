@@ -0,0 +1,83 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+* Consistent hashing of keys onto a set of nodes.  Each node is placed at many points on
+* a ring of 64-bit hashes, and a key belongs to the node at the first point at or after its
+* own hash.  Every node computes the same owner for a key, and adding or removing a node
+* only moves the keys that node owns.
+*/
+public class ConsistentHashRing
+{
+  /** The points placed on the ring for each node */
+  protected static final int POINTS_PER_NODE = 100;
+
+  protected final TreeMap<Long,String> ring = new TreeMap<Long,String>();
+
+  /** Constructor.
+  *@param nodes are the nodes; there must be at least one.
+  */
+  public ConsistentHashRing(Collection<String> nodes)
+  {
+    if (nodes.size() == 0)
+      throw new IllegalArgumentException("A ring needs at least one node");
+    for (String node : nodes)
+    {
+      for (int i = 0; i < POINTS_PER_NODE; i++)
+        ring.put(new Long(hash(node+"#"+i)),node);
+    }
+  }
+
+  /** Find the node that owns a key.
+  */
+  public String getOwner(String key)
+  {
+    Map.Entry<Long,String> entry = ring.ceilingEntry(new Long(hash(key)));
+    if (entry == null)
+      entry = ring.firstEntry();
+    return entry.getValue();
+  }
+
+  /** Hash a string to a point on the ring.  This must not depend on the JVM, since every
+  * node has to agree on it.
+  */
+  protected static long hash(String value)
+  {
+    try
+    {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+      long rval = 0L;
+      for (int i = 0; i < 8; i++)
+        rval = (rval << 8) | (digest[i] & 0xffL);
+      return rval;
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new RuntimeException("MD5 not supported: "+e.getMessage(),e);
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new RuntimeException("UTF-8 not supported: "+e.getMessage(),e);
+    }
+  }
+
+}
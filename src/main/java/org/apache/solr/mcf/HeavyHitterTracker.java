@@ -0,0 +1,149 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import java.util.*;
+
+/**
+* Finds the keys that account for the most requests, and for the most authority time, in a
+* stream of requests, in bounded memory.  Per-key totals are estimated with count-min
+* sketches (which may overestimate, but never underestimate), and the keys with the highest
+* estimates are kept in two small top lists.
+*/
+public class HeavyHitterTracker
+{
+  /** Rows in each sketch */
+  protected static final int DEPTH = 4;
+  /** Counters per row */
+  protected static final int WIDTH = 4096;
+
+  protected final int topCount;
+  protected final long[][] requestCounts = new long[DEPTH][WIDTH];
+  protected final long[][] authorityTimes = new long[DEPTH][WIDTH];
+  /** The keys with the most requests, with their estimated request counts */
+  protected final Map<String,Long> topByRequests = new HashMap<String,Long>();
+  /** The keys with the most authority time, with their estimated times */
+  protected final Map<String,Long> topByAuthorityTime = new HashMap<String,Long>();
+
+  protected long requests = 0L;
+  protected long authorityTime = 0L;
+
+  /** Constructor.
+  *@param topCount is the number of keys kept in each top list.
+  */
+  public HeavyHitterTracker(int topCount)
+  {
+    this.topCount = topCount;
+  }
+
+  /** Record a request.
+  *@param key identifies the user or token set.
+  *@param time is the time spent getting the tokens from the authority, in milliseconds.
+  */
+  public void record(String key, long time)
+  {
+    // Double hashing gives the column in each row
+    long hash = mix(key.hashCode());
+    int h1 = (int)hash;
+    int h2 = (int)(hash >>> 32) | 1;
+    synchronized (this)
+    {
+      requests++;
+      authorityTime += time;
+      long requestEstimate = Long.MAX_VALUE;
+      long timeEstimate = Long.MAX_VALUE;
+      for (int row = 0; row < DEPTH; row++)
+      {
+        int column = ((h1 + row * h2) & 0x7fffffff) % WIDTH;
+        requestEstimate = Math.min(requestEstimate,++requestCounts[row][column]);
+        timeEstimate = Math.min(timeEstimate,authorityTimes[row][column] += time);
+      }
+      offer(topByRequests,key,requestEstimate);
+      if (time > 0L)
+        offer(topByAuthorityTime,key,timeEstimate);
+    }
+  }
+
+  /** Add the top lists to a statistics list.
+  */
+  public synchronized void addStatistics(NamedList<Object> stats, String prefix)
+  {
+    stats.add(prefix+"Requests",requests);
+    stats.add(prefix+"AuthorityTimeMs",authorityTime);
+    stats.add(prefix+"TopByRequests",sorted(topByRequests));
+    stats.add(prefix+"TopByAuthorityTimeMs",sorted(topByAuthorityTime));
+  }
+
+  /** Put a key in a top list, if its estimate is high enough.
+  */
+  protected void offer(Map<String,Long> top, String key, long estimate)
+  {
+    if (top.containsKey(key) || top.size() < topCount)
+    {
+      top.put(key,new Long(estimate));
+      return;
+    }
+    String minKey = null;
+    long minValue = Long.MAX_VALUE;
+    for (Map.Entry<String,Long> entry : top.entrySet())
+    {
+      if (entry.getValue().longValue() < minValue)
+      {
+        minKey = entry.getKey();
+        minValue = entry.getValue().longValue();
+      }
+    }
+    if (estimate > minValue)
+    {
+      top.remove(minKey);
+      top.put(key,new Long(estimate));
+    }
+  }
+
+  protected static NamedList<Object> sorted(Map<String,Long> top)
+  {
+    List<Map.Entry<String,Long>> entries = new ArrayList<Map.Entry<String,Long>>(top.entrySet());
+    Collections.sort(entries,new Comparator<Map.Entry<String,Long>>()
+      {
+        @Override
+        public int compare(Map.Entry<String,Long> a, Map.Entry<String,Long> b)
+        {
+          return b.getValue().compareTo(a.getValue());
+        }
+      });
+    NamedList<Object> result = new SimpleOrderedMap<Object>();
+    for (Map.Entry<String,Long> entry : entries)
+      result.add(entry.getKey(),entry.getValue());
+    return result;
+  }
+
+  /** Spread the bits of a hash code over 64 bits.
+  */
+  protected static long mix(long value)
+  {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    value ^= value >>> 33;
+    return value;
+  }
+
+}
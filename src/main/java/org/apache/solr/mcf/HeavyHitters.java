@@ -0,0 +1,97 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.util.NamedList;
+
+import java.util.*;
+
+/**
+* Tracks which users, and which token sets, account for the most requests and the most
+* authority time (see HeavyHitterTracker).  Users are identified by their domain/user
+* tuples; token sets by a hash of their tokens, regardless of order.
+*/
+public class HeavyHitters
+{
+  protected final HeavyHitterTracker users;
+  protected final HeavyHitterTracker tokenSets;
+
+  /** Constructor.
+  *@param topCount is the number of users and token sets kept in each top list.
+  */
+  public HeavyHitters(int topCount)
+  {
+    users = new HeavyHitterTracker(topCount);
+    tokenSets = new HeavyHitterTracker(topCount);
+  }
+
+  /** Record a request.
+  *@param domainMap maps the user's domains to user names; empty if there is no authenticated user.
+  *@param tokens are the user's tokens, or null if there are none.
+  *@param authorityTime is the time spent getting the tokens, in milliseconds.
+  */
+  public void record(Map<String,String> domainMap, List<String> tokens, long authorityTime)
+  {
+    if (domainMap.size() > 0)
+      users.record(makeUserKey(domainMap),authorityTime);
+    if (tokens != null)
+      tokenSets.record(makeTokenSetKey(tokens),authorityTime);
+  }
+
+  /** Add the top lists to a statistics list.
+  */
+  public void addStatistics(NamedList<Object> stats)
+  {
+    users.addStatistics(stats,"heavyHitterUsers");
+    tokenSets.addStatistics(stats,"heavyHitterTokenSets");
+  }
+
+  /** Describe a user, as domain:user tuples in domain order (or just the user name, for the
+  * default domain).
+  */
+  protected static String makeUserKey(Map<String,String> domainMap)
+  {
+    String[] domains = domainMap.keySet().toArray(new String[domainMap.size()]);
+    Arrays.sort(domains);
+    StringBuilder sb = new StringBuilder();
+    for (String domain : domains)
+    {
+      if (sb.length() > 0)
+        sb.append(",");
+      if (domain.length() > 0)
+        sb.append(domain).append(":");
+      sb.append(domainMap.get(domain));
+    }
+    return sb.toString();
+  }
+
+  /** Hash a token set, as 16 hex digits.  The hash does not depend on the order of the
+  * tokens, so that it needs no sort.
+  */
+  protected static String makeTokenSetKey(List<String> tokens)
+  {
+    long hash = tokens.size();
+    for (String token : tokens)
+      hash += HeavyHitterTracker.mix(token.hashCode() ^ ((long)token.length() << 32));
+    String hex = Long.toHexString(hash);
+    StringBuilder sb = new StringBuilder(16);
+    for (int i = hex.length(); i < 16; i++)
+      sb.append('0');
+    return sb.append(hex).toString();
+  }
+
+}
@@ -0,0 +1,291 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* A memory-bounded cache of the per-level allow and deny sets of recently evaluated token sets,
+* per index segment.  A token set that differs from a cached one by only a few tokens can then
+* be derived from it: the added tokens' postings are OR-ed into the allow and deny sets, and
+* removed tokens are permitted only if they have no postings in the segment, since the
+* documents they contributed cannot be told apart from those of the remaining tokens.
+*/
+public class IncrementalAclCache extends SegmentDocIdSetCache
+{
+  /** The most token sets remembered as derivation bases */
+  protected static final int MAX_TRACKED_TOKEN_SETS = 256;
+  /** The most candidate bases tried per segment */
+  protected static final int MAX_CANDIDATES = 4;
+
+  protected final int maxDistance;
+  /** Recently evaluated token sets, most recent last */
+  protected final Map<AclFilterCache.TokenSetKey,Boolean> tokenSets;
+
+  protected long derivations = 0L;
+  protected long derivedTokens = 0L;
+
+  /** Constructor.
+  *@param maxBytes is the memory budget for cached sets, in bytes.
+  *@param maxDistance is the largest number of added and removed tokens to derive across.
+  */
+  public IncrementalAclCache(long maxBytes, int maxDistance)
+  {
+    super("incrementalCache",maxBytes);
+    this.maxDistance = maxDistance;
+    this.tokenSets = new LinkedHashMap<AclFilterCache.TokenSetKey,Boolean>(16,0.75f,true)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<AclFilterCache.TokenSetKey,Boolean> eldest)
+        {
+          return size() > MAX_TRACKED_TOKEN_SETS;
+        }
+      };
+  }
+
+  /** Remember the per-level sets of a token set in a segment.  The sets are not modified.
+  */
+  public void putLevels(IndexReader reader, AclFilterCache.TokenSetKey tokenSet, OpenBitSet[] allowBits, OpenBitSet[] denyBits)
+  {
+    for (int level = 0; level < allowBits.length; level++)
+    {
+      putCopy(reader,new LevelKey(tokenSet,level,false),allowBits[level]);
+      putCopy(reader,new LevelKey(tokenSet,level,true),denyBits[level]);
+    }
+    synchronized (this)
+    {
+      tokenSets.put(tokenSet,Boolean.TRUE);
+    }
+  }
+
+  protected void putCopy(IndexReader reader, LevelKey key, OpenBitSet bits)
+  {
+    DocIdSet set = CompressedDocIdSets.compress(bits,reader.maxDoc());
+    // The caller goes on to modify its bits
+    if (set == bits)
+      set = (OpenBitSet)bits.clone();
+    put(reader,key,set,CompressedDocIdSets.ramBytesUsed(bits));
+  }
+
+  /** Try to derive the per-level sets of a token set in a segment from a similar cached one.
+  *@param allowBits receives the allow sets, which may include deleted documents.
+  *@param denyBits receives the deny sets.
+  *@return true if the sets were derived.
+  */
+  public boolean derive(IndexReader reader, AclFilterCache.TokenSetKey tokenSet, OpenBitSet[] allowBits, OpenBitSet[] denyBits)
+    throws IOException
+  {
+    for (AclFilterCache.TokenSetKey base : findCandidates(tokenSet))
+    {
+      if (!removalsAreEmpty(reader,base,tokenSet))
+        continue;
+      if (!getLevels(reader,base,allowBits,denyBits))
+        continue;
+      int added = 0;
+      TermDocs termDocs = reader.termDocs();
+      try
+      {
+        for (String token : difference(tokenSet.tokens,base.tokens))
+        {
+          added++;
+          for (int level = 0; level < allowBits.length; level++)
+          {
+            AclFilter.addPostings(termDocs,new Term(tokenSet.allowFields[level],token),allowBits[level]);
+            AclFilter.addPostings(termDocs,new Term(tokenSet.denyFields[level],token),denyBits[level]);
+          }
+        }
+      }
+      finally
+      {
+        termDocs.close();
+      }
+      synchronized (this)
+      {
+        derivations++;
+        derivedTokens += added;
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /** Find remembered token sets within the maximum distance of a token set, nearest first.
+  */
+  protected List<AclFilterCache.TokenSetKey> findCandidates(AclFilterCache.TokenSetKey tokenSet)
+  {
+    List<AclFilterCache.TokenSetKey> bases;
+    synchronized (this)
+    {
+      bases = new ArrayList<AclFilterCache.TokenSetKey>(tokenSets.keySet());
+    }
+    final Map<AclFilterCache.TokenSetKey,Integer> distances = new HashMap<AclFilterCache.TokenSetKey,Integer>();
+    for (AclFilterCache.TokenSetKey base : bases)
+    {
+      if (base.equals(tokenSet) || !Arrays.equals(base.allowFields,tokenSet.allowFields) ||
+        !Arrays.equals(base.denyFields,tokenSet.denyFields))
+        continue;
+      int distance = distance(base.tokens,tokenSet.tokens,maxDistance);
+      if (distance <= maxDistance)
+        distances.put(base,new Integer(distance));
+    }
+    List<AclFilterCache.TokenSetKey> candidates = new ArrayList<AclFilterCache.TokenSetKey>(distances.keySet());
+    Collections.sort(candidates,new Comparator<AclFilterCache.TokenSetKey>()
+      {
+        @Override
+        public int compare(AclFilterCache.TokenSetKey a, AclFilterCache.TokenSetKey b)
+        {
+          return distances.get(a).compareTo(distances.get(b));
+        }
+      });
+    if (candidates.size() > MAX_CANDIDATES)
+      candidates = candidates.subList(0,MAX_CANDIDATES);
+    return candidates;
+  }
+
+  /** Check that the tokens in base but not in target have no postings in the segment.
+  */
+  protected static boolean removalsAreEmpty(IndexReader reader, AclFilterCache.TokenSetKey base, AclFilterCache.TokenSetKey target)
+    throws IOException
+  {
+    for (String token : difference(base.tokens,target.tokens))
+    {
+      for (int level = 0; level < base.allowFields.length; level++)
+      {
+        if (reader.docFreq(new Term(base.allowFields[level],token)) > 0 ||
+          reader.docFreq(new Term(base.denyFields[level],token)) > 0)
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /** Fill in fresh copies of the cached per-level sets of a token set.
+  *@return false if any of them is not cached.
+  */
+  protected boolean getLevels(IndexReader reader, AclFilterCache.TokenSetKey tokenSet, OpenBitSet[] allowBits, OpenBitSet[] denyBits)
+    throws IOException
+  {
+    DocIdSet[] allowSets = new DocIdSet[allowBits.length];
+    DocIdSet[] denySets = new DocIdSet[denyBits.length];
+    for (int level = 0; level < allowBits.length; level++)
+    {
+      allowSets[level] = getUnfiltered(reader,new LevelKey(tokenSet,level,false));
+      denySets[level] = getUnfiltered(reader,new LevelKey(tokenSet,level,true));
+      if (allowSets[level] == null || denySets[level] == null)
+        return false;
+    }
+    for (int level = 0; level < allowBits.length; level++)
+    {
+      allowBits[level] = new OpenBitSet(reader.maxDoc());
+      CompressedDocIdSets.or(allowBits[level],allowSets[level]);
+      denyBits[level] = new OpenBitSet(reader.maxDoc());
+      CompressedDocIdSets.or(denyBits[level],denySets[level]);
+    }
+    return true;
+  }
+
+  /** Count the tokens in one sorted array but not the other, stopping early past a limit.
+  */
+  protected static int distance(String[] a, String[] b, int limit)
+  {
+    int i = 0;
+    int j = 0;
+    int distance = 0;
+    while (i < a.length && j < b.length && distance <= limit)
+    {
+      int comparison = a[i].compareTo(b[j]);
+      if (comparison == 0)
+      {
+        i++;
+        j++;
+      }
+      else
+      {
+        distance++;
+        if (comparison < 0)
+          i++;
+        else
+          j++;
+      }
+    }
+    return distance + (a.length - i) + (b.length - j);
+  }
+
+  /** List the tokens of one sorted array that are not in another.
+  */
+  protected static List<String> difference(String[] a, String[] b)
+  {
+    List<String> result = new ArrayList<String>();
+    int j = 0;
+    for (String token : a)
+    {
+      while (j < b.length && b[j].compareTo(token) < 0)
+        j++;
+      if (j == b.length || !b[j].equals(token))
+        result.add(token);
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    super.addStatistics(stats);
+    stats.add(statisticsPrefix+"Derivations",derivations);
+    stats.add(statisticsPrefix+"DerivedTokens",derivedTokens);
+  }
+
+  /** Key of one level's allow or deny set for a token set.
+  */
+  protected static class LevelKey
+  {
+    protected final AclFilterCache.TokenSetKey tokenSet;
+    protected final int level;
+    protected final boolean deny;
+
+    public LevelKey(AclFilterCache.TokenSetKey tokenSet, int level, boolean deny)
+    {
+      this.tokenSet = tokenSet;
+      this.level = level;
+      this.deny = deny;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof LevelKey))
+        return false;
+      LevelKey other = (LevelKey)o;
+      return level == other.level && deny == other.deny && tokenSet.equals(other.tokenSet);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return tokenSet.hashCode() * 31 + level * 2 + (deny ? 1 : 0);
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import java.util.*;
+
+/**
+* Keeps a window of the most recent authority request latencies, so that
+* percentiles can be computed from them.
+*/
+public class LatencyTracker
+{
+  /** The number of new samples after which a cached percentile is recomputed */
+  protected static final int RECOMPUTE_INTERVAL = 32;
+
+  protected final long[] samples;
+  protected int count = 0;
+  protected int next = 0;
+  protected int sinceRecompute = 0;
+  protected double cachedPercentile = -1.0;
+  protected long cachedValue = 0L;
+
+  public LatencyTracker(int windowSize)
+  {
+    samples = new long[windowSize];
+  }
+
+  /** Record a latency, in milliseconds.
+  */
+  public synchronized void record(long latency)
+  {
+    samples[next] = latency;
+    next = (next + 1) % samples.length;
+    if (count < samples.length)
+      count++;
+    sinceRecompute++;
+  }
+
+  /** Get the number of samples currently in the window.
+  */
+  public synchronized int getCount()
+  {
+    return count;
+  }
+
+  /** Compute the given percentile (0-100) of the recorded latencies.
+  *@return the latency, or -1 if nothing has been recorded yet.
+  */
+  public synchronized long getPercentile(double percentile)
+  {
+    if (count == 0)
+      return -1L;
+    if (percentile != cachedPercentile || sinceRecompute >= RECOMPUTE_INTERVAL)
+    {
+      long[] sorted = new long[count];
+      System.arraycopy(samples,0,sorted,0,count);
+      Arrays.sort(sorted);
+      int index = (int)Math.ceil(percentile / 100.0 * count) - 1;
+      if (index < 0)
+        index = 0;
+      if (index >= count)
+        index = count - 1;
+      cachedValue = sorted[index];
+      cachedPercentile = percentile;
+      sinceRecompute = 0;
+    }
+    return cachedValue;
+  }
+
+}
@@ -0,0 +1,357 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Iterates over the documents of one segment that a user may see, without building the
+* whole set.  Each level's allowed documents are the merged postings of the user's tokens in
+* the allow field, plus the level's open documents; the deny postings are only advanced to
+* the documents that are otherwise allowed.  The levels are intersected by leapfrogging, so
+* that when the iterator is advanced by a selective main query, only the postings around the
+* documents that query matches are read.  This is the filter engine's form for filters Solr
+* does not cache (see AclFilter); a cached filter is read in full anyway, and is better built
+* as a bit set.
+*/
+public class LeapfrogAclIterator extends DocIdSetIterator
+{
+  protected final DocIdSetIterator[] levels;
+  protected int doc = -1;
+
+  /** Constructor.
+  *@param levels are the documents allowed at each level; there must be at least one.
+  */
+  protected LeapfrogAclIterator(DocIdSetIterator[] levels)
+  {
+    this.levels = levels;
+  }
+
+  /** Build the iterator for a segment.
+  *@param tokens are the user's tokens, sorted in term order and without duplicates.
+  *@param openDocuments supplies the open documents of each level, or is null to read them from the postings.
+  */
+  public static DocIdSetIterator create(IndexReader reader, String[] allowFields, String[] denyFields, String[] tokens,
+    OpenDocumentCache openDocuments)
+    throws IOException
+  {
+    DocIdSetIterator[] levels = new DocIdSetIterator[allowFields.length];
+    for (int level = 0; level < allowFields.length; level++)
+    {
+      List<DocIdSetIterator> allowed = getTokenPostings(reader,allowFields[level],tokens);
+      // The cached bits are shared, and are only read
+      DocIdSet openSet = (openDocuments == null) ? null : openDocuments.getLevelDocuments(reader,level);
+      if (openSet != null)
+      {
+        DocIdSetIterator openIterator = openSet.iterator();
+        if (openIterator != null)
+          allowed.add(openIterator);
+      }
+      else
+      {
+        // Open documents have the special token in both the allow and the deny field
+        allowed.add(new ConjunctionIterator(new DocIdSetIterator[]{
+          new PostingsIterator(reader,new Term(allowFields[level],ManifoldCFSearchComponent.NOSECURITY_TOKEN)),
+          new PostingsIterator(reader,new Term(denyFields[level],ManifoldCFSearchComponent.NOSECURITY_TOKEN))}));
+      }
+      DocIdSetIterator levelIterator = new DisjunctionIterator(allowed);
+      List<DocIdSetIterator> denied = getTokenPostings(reader,denyFields[level],tokens);
+      if (denied.size() > 0)
+        levelIterator = new ExclusionIterator(levelIterator,new DisjunctionIterator(denied));
+      levels[level] = levelIterator;
+    }
+    return new LeapfrogAclIterator(levels);
+  }
+
+  /** Get the postings of the tokens a field contains.
+  */
+  protected static List<DocIdSetIterator> getTokenPostings(IndexReader reader, String field, String[] tokens)
+    throws IOException
+  {
+    List<DocIdSetIterator> rval = new ArrayList<DocIdSetIterator>();
+    SortedTermIntersection intersection = new SortedTermIntersection(reader,field,tokens);
+    try
+    {
+      while (intersection.next())
+      {
+        TermDocs termDocs = reader.termDocs();
+        termDocs.seek(intersection.getTermEnum());
+        rval.add(new PostingsIterator(termDocs));
+      }
+    }
+    finally
+    {
+      intersection.close();
+    }
+    return rval;
+  }
+
+  @Override
+  public int docID()
+  {
+    return doc;
+  }
+
+  @Override
+  public int nextDoc()
+    throws IOException
+  {
+    if (doc == NO_MORE_DOCS)
+      return doc;
+    return advance(doc + 1);
+  }
+
+  @Override
+  public int advance(int target)
+    throws IOException
+  {
+    doc = leapfrog(levels,target);
+    return doc;
+  }
+
+  /** Advance every iterator to the first document at or after the target that they all have.
+  *@return the document, or NO_MORE_DOCS.
+  */
+  protected static int leapfrog(DocIdSetIterator[] iterators, int target)
+    throws IOException
+  {
+    int candidate = target;
+    int i = 0;
+    int agreed = 0;
+    while (agreed < iterators.length)
+    {
+      DocIdSetIterator iterator = iterators[i];
+      int current = iterator.docID();
+      if (current < candidate)
+        current = iterator.advance(candidate);
+      if (current == NO_MORE_DOCS)
+        return NO_MORE_DOCS;
+      if (current > candidate)
+      {
+        // Everyone else has to catch up to this one
+        candidate = current;
+        agreed = 1;
+      }
+      else
+        agreed++;
+      i = (i + 1) % iterators.length;
+    }
+    return candidate;
+  }
+
+  /** The documents containing a term.  Deleted documents are skipped.  Like a TermScorer, it
+  * leaves its TermDocs to be garbage collected.
+  */
+  protected static class PostingsIterator extends DocIdSetIterator
+  {
+    protected final TermDocs termDocs;
+    protected int doc = -1;
+
+    public PostingsIterator(IndexReader reader, Term term)
+      throws IOException
+    {
+      this(reader.termDocs(term));
+    }
+
+    public PostingsIterator(TermDocs termDocs)
+    {
+      this.termDocs = termDocs;
+    }
+
+    @Override
+    public int docID()
+    {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc()
+      throws IOException
+    {
+      doc = termDocs.next() ? termDocs.doc() : NO_MORE_DOCS;
+      return doc;
+    }
+
+    @Override
+    public int advance(int target)
+      throws IOException
+    {
+      doc = termDocs.skipTo(target) ? termDocs.doc() : NO_MORE_DOCS;
+      return doc;
+    }
+  }
+
+  /** The documents of all the given iterators, merged with a heap ordered by document.
+  */
+  protected static class DisjunctionIterator extends DocIdSetIterator
+  {
+    protected final DocIdSetIterator[] heap;
+    protected int size;
+    protected int doc = -1;
+
+    public DisjunctionIterator(List<DocIdSetIterator> iterators)
+    {
+      heap = iterators.toArray(new DocIdSetIterator[iterators.size()]);
+      size = heap.length;
+      // They are all at -1, so this is already a heap
+    }
+
+    @Override
+    public int docID()
+    {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc()
+      throws IOException
+    {
+      if (doc == NO_MORE_DOCS)
+        return doc;
+      return advance(doc + 1);
+    }
+
+    @Override
+    public int advance(int target)
+      throws IOException
+    {
+      while (size > 0 && heap[0].docID() < target)
+      {
+        if (heap[0].advance(target) == NO_MORE_DOCS)
+        {
+          heap[0] = heap[--size];
+          heap[size] = null;
+        }
+        if (size > 0)
+          downHeap();
+      }
+      doc = (size == 0) ? NO_MORE_DOCS : heap[0].docID();
+      return doc;
+    }
+
+    protected void downHeap()
+    {
+      int i = 0;
+      DocIdSetIterator node = heap[0];
+      while (true)
+      {
+        int child = 2 * i + 1;
+        if (child >= size)
+          break;
+        if (child + 1 < size && heap[child + 1].docID() < heap[child].docID())
+          child++;
+        if (heap[child].docID() >= node.docID())
+          break;
+        heap[i] = heap[child];
+        i = child;
+      }
+      heap[i] = node;
+    }
+  }
+
+  /** The documents all the given iterators have.
+  */
+  protected static class ConjunctionIterator extends DocIdSetIterator
+  {
+    protected final DocIdSetIterator[] iterators;
+    protected int doc = -1;
+
+    public ConjunctionIterator(DocIdSetIterator[] iterators)
+    {
+      this.iterators = iterators;
+    }
+
+    @Override
+    public int docID()
+    {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc()
+      throws IOException
+    {
+      if (doc == NO_MORE_DOCS)
+        return doc;
+      return advance(doc + 1);
+    }
+
+    @Override
+    public int advance(int target)
+      throws IOException
+    {
+      doc = leapfrog(iterators,target);
+      return doc;
+    }
+  }
+
+  /** The documents of one iterator that another does not have.  The excluded iterator is
+  * only advanced to the included documents.
+  */
+  protected static class ExclusionIterator extends DocIdSetIterator
+  {
+    protected final DocIdSetIterator included;
+    protected final DocIdSetIterator excluded;
+    protected int doc = -1;
+
+    public ExclusionIterator(DocIdSetIterator included, DocIdSetIterator excluded)
+    {
+      this.included = included;
+      this.excluded = excluded;
+    }
+
+    @Override
+    public int docID()
+    {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc()
+      throws IOException
+    {
+      if (doc == NO_MORE_DOCS)
+        return doc;
+      return advance(doc + 1);
+    }
+
+    @Override
+    public int advance(int target)
+      throws IOException
+    {
+      int candidate = included.docID();
+      if (candidate < target)
+        candidate = included.advance(target);
+      while (candidate != NO_MORE_DOCS)
+      {
+        int other = excluded.docID();
+        if (other < candidate)
+          other = excluded.advance(candidate);
+        if (other != candidate)
+          break;
+        candidate = included.nextDoc();
+      }
+      doc = candidate;
+      return doc;
+    }
+  }
+
+}
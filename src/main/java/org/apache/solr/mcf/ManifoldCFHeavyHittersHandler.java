@@ -0,0 +1,105 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+/**
+* Admin request handler that reports the users and token sets accounting for the most
+* requests and authority time, as tracked by a ManifoldCF search component or query parser
+* plugin configured with TrackHeavyHitters.  The plugin is named by the SearchComponent or
+* QueryParser init parameter.
+*/
+public class ManifoldCFHeavyHittersHandler extends RequestHandlerBase
+{
+  String searchComponentName = null;
+  String queryParserName = null;
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(NamedList args)
+  {
+    super.init(args);
+    searchComponentName = (String)args.get("SearchComponent");
+    queryParserName = (String)args.get("QueryParser");
+    if ((searchComponentName == null) == (queryParserName == null))
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error initializing ManifoldCFHeavyHittersHandler: exactly one of 'SearchComponent' or 'QueryParser' is required");
+  }
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp)
+    throws Exception
+  {
+    SolrCore core = req.getCore();
+    ManifoldCFSecurityService service;
+    if (searchComponentName != null)
+    {
+      Object component = core.getSearchComponent(searchComponentName);
+      if (!(component instanceof ManifoldCFSearchComponent))
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "'"+searchComponentName+"' is not a ManifoldCF search component");
+      service = ((ManifoldCFSearchComponent)component).service;
+    }
+    else
+    {
+      Object plugin = core.getQueryPlugin(queryParserName);
+      if (!(plugin instanceof ManifoldCFQParserPlugin))
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "'"+queryParserName+"' is not a ManifoldCF query parser plugin");
+      service = ((ManifoldCFQParserPlugin)plugin).service;
+    }
+    // The query parser plugin's service is set up when the plugin is first used
+    HeavyHitters heavyHitters = (service == null) ? null : service.heavyHitters;
+    if (heavyHitters == null)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Heavy hitter tracking is not enabled; set 'TrackHeavyHitters'");
+    NamedList<Object> result = new SimpleOrderedMap<Object>();
+    heavyHitters.addStatistics(result);
+    rsp.add("heavyHitters",result);
+  }
+
+  //---------------------------------------------------------------------------------
+  // SolrInfoMBean
+  //---------------------------------------------------------------------------------
+  @Override
+  public String getDescription()
+  {
+    return "ManifoldCF heavy hitter report";
+  }
+
+  @Override
+  public String getVersion()
+  {
+    return "$Revision$";
+  }
+
+  @Override
+  public String getSourceId()
+  {
+    return "$Id$";
+  }
+
+  @Override
+  public String getSource()
+  {
+    return "$URL$";
+  }
+
+}
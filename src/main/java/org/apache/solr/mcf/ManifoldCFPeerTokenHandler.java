@@ -0,0 +1,141 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.RawResponseWriter;
+import org.apache.solr.response.SolrQueryResponse;
+
+import java.util.*;
+
+/**
+* Request handler that answers the token lookups of other Solr nodes sharing their token
+* caches (see PeerTokenCacheURLs).  It takes the same parameters as the authority service's
+* /UserACLs request, and answers in the same text format, so it must be registered under a
+* name ending in /UserACLs; the peer URL is the name without that suffix.  The tokens come
+* from the token cache of a ManifoldCF search component or query parser plugin, named by the
+* SearchComponent or QueryParser init parameter, or from the authority service on a miss.
+*/
+public class ManifoldCFPeerTokenHandler extends RequestHandlerBase
+{
+  String searchComponentName = null;
+  String queryParserName = null;
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(NamedList args)
+  {
+    super.init(args);
+    searchComponentName = (String)args.get("SearchComponent");
+    queryParserName = (String)args.get("QueryParser");
+    if ((searchComponentName == null) == (queryParserName == null))
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error initializing ManifoldCFPeerTokenHandler: exactly one of 'SearchComponent' or 'QueryParser' is required");
+  }
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp)
+    throws Exception
+  {
+    SolrCore core = req.getCore();
+    ManifoldCFSecurityService service;
+    if (searchComponentName != null)
+    {
+      Object component = core.getSearchComponent(searchComponentName);
+      if (!(component instanceof ManifoldCFSearchComponent))
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "'"+searchComponentName+"' is not a ManifoldCF search component");
+      service = ((ManifoldCFSearchComponent)component).service;
+    }
+    else
+    {
+      Object plugin = core.getQueryPlugin(queryParserName);
+      if (!(plugin instanceof ManifoldCFQParserPlugin))
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "'"+queryParserName+"' is not a ManifoldCF query parser plugin");
+      // Peers may ask before this node has parsed a query of its own
+      ((ManifoldCFQParserPlugin)plugin).initializeService(core);
+      service = ((ManifoldCFQParserPlugin)plugin).service;
+    }
+
+    // Same parameters as the authority service
+    SolrParams params = req.getParams();
+    Map<String,String> domainMap = new HashMap<String,String>();
+    String userName = params.get("username");
+    if (userName != null)
+      domainMap.put("",userName);
+    int i = 0;
+    while (true)
+    {
+      userName = params.get("username_"+i);
+      String domain = params.get("domain_"+i);
+      if (userName == null || domain == null)
+        break;
+      domainMap.put(domain,userName);
+      i++;
+    }
+    if (domainMap.size() == 0)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "No user name given");
+
+    List<String> tokens = service.getOwnedAccessTokens(domainMap);
+    StringBuilder sb = new StringBuilder();
+    for (String token : tokens)
+      sb.append("TOKEN:").append(token).append("\n");
+    ContentStreamBase content = new ContentStreamBase.StringStream(sb.toString());
+    content.setContentType("text/plain; charset=utf-8");
+    rsp.add(RawResponseWriter.CONTENT,content);
+    // The response is the text itself
+    ModifiableSolrParams rawParams = new ModifiableSolrParams(params);
+    rawParams.set(CommonParams.WT,"raw");
+    req.setParams(rawParams);
+    // A peer caches the answer itself
+    rsp.setHttpCaching(false);
+  }
+
+  //---------------------------------------------------------------------------------
+  // SolrInfoMBean
+  //---------------------------------------------------------------------------------
+  @Override
+  public String getDescription()
+  {
+    return "ManifoldCF peer token lookup";
+  }
+
+  @Override
+  public String getVersion()
+  {
+    return "$Revision$";
+  }
+
+  @Override
+  public String getSourceId()
+  {
+    return "$Id$";
+  }
+
+  @Override
+  public String getSource()
+  {
+    return "$URL$";
+  }
+
+}
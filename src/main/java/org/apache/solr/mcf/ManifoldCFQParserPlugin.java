@@ -16,30 +16,28 @@
 */
 package org.apache.solr.mcf;
 
-import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.solr.search.QParserPlugin;
 import org.apache.solr.search.QParser;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.request.SolrQueryRequest;
-import org.apache.solr.common.SolrException;
-import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.SolrCore;
-import org.apache.commons.httpclient.*;
-import org.apache.commons.httpclient.methods.*;
-import org.apache.commons.httpclient.params.*;
+import org.apache.solr.core.SolrInfoMBean;
 import org.slf4j.*;
 
 import java.io.*;
 import java.util.*;
-import java.net.*;
 
 /**
 * Query parser plugin for ManifoldCF-specific document-level access control.
+* Query parser plugins are not registered as MBeans by Solr, so this plugin
+* registers itself with the core's info registry when it is first used.
 */
-public class ManifoldCFQParserPlugin extends QParserPlugin
+public class ManifoldCFQParserPlugin extends QParserPlugin implements SolrInfoMBean
 {
   /** The parameter that is supposed to contain the authenticated user name, possibly including the AD domain */
   static final public String AUTHENTICATED_USER_NAME = "AuthenticatedUserName";
@@ -54,6 +52,13 @@ public class ManifoldCFQParserPlugin extends QParserPlugin
    * It's meant to work with mod_authz_annotate,
    * running under Apache */
   static final public String USER_TOKENS = "UserTokens";
+
+  /** This parameter is the ID of a token set registered with ManifoldCFTokenSetHandler, to use
+   * instead of the UserTokens parameters */
+  static final public String USER_TOKEN_SET = "UserTokenSet";
+
+  /** Local parameter, as in {!mcf_security tokenset=...}, equivalent to UserTokenSet */
+  static final public String TOKEN_SET_LOCAL_PARAM = "tokenset";
   
   /** Special token for null security fields */
   static final public String NOSECURITY_TOKEN = "__nosecurity__";
@@ -62,18 +67,10 @@ public class ManifoldCFQParserPlugin extends QParserPlugin
   private static final Logger LOG = LoggerFactory.getLogger(ManifoldCFQParserPlugin.class);
 
   // Member variables
-  String authorityBaseURL = null;
-  String fieldAllowDocument = null;
-  String fieldDenyDocument = null;
-  String fieldAllowShare = null;
-  String fieldDenyShare = null;
-  String fieldAllowParent = null;
-  String fieldDenyParent = null;
-  int socketTimeOut;
-  Integer connectionManagerSynchronizer = new Integer(0);
-  MultiThreadedHttpConnectionManager httpConnectionManager = null;
-  HttpClient client = null;
-  int poolSize;
+  NamedList<?> initArgs = null;
+  String serviceName = null;
+  volatile ManifoldCFSecurityService service = null;
+  volatile boolean registered = false;
   
   public ManifoldCFQParserPlugin()
   {
@@ -82,54 +79,85 @@ public class ManifoldCFQParserPlugin extends QParserPlugin
   @Override
   public void init(NamedList args)
   {
-    authorityBaseURL = (String)args.get("AuthorityServiceBaseURL");
-    if (authorityBaseURL == null)
-      authorityBaseURL = "http://localhost:8345/mcf-authority-service";
-    Integer timeOut = (Integer)args.get("SocketTimeOut");
-    socketTimeOut = timeOut == null ? 300000 : timeOut;
-    String allowAttributePrefix = (String)args.get("AllowAttributePrefix");
-    String denyAttributePrefix = (String)args.get("DenyAttributePrefix");
-    if (allowAttributePrefix == null)
-      allowAttributePrefix = "allow_token_";
-    if (denyAttributePrefix == null)
-      denyAttributePrefix = "deny_token_";
-    fieldAllowDocument = allowAttributePrefix+"document";
-    fieldDenyDocument = denyAttributePrefix+"document";
-    fieldAllowShare = allowAttributePrefix+"share";
-    fieldDenyShare = denyAttributePrefix+"share";
-    fieldAllowParent = allowAttributePrefix+"parent";
-    fieldDenyParent = denyAttributePrefix+"parent";
-    Integer connectionPoolSize = (Integer)args.get("ConnectionPoolSize");
-    poolSize = (connectionPoolSize==null)?50:connectionPoolSize.intValue();
+    initArgs = args;
+    // The core is not known until the plugin is first used
+    serviceName = (String)args.get("SecurityService");
   }
   
-  protected void initializeClient(SolrCore core)
+  protected void initializeService(SolrCore core)
   {
-    synchronized (connectionManagerSynchronizer)
+    if (registered)
+      return;
+    synchronized (this)
     {
-      if (client == null)
-      {
-        // Initialize the connection pool
-        HttpConnectionManagerParams params = new HttpConnectionManagerParams();
-        params.setTcpNoDelay(true);
-        params.setStaleCheckingEnabled(true);
-        params.setDefaultMaxConnectionsPerHost(poolSize);
-        params.setMaxTotalConnections(poolSize);
-        httpConnectionManager = new MultiThreadedHttpConnectionManager();
-        httpConnectionManager.setParams(params);
-        client = new HttpClient(httpConnectionManager);
-        core.addCloseHook(new CloseHandler());
-      }
+      if (registered)
+        return;
+      service = ManifoldCFSecurityService.getService(core,serviceName,initArgs);
+      core.getInfoRegistry().put(getName()+"@"+Integer.toHexString(System.identityHashCode(this)),this);
+      registered = true;
     }
   }
 
   @Override
   public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req)
   {
-    initializeClient(req.getCore());
+    initializeService(req.getCore());
     return new ManifoldCFQueryParser(qstr,localParams,params,req);
   }
 
+  //---------------------------------------------------------------------------------
+  // SolrInfoMBean
+  //---------------------------------------------------------------------------------
+  @Override
+  public String getName()
+  {
+    return ManifoldCFQParserPlugin.class.getName();
+  }
+
+  @Override
+  public String getVersion()
+  {
+    return "$Revision$";
+  }
+
+  @Override
+  public String getDescription()
+  {
+    return "ManifoldCF Solr security enforcement query parser plugin";
+  }
+
+  @Override
+  public Category getCategory()
+  {
+    return Category.QUERYHANDLER;
+  }
+
+  @Override
+  public String getSourceId()
+  {
+    return "$Id$";
+  }
+
+  @Override
+  public String getSource()
+  {
+    return "$URL$";
+  }
+
+  @Override
+  public java.net.URL[] getDocs()
+  {
+    return null;
+  }
+
+  @Override
+  public NamedList<Object> getStatistics()
+  {
+    if (service == null)
+      return new SimpleOrderedMap<Object>();
+    return service.getStatistics();
+  }
+
   protected class ManifoldCFQueryParser extends QParser
   {
     public ManifoldCFQueryParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req)
@@ -143,269 +171,19 @@ public class ManifoldCFQParserPlugin extends QParserPlugin
     **/
     public Query parse() throws ParseException
     {
-      SolrParams params = req.getParams();
-
-      List<String> userAccessTokens;
-      
-      // Map from domain to user
-      Map<String,String> domainMap = new HashMap<String,String>();
-      
-      // Get the authenticated user name from the parameters
-      String authenticatedUserName = params.get(AUTHENTICATED_USER_NAME);
-      if (authenticatedUserName != null)
-      {
-        String authenticatedUserDomain = params.get(AUTHENTICATED_USER_DOMAIN);
-        if (authenticatedUserDomain == null)
-          authenticatedUserDomain = "";
-        domainMap.put(authenticatedUserDomain, authenticatedUserName);
-      }
-      else
-      {
-        // Look for user names/domains using the prefix
-        int i = 0;
-        while (true)
-        {
-          String userName = params.get(AUTHENTICATED_USER_NAME_PREFIX+i);
-          String domain = params.get(AUTHENTICATED_USER_DOMAIN_PREFIX+i);
-          if (userName == null)
-            break;
-          if (domain == null)
-            domain = "";
-          domainMap.put(domain,userName);
-          i++;
-        }
-      }
-      
-      // If this parameter is empty or does not exist, we have to presume this is a guest, and treat them accordingly
-      if (domainMap.size() == 0)
-      {
-        // No authenticated user name.
-        // mod_authz_annotate may be in use upstream, so look for tokens from it.
-        userAccessTokens = new ArrayList<String>();
-        String[] passedTokens = params.getParams(USER_TOKENS);
-        if (passedTokens == null)
-        {
-          // Only return 'public' documents (those with no security tokens at all)
-          LOG.info("Default no-user response (open documents only)");
-        }
-        else
-        {
-          // Only return 'public' documents (those with no security tokens at all)
-          LOG.info("Group tokens received from caller");
-          userAccessTokens.addAll(Arrays.asList(passedTokens));
-        }
-      }
-      else
-      {
-        if(LOG.isInfoEnabled()){
-          StringBuilder sb = new StringBuilder("[");
-          boolean first = true;
-          for (String domain : domainMap.keySet())
-          {
-            if (!first)
-              sb.append(",");
-            else
-              first = false;
-            sb.append(domain).append(":").append(domainMap.get(domain));
-          }
-          sb.append("]");
-          LOG.info("Trying to match docs for user '"+sb.toString()+"'");
-        }
-        // Valid authenticated user name.  Look up access tokens for the user.
-        // Check the configuration arguments for validity
-        if (authorityBaseURL == null)
-        {
-          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error initializing ManifoldCFSecurityFilter component: 'AuthorityServiceBaseURL' init parameter required");
-        }
-        try
-        {
-          userAccessTokens = getAccessTokens(domainMap);
-        }
-        catch (IOException e)
-        {
-          LOG.error("IO exception communicating with MCF authority service: "+e.getMessage(),e);
-          throw new ParseException("IO exception communicating with MCF authority service: "+e.getMessage());
-        }
-      }
-
-      BooleanQuery bq = new BooleanQuery();
-      //bf.setMaxClauseCount(100000);
-      
-      Query allowShareOpen = new TermQuery(new Term(fieldAllowShare,NOSECURITY_TOKEN));
-      Query denyShareOpen = new TermQuery(new Term(fieldDenyShare,NOSECURITY_TOKEN));
-      
-      Query allowParentOpen = new TermQuery(new Term(fieldAllowParent,NOSECURITY_TOKEN));
-      Query denyParentOpen = new TermQuery(new Term(fieldDenyParent,NOSECURITY_TOKEN));
-
-      Query allowDocumentOpen = new TermQuery(new Term(fieldAllowDocument,NOSECURITY_TOKEN));
-      Query denyDocumentOpen = new TermQuery(new Term(fieldDenyDocument,NOSECURITY_TOKEN));
-      
-      if (userAccessTokens.size() == 0)
-      {
-        // Only open documents can be included.
-        // That query is:
-        // (fieldAllowShare is empty AND fieldDenyShare is empty AND fieldAllowDocument is empty AND fieldDenyDocument is empty)
-        // We're trying to map to:  -(fieldAllowShare:*) , which should be pretty efficient in Solr because it is negated.  If this turns out not to be so, then we should
-        // have the SolrConnector inject a special token into these fields when they otherwise would be empty, and we can trivially match on that token.
-        bq.add(allowShareOpen,BooleanClause.Occur.MUST);
-        bq.add(denyShareOpen,BooleanClause.Occur.MUST);
-        bq.add(allowParentOpen,BooleanClause.Occur.MUST);
-        bq.add(denyParentOpen,BooleanClause.Occur.MUST);
-        bq.add(allowDocumentOpen,BooleanClause.Occur.MUST);
-        bq.add(denyDocumentOpen,BooleanClause.Occur.MUST);
-      }
-      else
-      {
-        // Extend the query appropriately for each user access token.
-        bq.add(calculateCompleteSubquery(fieldAllowShare,fieldDenyShare,allowShareOpen,denyShareOpen,userAccessTokens),
-          BooleanClause.Occur.MUST);
-        bq.add(calculateCompleteSubquery(fieldAllowParent,fieldDenyParent,allowParentOpen,denyParentOpen,userAccessTokens),
-          BooleanClause.Occur.MUST);
-        bq.add(calculateCompleteSubquery(fieldAllowDocument,fieldDenyDocument,allowDocumentOpen,denyDocumentOpen,userAccessTokens),
-          BooleanClause.Occur.MUST);
-      }
-
-      return new ConstantScoreQuery(bq);
-    }
-
-    /** Calculate a complete subclause, representing something like:
-    * ((fieldAllowShare is empty AND fieldDenyShare is empty) OR fieldAllowShare HAS token1 OR fieldAllowShare HAS token2 ...)
-    *     AND fieldDenyShare DOESN'T_HAVE token1 AND fieldDenyShare DOESN'T_HAVE token2 ...
-    */
-    protected Query calculateCompleteSubquery(String allowField, String denyField, Query allowOpen, Query denyOpen, List<String> userAccessTokens)
-    {
-      BooleanQuery bq = new BooleanQuery();
-      bq.setMaxClauseCount(1000000);
-      
-      // Add the empty-acl case
-      BooleanQuery subUnprotectedClause = new BooleanQuery();
-      subUnprotectedClause.add(allowOpen,BooleanClause.Occur.MUST);
-      subUnprotectedClause.add(denyOpen,BooleanClause.Occur.MUST);
-      bq.add(subUnprotectedClause,BooleanClause.Occur.SHOULD);
-      for (String accessToken : userAccessTokens)
-      {
-        bq.add(new TermQuery(new Term(allowField,accessToken)),BooleanClause.Occur.SHOULD);
-        bq.add(new TermQuery(new Term(denyField,accessToken)),BooleanClause.Occur.MUST_NOT);
-      }
-      return bq;
-    }
-    
-    // Protected methods
-    
-    /** Get access tokens given a username */
-    protected List<String> getAccessTokens(Map<String,String> domainMap)
-      throws IOException
-    {
-      // We can make this more complicated later, with support for https etc., but this is enough to demonstrate how it all should work.
-      StringBuilder urlBuffer = new StringBuilder(authorityBaseURL);
-      urlBuffer.append("/UserACLs");
-      int i = 0;
-      for (String domain : domainMap.keySet())
-      {
-        if (i == 0)
-          urlBuffer.append("?");
-        else
-          urlBuffer.append("&");
-        // For backwards compatibility, handle the singleton case specially
-        if (domainMap.size() == 1 && domain.length() == 0)
-        {
-          urlBuffer.append("username=").append(URLEncoder.encode(domainMap.get(domain),"utf-8"));
-        }
-        else
-        {
-          urlBuffer.append("username_").append(Integer.toString(i)).append("=").append(URLEncoder.encode(domainMap.get(domain),"utf-8")).append("&")
-            .append("domain_").append(Integer.toString(i)).append("=").append(URLEncoder.encode(domain,"utf-8"));
-        }
-        i++;
-      }
-      String theURL = urlBuffer.toString();
-        
-      GetMethod method = new GetMethod(theURL);
+      String tokenSetID = (localParams == null) ? null : localParams.get(TOKEN_SET_LOCAL_PARAM);
+      // As in {!mcf_security cache=false}
+      boolean cached = (localParams == null) || localParams.getBool(CommonParams.CACHE,true);
       try
       {
-        method.getParams().setParameter("http.socket.timeout", socketTimeOut);
-        method.setFollowRedirects(true);
-        int rval = client.executeMethod(method);
-        if (rval != 200)
-        {
-          String response = method.getResponseBodyAsString();
-          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,"Couldn't fetch user's access tokens from ManifoldCF authority service: "+Integer.toString(rval)+"; "+response);
-        }
-        InputStream is = method.getResponseBodyAsStream();
-        try
-        {
-          Reader r = new InputStreamReader(is,method.getResponseCharSet());
-          try
-          {
-            BufferedReader br = new BufferedReader(r);
-            try
-            {
-              // Read the tokens, one line at a time.  If any authorities are down, we have no current way to note that, but someday we will.
-              List<String> tokenList = new ArrayList<String>();
-              while (true)
-              {
-                String line = br.readLine();
-                if (line == null)
-                  break;
-                if (line.startsWith("TOKEN:"))
-                {
-                  tokenList.add(line.substring("TOKEN:".length()));
-                }
-                else
-                {
-                  // It probably says something about the state of the authority(s) involved, so log it
-                  LOG.info("Saw authority response "+line);
-                }
-              }
-              return tokenList;
-            }
-            finally
-            {
-              br.close();
-            }
-          }
-          finally
-          {
-            r.close();
-          }
-        }
-        finally
-        {
-          is.close();
-        }
+        return service.getAccessQuery(req,tokenSetID,cached);
       }
-      finally
-      {
-        method.releaseConnection();
-      }
-    }
-  }
-
-  /** CloseHook implementation.
-  */
-  protected class CloseHandler extends CloseHook
-  {
-    public CloseHandler()
-    {
-    }
-    
-    @Override
-    public void preClose(SolrCore core)
-    {
-    }
-    
-    @Override
-    public void postClose(SolrCore core)
-    {
-      // Close the connection pool
-      if (httpConnectionManager != null)
+      catch (IOException e)
       {
-        httpConnectionManager.shutdown();
-        httpConnectionManager = null;
-        client = null;
+        LOG.error("IO exception communicating with MCF authority service: "+e.getMessage(),e);
+        throw new ParseException("IO exception communicating with MCF authority service: "+e.getMessage());
       }
     }
-    
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,1030 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.search.*;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.commons.httpclient.*;
+import org.slf4j.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* The authority and ACL machinery behind the ManifoldCF search component and query parser
+* plugin: configuration, connection pool, token and ACL caches, and statistics.  The plugins
+* of a core that are configured alike share one service, so a plugin never runs with another
+* plugin's settings; plugins configured with the same SecurityService name share a service
+* too, and must then be configured alike.  A user's tokens are resolved at most once per
+* request and service, however many plugins ask for them.
+*/
+public class ManifoldCFSecurityService
+{
+  /** A logger we can use */
+  private static final Logger LOG = LoggerFactory.getLogger(ManifoldCFSecurityService.class);
+
+  /** The services of each core, by SecurityService name and, for unnamed services, configuration */
+  protected static final Map<SolrCore,Map<List<String>,ManifoldCFSecurityService>> services = new WeakHashMap<SolrCore,Map<List<String>,ManifoldCFSecurityService>>();
+
+  // Member variables
+  String authorityBaseURL = null;
+  String fieldAllowDocument = null;
+  String fieldDenyDocument = null;
+  String fieldAllowShare = null;
+  String fieldDenyShare = null;
+  String fieldAllowParent = null;
+  String fieldDenyParent = null;
+  int socketTimeOut;
+  int connectionTimeOut;
+  boolean authorityCompression = false;
+  boolean authorityBinaryTokens = false;
+  AuthorityConnectionPool connectionPool = null;
+  HttpClient client = null;
+  int poolSize;
+  boolean staleConnectionCheck = false;
+  long idleConnectionTimeOut;
+  long idleConnectionCheckInterval;
+  int prewarmConnections;
+  String hedgeAuthorityBaseURL = null;
+  AuthorityRequestHedger hedger = null;
+  long authorityTimeAllowed;
+  String deadlineFallback = null;
+  TokenCache staleTokenCache = null;
+  TokenCache tokenCache = null;
+  long tokenCacheLifetime;
+  int tokenCacheSize;
+  boolean shareAuthorityClient = false;
+  SharedAuthorityClient sharedClient = null;
+  NegativeTokenCache unknownUserCache = null;
+  NegativeTokenCache authorityErrorCache = null;
+  HeavyHitters heavyHitters = null;
+  AdaptiveConcurrencyLimiter limiter = null;
+  String aclEngine = null;
+  boolean parallelAclConstruction = false;
+  AclFilterCache aclFilterCache = null;
+  String aclFilterCacheSnapshotFile = null;
+  OpenDocumentCache openDocumentCache = null;
+  TokenPostingsCache tokenPostingsCache = null;
+  IncrementalAclCache incrementalAclCache = null;
+  AclCaches aclCaches = null;
+  final AclIndexStatistics aclIndexStatistics = new AclIndexStatistics();
+  UninvertedAclCache uninvertedAclCache = null;
+  int uninvertedAclMinTokens;
+  boolean compactTokens = false;
+  String[] allowFields = null;
+  String[] denyFields = null;
+  final AtomicLong deadlinesExceeded = new AtomicLong(0L);
+  final AtomicLong requestTokenLookups = new AtomicLong(0L);
+  final AtomicLong requestTokenReuses = new AtomicLong(0L);
+  boolean pipelinedLookup = false;
+  ThreadPoolExecutor lookupExecutor = null;
+  final AtomicLong pipelinedLookups = new AtomicLong(0L);
+  ConsistentHashRing peerRing = null;
+  String peerSelfURL = null;
+  int peerTimeOut;
+  final AtomicLong peerTokenRequests = new AtomicLong(0L);
+  final AtomicLong peerTokenErrors = new AtomicLong(0L);
+  final AtomicLong peerTokensServed = new AtomicLong(0L);
+  ResourceAccounting resourceAccounting = null;
+  final AtomicLong leapfrogAclFilters = new AtomicLong(0L);
+  /** The configuration the service was created with, to match other plugins' against */
+  final String configuration;
+  boolean started = false;
+
+  /** Get the service of a core for a plugin, creating and starting it if need be.
+  * Without a SecurityService name, the plugin shares the service of the core's other unnamed
+  * plugins with exactly the same configuration, and otherwise gets one of its own.
+  *@param core is the core the plugin belongs to.
+  *@param name is the SecurityService name the plugin is configured with, or null if none.
+  *@param args are the plugin's configuration arguments.
+  */
+  public static ManifoldCFSecurityService getService(SolrCore core, String name, NamedList<?> args)
+  {
+    String configuration = describeConfiguration(args);
+    List<String> key = Arrays.asList(name,(name==null)?configuration:null);
+    ManifoldCFSecurityService service;
+    synchronized (services)
+    {
+      Map<List<String>,ManifoldCFSecurityService> coreServices = services.get(core);
+      if (coreServices == null)
+      {
+        coreServices = new HashMap<List<String>,ManifoldCFSecurityService>();
+        services.put(core,coreServices);
+      }
+      service = coreServices.get(key);
+      if (service == null)
+      {
+        service = new ManifoldCFSecurityService(args);
+        coreServices.put(key,service);
+      }
+      else if (!service.configuration.equals(configuration))
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error initializing ManifoldCF plugin: it is configured differently from the other plugins of security service '"+name+"'");
+    }
+    service.start(core);
+    return service;
+  }
+
+  /** Constructor.
+  *@param args are the configuration arguments.
+  */
+  public ManifoldCFSecurityService(NamedList<?> args)
+  {
+    configuration = describeConfiguration(args);
+    authorityBaseURL = (String)args.get("AuthorityServiceBaseURL");
+    if (authorityBaseURL == null)
+      authorityBaseURL = "http://localhost:8345/mcf-authority-service";
+    Integer timeOut = (Integer)args.get("SocketTimeOut");
+    socketTimeOut = timeOut == null ? 300000 : timeOut;
+    Boolean compression = (Boolean)args.get("AuthorityCompression");
+    authorityCompression = (compression != null && compression.booleanValue());
+    Boolean binaryTokens = (Boolean)args.get("AuthorityBinaryTokens");
+    authorityBinaryTokens = (binaryTokens != null && binaryTokens.booleanValue());
+    String allowAttributePrefix = (String)args.get("AllowAttributePrefix");
+    String denyAttributePrefix = (String)args.get("DenyAttributePrefix");
+    if (allowAttributePrefix == null)
+      allowAttributePrefix = "allow_token_";
+    if (denyAttributePrefix == null)
+      denyAttributePrefix = "deny_token_";
+    fieldAllowDocument = allowAttributePrefix+"document";
+    fieldDenyDocument = denyAttributePrefix+"document";
+    fieldAllowShare = allowAttributePrefix+"share";
+    fieldDenyShare = denyAttributePrefix+"share";
+    fieldAllowParent = allowAttributePrefix+"parent";
+    fieldDenyParent = denyAttributePrefix+"parent";
+    allowFields = new String[]{fieldAllowShare,fieldAllowParent,fieldAllowDocument};
+    denyFields = new String[]{fieldDenyShare,fieldDenyParent,fieldDenyDocument};
+    aclEngine = (String)args.get("AclEngine");
+    if (aclEngine == null)
+      aclEngine = ManifoldCFSearchComponent.ACL_ENGINE_QUERY;
+    if (!aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_QUERY) && !aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_FILTER) &&
+      !aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_UNINVERTED) && !aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_AUTO))
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error initializing ManifoldCFSecurityFilter component: 'AclEngine' must be one of 'query', 'filter', 'uninverted' or 'auto'");
+    boolean filterEngine = aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_FILTER) || aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_AUTO);
+    if (aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_UNINVERTED) || aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_AUTO))
+    {
+      Number uninvertedAclCacheMemory = (Number)args.get("UninvertedAclCacheMemoryMB");
+      uninvertedAclCache = new UninvertedAclCache((long)(((uninvertedAclCacheMemory==null)?256.0:uninvertedAclCacheMemory.doubleValue()) * 1024.0 * 1024.0));
+    }
+    Integer minTokens = (Integer)args.get("UninvertedAclMinTokens");
+    uninvertedAclMinTokens = (minTokens==null)?1000:minTokens.intValue();
+    Boolean compact = (Boolean)args.get("CompactTokens");
+    compactTokens = (compact != null && compact.booleanValue());
+    Boolean parallel = (Boolean)args.get("ParallelAclConstruction");
+    parallelAclConstruction = (parallel != null && parallel.booleanValue());
+    Boolean cacheOpenDocuments = (Boolean)args.get("CacheOpenDocuments");
+    if (cacheOpenDocuments == null || cacheOpenDocuments.booleanValue())
+    {
+      // The filter engine also starts from the open documents of each level
+      openDocumentCache = new OpenDocumentCache(allowFields,denyFields,filterEngine);
+    }
+    Number aclFilterCacheMemory = (Number)args.get("AclFilterCacheMemoryMB");
+    if (aclFilterCacheMemory != null && aclFilterCacheMemory.doubleValue() > 0.0)
+    {
+      if (!filterEngine)
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error initializing ManifoldCFSecurityFilter component: 'AclFilterCacheMemoryMB' requires 'AclEngine' to be 'filter' or 'auto'");
+      aclFilterCache = new AclFilterCache((long)(aclFilterCacheMemory.doubleValue() * 1024.0 * 1024.0));
+      aclFilterCacheSnapshotFile = (String)args.get("AclFilterCacheSnapshotFile");
+    }
+    Number tokenPostingsCacheMemory = (Number)args.get("TokenPostingsCacheMemoryMB");
+    if (tokenPostingsCacheMemory != null && tokenPostingsCacheMemory.doubleValue() > 0.0)
+    {
+      if (!filterEngine)
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error initializing ManifoldCFSecurityFilter component: 'TokenPostingsCacheMemoryMB' requires 'AclEngine' to be 'filter' or 'auto'");
+      Integer minDocFreq = (Integer)args.get("TokenPostingsCacheMinDocFreq");
+      Integer minUses = (Integer)args.get("TokenPostingsCacheMinUses");
+      tokenPostingsCache = new TokenPostingsCache((long)(tokenPostingsCacheMemory.doubleValue() * 1024.0 * 1024.0),
+        (minDocFreq==null)?1000:minDocFreq.intValue(),(minUses==null)?3:minUses.intValue());
+    }
+    Number incrementalAclCacheMemory = (Number)args.get("IncrementalAclCacheMemoryMB");
+    if (incrementalAclCacheMemory != null && incrementalAclCacheMemory.doubleValue() > 0.0)
+    {
+      if (!filterEngine)
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error initializing ManifoldCFSecurityFilter component: 'IncrementalAclCacheMemoryMB' requires 'AclEngine' to be 'filter' or 'auto'");
+      Integer maxDistance = (Integer)args.get("IncrementalAclMaxDistance");
+      incrementalAclCache = new IncrementalAclCache((long)(incrementalAclCacheMemory.doubleValue() * 1024.0 * 1024.0),
+        (maxDistance==null)?8:maxDistance.intValue());
+    }
+    aclCaches = new AclCaches(aclFilterCache,openDocumentCache,tokenPostingsCache,incrementalAclCache);
+    Integer connectionPoolSize = (Integer)args.get("ConnectionPoolSize");
+    poolSize = (connectionPoolSize==null)?50:connectionPoolSize.intValue();
+    Boolean staleCheck = (Boolean)args.get("StaleConnectionCheck");
+    staleConnectionCheck = (staleCheck != null && staleCheck.booleanValue());
+    Integer idleTimeOut = (Integer)args.get("IdleConnectionTimeOut");
+    idleConnectionTimeOut = (idleTimeOut==null)?60000L:idleTimeOut.longValue();
+    Integer idleCheckInterval = (Integer)args.get("IdleConnectionCheckInterval");
+    idleConnectionCheckInterval = (idleCheckInterval==null)?5000L:idleCheckInterval.longValue();
+    Integer prewarm = (Integer)args.get("PrewarmConnections");
+    prewarmConnections = (prewarm==null)?0:Math.min(prewarm.intValue(),poolSize);
+    Boolean hedgeRequests = (Boolean)args.get("HedgeAuthorityRequests");
+    if (hedgeRequests != null && hedgeRequests.booleanValue())
+    {
+      hedgeAuthorityBaseURL = (String)args.get("HedgeAuthorityServiceBaseURL");
+      if (hedgeAuthorityBaseURL == null)
+        hedgeAuthorityBaseURL = authorityBaseURL;
+      Number hedgePercentile = (Number)args.get("HedgePercentile");
+      Number hedgeMinDelay = (Number)args.get("HedgeMinDelay");
+      Number hedgeBudgetPercent = (Number)args.get("HedgeBudgetPercent");
+      hedger = new AuthorityRequestHedger((hedgePercentile==null)?95.0:hedgePercentile.doubleValue(),
+        (hedgeMinDelay==null)?10L:hedgeMinDelay.longValue(),
+        (hedgeBudgetPercent==null)?10.0:hedgeBudgetPercent.doubleValue());
+    }
+    Integer timeAllowed = (Integer)args.get("AuthorityTimeAllowed");
+    authorityTimeAllowed = (timeAllowed==null)?0L:timeAllowed.longValue();
+    // A connection attempt that hangs is otherwise only bounded by the operating system
+    Integer connectTimeOut = (Integer)args.get("ConnectionTimeOut");
+    if (connectTimeOut != null)
+      connectionTimeOut = connectTimeOut.intValue();
+    else if (authorityTimeAllowed > 0L)
+      connectionTimeOut = (int)Math.min(authorityTimeAllowed,(long)socketTimeOut);
+    else
+      connectionTimeOut = socketTimeOut;
+    deadlineFallback = (String)args.get("DeadlineFallback");
+    if (deadlineFallback == null)
+      deadlineFallback = ManifoldCFSearchComponent.DEADLINE_FALLBACK_DENY;
+    if (!deadlineFallback.equals(ManifoldCFSearchComponent.DEADLINE_FALLBACK_DENY) && !deadlineFallback.equals(ManifoldCFSearchComponent.DEADLINE_FALLBACK_PUBLIC) &&
+      !deadlineFallback.equals(ManifoldCFSearchComponent.DEADLINE_FALLBACK_STALE))
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error initializing ManifoldCFSecurityFilter component: 'DeadlineFallback' must be one of 'deny', 'public' or 'stale'");
+    if (deadlineFallback.equals(ManifoldCFSearchComponent.DEADLINE_FALLBACK_STALE))
+    {
+      Integer staleTokenCacheSize = (Integer)args.get("StaleTokenCacheSize");
+      staleTokenCache = new TokenCache((staleTokenCacheSize==null)?1000:staleTokenCacheSize.intValue());
+    }
+    Integer lifetime = (Integer)args.get("TokenCacheLifetime");
+    tokenCacheLifetime = (lifetime==null)?0L:lifetime.longValue();
+    Integer cacheSize = (Integer)args.get("TokenCacheSize");
+    tokenCacheSize = (cacheSize==null)?1000:cacheSize.intValue();
+    Boolean share = (Boolean)args.get("ShareAuthorityClient");
+    shareAuthorityClient = (share != null && share.booleanValue());
+    // A shared token cache comes with the shared client
+    if (tokenCacheLifetime > 0L && !shareAuthorityClient)
+      tokenCache = new TokenCache(tokenCacheSize);
+    Integer unknownUserLifetime = (Integer)args.get("UnknownUserCacheLifetime");
+    if (unknownUserLifetime != null && unknownUserLifetime.intValue() > 0)
+    {
+      Integer unknownUserCacheSize = (Integer)args.get("UnknownUserCacheSize");
+      unknownUserCache = new NegativeTokenCache("unknownUserCache",(unknownUserCacheSize==null)?1000:unknownUserCacheSize.intValue(),
+        unknownUserLifetime.longValue());
+    }
+    Integer authorityErrorLifetime = (Integer)args.get("AuthorityErrorCacheLifetime");
+    if (authorityErrorLifetime != null && authorityErrorLifetime.intValue() > 0)
+    {
+      Integer authorityErrorCacheSize = (Integer)args.get("AuthorityErrorCacheSize");
+      authorityErrorCache = new NegativeTokenCache("authorityErrorCache",(authorityErrorCacheSize==null)?100:authorityErrorCacheSize.intValue(),
+        authorityErrorLifetime.longValue());
+    }
+    Boolean trackHeavyHitters = (Boolean)args.get("TrackHeavyHitters");
+    if (trackHeavyHitters != null && trackHeavyHitters.booleanValue())
+    {
+      Integer heavyHitterCount = (Integer)args.get("HeavyHitterCount");
+      heavyHitters = new HeavyHitters((heavyHitterCount==null)?20:heavyHitterCount.intValue());
+    }
+    // Solr reads an <arr> of strings as a list of them
+    @SuppressWarnings("unchecked")
+    List<String> peerURLs = (List<String>)args.get("PeerTokenCacheURLs");
+    if (peerURLs != null && peerURLs.size() > 0)
+    {
+      // This node need not be one of the peers, in which case it asks them for every user
+      peerRing = new ConsistentHashRing(peerURLs);
+      peerSelfURL = (String)args.get("PeerTokenCacheSelfURL");
+      Integer peerTimeOutValue = (Integer)args.get("PeerTokenCacheTimeOut");
+      peerTimeOut = (peerTimeOutValue==null)?1000:peerTimeOutValue.intValue();
+    }
+    Boolean accountResources = (Boolean)args.get("AccountResourceUsage");
+    if (accountResources != null && accountResources.booleanValue())
+      resourceAccounting = new ResourceAccounting();
+    Boolean pipelined = (Boolean)args.get("PipelinedAuthorityLookup");
+    pipelinedLookup = (pipelined != null && pipelined.booleanValue());
+    Boolean adaptiveConcurrencyLimit = (Boolean)args.get("AdaptiveConcurrencyLimit");
+    if (adaptiveConcurrencyLimit != null && adaptiveConcurrencyLimit.booleanValue())
+    {
+      // The limit can never usefully exceed the connection pool size
+      Integer maxQueued = (Integer)args.get("MaxQueuedAuthorityRequests");
+      limiter = new AdaptiveConcurrencyLimiter(Math.max(1,poolSize/2),poolSize,
+        (maxQueued==null)?poolSize:maxQueued.intValue());
+    }
+  }
+
+  @Override
+  protected void finalize()
+    throws Throwable
+  {
+    super.finalize();
+    if (connectionPool != null && sharedClient == null)
+      connectionPool.shutdown();
+  }
+
+  /** Set up the connection pool, and hook the service to the core.  Does nothing if the
+  * service is already started.
+  */
+  protected synchronized void start(SolrCore core)
+  {
+    if (started)
+      return;
+    if (aclFilterCacheSnapshotFile != null)
+    {
+      // Relative to the core's data directory
+      File snapshotFile = new File(aclFilterCacheSnapshotFile);
+      if (!snapshotFile.isAbsolute())
+        snapshotFile = new File(core.getDataDir(),aclFilterCacheSnapshotFile);
+      aclFilterCache.setSnapshotFile(snapshotFile);
+    }
+    startClient();
+    core.addCloseHook(new CloseHandler());
+    if (openDocumentCache != null)
+      core.registerNewSearcherListener(openDocumentCache.new WarmingListener());
+    started = true;
+  }
+
+  /** Set up the connection pool, and the threads for background lookups: everything the
+  * service needs to ask the authority service, apart from the core.
+  */
+  protected void startClient()
+  {
+    if (shareAuthorityClient)
+    {
+      // Use the connection pool and token cache shared by everything using this authority service
+      sharedClient = SharedAuthorityClient.acquire(authorityBaseURL,poolSize,staleConnectionCheck,connectionTimeOut,
+        idleConnectionTimeOut,idleConnectionCheckInterval,tokenCacheSize);
+      connectionPool = sharedClient.getConnectionPool();
+      if (tokenCacheLifetime > 0L)
+        tokenCache = sharedClient.getTokenCache();
+    }
+    else
+    {
+      // Initialize the connection pool
+      connectionPool = new AuthorityConnectionPool(poolSize,staleConnectionCheck,connectionTimeOut,idleConnectionTimeOut,idleConnectionCheckInterval);
+    }
+    client = connectionPool.getClient();
+    if (prewarmConnections > 0)
+      connectionPool.prewarm(authorityBaseURL,prewarmConnections);
+    if (pipelinedLookup)
+    {
+      // No more lookups run in the background than there are connections for them; the rest run in the request's thread
+      lookupExecutor = new ThreadPoolExecutor(0,poolSize,60L,TimeUnit.SECONDS,new SynchronousQueue<Runnable>(),new ThreadFactory()
+        {
+          @Override
+          public Thread newThread(Runnable r)
+          {
+            Thread thread = new Thread(r,"ManifoldCF authority lookup");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    }
+  }
+
+  /** Close down what startClient() set up.
+  */
+  protected void stopClient()
+  {
+    if (lookupExecutor != null)
+    {
+      lookupExecutor.shutdown();
+      lookupExecutor = null;
+    }
+    // Give up this service's share of the connection pool
+    if (sharedClient != null)
+    {
+      sharedClient.release();
+      sharedClient = null;
+    }
+    // Or close it
+    else if (connectionPool != null)
+      connectionPool.shutdown();
+    connectionPool = null;
+    client = null;
+  }
+
+  /** Get the query that matches the documents a request's user may see.  In pipelined
+  * mode, the user's tokens are looked up in the background, and the query is a post filter
+  * that waits for them only when the first document is collected.  Since the post filter is
+  * equal only to itself, the request's main query is then marked not to be cached, so that
+  * the query result cache is not filled with entries that are never found again.  (If the
+  * main query has not been parsed yet, the search component marks it later.)
+  *@param req is the request.
+  *@param tokenSetID is the ID of a registered token set, or null to use the UserTokenSet parameter.
+  *@param cached is false if Solr will not cache the query's results in its filter cache.
+  */
+  public Query getAccessQuery(SolrQueryRequest req, String tokenSetID, boolean cached)
+    throws IOException
+  {
+    if (!pipelinedLookup)
+      return getAccessQuery(lookupUserAccessTokens(req,tokenSetID,false),cached);
+    TokenLookup lookup = lookupUserAccessTokens(req,tokenSetID,true);
+    if (lookup.isDone())
+      return getAccessQuery(lookup,cached);
+    SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+    ResponseBuilder rb = (requestInfo == null) ? null : requestInfo.getResponseBuilder();
+    if (rb != null)
+      AclPostFilter.excludeFromQueryResultCache(rb);
+    return new AclPostFilter(this,lookup);
+  }
+
+  /** Wait for a lookup, and build the query that matches the documents its user may see.
+  * With AccountResourceUsage, the resources used for the request are also added to the
+  * debug section of the response.
+  *@param cached is false if Solr will not cache the query's results in its filter cache.
+  */
+  public Query getAccessQuery(TokenLookup lookup, boolean cached)
+    throws IOException
+  {
+    List<String> userAccessTokens = lookup.get();
+    if (resourceAccounting == null)
+      return getAccessQuery(userAccessTokens,cached);
+    long[] start = ResourceAccounting.sample();
+    Query query = getAccessQuery(userAccessTokens,cached);
+    long[] queryUsage = resourceAccounting.recordAclQuery(start);
+    // Only search handlers have a debug section
+    SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+    ResponseBuilder rb = (requestInfo == null) ? null : requestInfo.getResponseBuilder();
+    if (rb != null && rb.isDebug())
+    {
+      NamedList<Object> usage = new SimpleOrderedMap<Object>();
+      if (lookup.usage != null)
+        usage.add("tokenLookup",ResourceAccounting.describe(lookup.usage));
+      usage.add("aclQuery",ResourceAccounting.describe(queryUsage));
+      rb.addDebugInfo("mcfResourceUsage",usage);
+    }
+    return query;
+  }
+
+  /** Get the access tokens for a request.
+  *@param req is the request.
+  *@param tokenSetID is the ID of a registered token set, or null to use the UserTokenSet parameter.
+  *@return the tokens, or null if no documents should match.
+  */
+  public List<String> getUserAccessTokens(SolrQueryRequest req, String tokenSetID)
+    throws IOException
+  {
+    return lookupUserAccessTokens(req,tokenSetID,false).get();
+  }
+
+  /** Start looking up the access tokens for a request.  An authenticated user's tokens are
+  * obtained from the authority service, once per request; otherwise the tokens are those
+  * the caller passed, or registered as a token set.
+  *@param req is the request.
+  *@param tokenSetID is the ID of a registered token set, or null to use the UserTokenSet parameter.
+  *@param background is true if the authority service should be asked on another thread.
+  *@return the lookup.
+  */
+  public TokenLookup lookupUserAccessTokens(SolrQueryRequest req, String tokenSetID, boolean background)
+    throws IOException
+  {
+    SolrParams params = req.getParams();
+
+    // Map from domain to user
+    Map<String,String> domainMap = new HashMap<String,String>();
+
+    // Get the authenticated user name from the parameters
+    String authenticatedUserName = params.get(ManifoldCFSearchComponent.AUTHENTICATED_USER_NAME);
+    if (authenticatedUserName != null)
+    {
+      String authenticatedUserDomain = params.get(ManifoldCFSearchComponent.AUTHENTICATED_USER_DOMAIN);
+      if (authenticatedUserDomain == null)
+        authenticatedUserDomain = "";
+      domainMap.put(authenticatedUserDomain, authenticatedUserName);
+    }
+    else
+    {
+      // Look for user names/domains using the prefix
+      int i = 0;
+      while (true)
+      {
+        String userName = params.get(ManifoldCFSearchComponent.AUTHENTICATED_USER_NAME_PREFIX+i);
+        String domain = params.get(ManifoldCFSearchComponent.AUTHENTICATED_USER_DOMAIN_PREFIX+i);
+        if (userName == null)
+          break;
+        if (domain == null)
+          domain = "";
+        domainMap.put(domain,userName);
+        i++;
+      }
+    }
+
+    // If this parameter is empty or does not exist, we have to presume this is a guest, and treat them accordingly
+    if (domainMap.size() == 0)
+    {
+      // No authenticated user name.
+      // mod_authz_annotate may be in use upstream, so look for tokens from it.
+      List<String> userAccessTokens = new ArrayList<String>();
+      String[] passedTokens = params.getParams(ManifoldCFSearchComponent.USER_TOKENS);
+      if (tokenSetID == null)
+        tokenSetID = params.get(ManifoldCFSearchComponent.USER_TOKEN_SET);
+      if (tokenSetID != null)
+      {
+        // The caller registered its tokens earlier
+        List<String> registeredTokens = TokenSetRegistry.getRegistry(req.getCore()).get(tokenSetID);
+        if (registeredTokens == null)
+          throw new SolrException(SolrException.ErrorCode.NOT_FOUND, "Token set '"+tokenSetID+"' is not registered");
+        LOG.info("Registered group tokens received from caller");
+        userAccessTokens.addAll(registeredTokens);
+      }
+      else if (passedTokens == null)
+      {
+        // Only return 'public' documents (those with no security tokens at all)
+        LOG.info("Default no-user response (open documents only)");
+      }
+      else
+      {
+        // Only return 'public' documents (those with no security tokens at all)
+        LOG.info("Group tokens received from caller");
+        userAccessTokens.addAll(Arrays.asList(passedTokens));
+      }
+      if (heavyHitters != null)
+        heavyHitters.record(domainMap,userAccessTokens,0L);
+      return new TokenLookup(userAccessTokens,null);
+    }
+
+    // Another plugin may already have resolved this user for this request
+    Map<Object,Object> context = req.getContext();
+    TokenLookup lookup = (TokenLookup)context.get(this);
+    if (lookup != null)
+    {
+      requestTokenReuses.incrementAndGet();
+      return lookup;
+    }
+
+    if(LOG.isInfoEnabled()){
+      StringBuilder sb = new StringBuilder("[");
+      boolean first = true;
+      for (String domain : domainMap.keySet())
+      {
+        if (!first)
+          sb.append(",");
+        else
+          first = false;
+        sb.append(domain).append(":").append(domainMap.get(domain));
+      }
+      sb.append("]");
+      LOG.info("Trying to match docs for user '"+sb.toString()+"'");
+    }
+    // Valid authenticated user name.  Look up access tokens for the user.
+    // Check the configuration arguments for validity
+    if (authorityBaseURL == null)
+    {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Error initializing ManifoldCFSecurityFilter component: 'AuthorityServiceBaseURL' init parameter required");
+    }
+    requestTokenLookups.incrementAndGet();
+    final Map<String,String> lookupDomainMap = domainMap;
+    final long deadline = getDeadline(req);
+    final long[] usage = (resourceAccounting == null) ? null : new long[2];
+    if (background)
+    {
+      FutureTask<List<String>> task = new FutureTask<List<String>>(new Callable<List<String>>()
+        {
+          @Override
+          public List<String> call()
+            throws IOException
+          {
+            return resolveAccessTokens(lookupDomainMap,deadline,usage);
+          }
+        });
+      try
+      {
+        lookupExecutor.execute(task);
+        pipelinedLookups.incrementAndGet();
+        lookup = new TokenLookup(task,usage);
+      }
+      catch (RejectedExecutionException e)
+      {
+        // Every lookup thread is busy, so look up the tokens in this thread instead
+      }
+    }
+    if (lookup == null)
+      lookup = new TokenLookup(resolveAccessTokens(domainMap,deadline,usage),usage);
+    context.put(this,lookup);
+    return lookup;
+  }
+
+  /** Build the query that matches the documents a user may see.
+  *@param userAccessTokens are the user's tokens, or null if no documents should match.
+  */
+  public Query getAccessQuery(List<String> userAccessTokens)
+  {
+    return getAccessQuery(userAccessTokens,true);
+  }
+
+  /** Build the query that matches the documents a user may see.  With the filter engine, a
+  * query whose results Solr will not cache is evaluated lazily (see LeapfrogAclIterator),
+  * unless its segments' results are already in the ACL filter cache.
+  *@param userAccessTokens are the user's tokens, or null if no documents should match.
+  *@param cached is false if Solr will not cache the query's results in its filter cache.
+  */
+  public Query getAccessQuery(List<String> userAccessTokens, boolean cached)
+  {
+    // Tokens are indexed in compact form
+    if (compactTokens && userAccessTokens != null)
+      userAccessTokens = TokenEncoder.encode(userAccessTokens);
+
+    if (userAccessTokens == null)
+    {
+      // No tokens could be obtained in time, and the fallback is to deny; an empty BooleanQuery matches nothing
+      return new BooleanQuery();
+    }
+
+    if (userAccessTokens.size() == 0 && openDocumentCache != null)
+    {
+      // Only open documents, which are kept for each segment
+      return new ConstantScoreQuery(new OpenDocumentCache.OpenDocumentFilter(openDocumentCache));
+    }
+
+    if (aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_UNINVERTED) ||
+      (aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_AUTO) && userAccessTokens.size() >= uninvertedAclMinTokens))
+      return new ConstantScoreQuery(new UninvertedAclFilter(allowFields,denyFields,userAccessTokens,uninvertedAclCache));
+
+    if (aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_FILTER) || aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_AUTO))
+    {
+      if (!cached)
+        leapfrogAclFilters.incrementAndGet();
+      return new ConstantScoreQuery(new AclFilter(allowFields,denyFields,userAccessTokens,parallelAclConstruction,aclCaches,!cached));
+    }
+
+    return new ConstantScoreQuery(new AclQuery(allowFields,denyFields,userAccessTokens,aclIndexStatistics));
+  }
+
+  /** Get the statistics of the service.
+  */
+  public NamedList<Object> getStatistics()
+  {
+    NamedList<Object> stats = new SimpleOrderedMap<Object>();
+    if (hedger != null)
+      hedger.addStatistics(stats);
+    if (limiter != null)
+      limiter.addStatistics(stats);
+    if (tokenCache != null)
+      tokenCache.addStatistics(stats);
+    if (unknownUserCache != null)
+      unknownUserCache.addStatistics(stats);
+    if (authorityErrorCache != null)
+      authorityErrorCache.addStatistics(stats);
+    if (heavyHitters != null)
+      heavyHitters.addStatistics(stats);
+    if (aclFilterCache != null)
+      aclFilterCache.addStatistics(stats);
+    if (openDocumentCache != null)
+      openDocumentCache.addStatistics(stats);
+    if (tokenPostingsCache != null)
+      tokenPostingsCache.addStatistics(stats);
+    if (uninvertedAclCache != null)
+      uninvertedAclCache.addStatistics(stats);
+    if (incrementalAclCache != null)
+      incrementalAclCache.addStatistics(stats);
+    if (aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_QUERY))
+      aclIndexStatistics.addStatistics(stats);
+    if (resourceAccounting != null)
+      resourceAccounting.addStatistics(stats);
+    AuthorityConnectionPool pool = connectionPool;
+    if (pool != null)
+      pool.addStatistics(stats);
+    if (sharedClient != null)
+      stats.add("sharedAuthorityClientReferences",sharedClient.getReferences());
+    if (aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_FILTER) || aclEngine.equals(ManifoldCFSearchComponent.ACL_ENGINE_AUTO))
+      stats.add("leapfrogAclFilters",leapfrogAclFilters.get());
+    stats.add("deadlinesExceeded",deadlinesExceeded.get());
+    stats.add("requestTokenLookups",requestTokenLookups.get());
+    stats.add("requestTokenReuses",requestTokenReuses.get());
+    if (pipelinedLookup)
+      stats.add("pipelinedLookups",pipelinedLookups.get());
+    if (peerRing != null)
+    {
+      stats.add("peerTokenRequests",peerTokenRequests.get());
+      stats.add("peerTokenErrors",peerTokenErrors.get());
+    }
+    stats.add("peerTokensServed",peerTokensServed.get());
+    return stats;
+  }
+
+  // Protected methods
+
+  /** Describe a plugin's configuration, apart from the service it names.
+  */
+  protected static String describeConfiguration(NamedList<?> args)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < args.size(); i++)
+    {
+      if (!"SecurityService".equals(args.getName(i)))
+        sb.append(args.getName(i)).append('=').append(args.getVal(i)).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /** Compute the deadline for the authority lookup of a request.
+  * The deadline is the earlier of the request's own timeAllowed and the configured AuthorityTimeAllowed,
+  * measured from the start of the request.
+  *@return the deadline in ms since epoch, or 0 if there is none.
+  */
+  protected long getDeadline(SolrQueryRequest req)
+  {
+    long budget = 0L;
+    Integer timeAllowed = req.getParams().getInt(CommonParams.TIME_ALLOWED);
+    if (timeAllowed != null && timeAllowed.intValue() > 0)
+      budget = timeAllowed.longValue();
+    if (authorityTimeAllowed > 0L && (budget == 0L || authorityTimeAllowed < budget))
+      budget = authorityTimeAllowed;
+    if (budget == 0L)
+      return 0L;
+    return req.getStartTime() + budget;
+  }
+
+  /** Get the tokens to use when the authority lookup did not complete in time.
+  *@return the tokens, or null if no documents should match.
+  */
+  protected List<String> getDeadlineFallbackTokens(Map<String,String> domainMap, AuthorityDeadlineExceededException e)
+  {
+    deadlinesExceeded.incrementAndGet();
+    LOG.warn("Authority lookup exceeded request deadline; using '"+deadlineFallback+"' fallback: "+e.getMessage());
+    if (deadlineFallback.equals(ManifoldCFSearchComponent.DEADLINE_FALLBACK_PUBLIC))
+      return new ArrayList<String>();
+    if (deadlineFallback.equals(ManifoldCFSearchComponent.DEADLINE_FALLBACK_STALE))
+    {
+      TokenCache.Entry entry = staleTokenCache.get(TokenCache.makeKey(domainMap));
+      if (entry != null)
+        return entry.tokens;
+    }
+    return null;
+  }
+
+  /** Get access tokens given a username, applying the deadline fallback, and record the
+  * time taken.
+  *@param usage receives the CPU time and bytes allocated by the lookup, or is null.
+  *@return the tokens, or null if no documents should match.
+  */
+  protected List<String> resolveAccessTokens(Map<String,String> domainMap, long deadline, long[] usage)
+    throws IOException
+  {
+    long[] start = (resourceAccounting == null) ? null : ResourceAccounting.sample();
+    List<String> userAccessTokens;
+    long authorityStartTime = System.currentTimeMillis();
+    try
+    {
+      userAccessTokens = getAccessTokens(domainMap,deadline,true);
+    }
+    catch (AuthorityDeadlineExceededException e)
+    {
+      userAccessTokens = getDeadlineFallbackTokens(domainMap,e);
+    }
+    long authorityTime = System.currentTimeMillis() - authorityStartTime;
+    if (heavyHitters != null)
+      heavyHitters.record(domainMap,userAccessTokens,authorityTime);
+    if (start != null)
+    {
+      long[] used = resourceAccounting.recordTokenLookup(start);
+      if (usage != null)
+        System.arraycopy(used,0,usage,0,used.length);
+    }
+    return userAccessTokens;
+  }
+
+  /** Get access tokens for a peer that found this node to own the user.  Other peers are
+  * never asked, so a request is never forwarded twice.
+  */
+  public List<String> getOwnedAccessTokens(Map<String,String> domainMap)
+    throws IOException
+  {
+    peerTokensServed.incrementAndGet();
+    return getAccessTokens(domainMap,0L,false);
+  }
+
+  /** Get access tokens given a username.
+  *@param usePeers is true if the peer that owns the user may be asked first.
+  */
+  protected List<String> getAccessTokens(Map<String,String> domainMap, long deadline, boolean usePeers)
+    throws IOException
+  {
+    String cacheKey = TokenCache.makeKey(domainMap);
+    // Users the authority does not know, and authority errors, are remembered separately
+    NegativeTokenCache.Entry negativeEntry = null;
+    if (unknownUserCache != null)
+      negativeEntry = unknownUserCache.get(cacheKey);
+    if (negativeEntry == null && authorityErrorCache != null)
+      negativeEntry = authorityErrorCache.get(cacheKey);
+    if (negativeEntry != null)
+      return negativeEntry.getTokens();
+    TokenCache.Entry cachedEntry = null;
+    if (tokenCache != null)
+    {
+      cachedEntry = tokenCache.getFresh(cacheKey,tokenCacheLifetime);
+      if (cachedEntry != null)
+        return cachedEntry.tokens;
+      // Expired entries are revalidated
+      cachedEntry = tokenCache.get(cacheKey);
+    }
+    if (usePeers && peerRing != null)
+    {
+      String owner = peerRing.getOwner(cacheKey);
+      if (!owner.equals(peerSelfURL))
+      {
+        List<String> peerTokens = getPeerAccessTokens(owner,domainMap,deadline);
+        if (peerTokens != null)
+          return cacheAccessTokens(cacheKey,peerTokens,null);
+      }
+    }
+    AuthorityRequest request = new AuthorityRequest(connectionPool,authorityBaseURL,domainMap,socketTimeOut,deadline,
+      authorityCompression,authorityBinaryTokens);
+    request.setCachedEntry(cachedEntry);
+    AuthorityRequest hedgeRequest = null;
+    List<String> tokens;
+    if (limiter != null)
+      limiter.acquire(deadline);
+    long startTime = System.currentTimeMillis();
+    boolean success = false;
+    try
+    {
+      if (hedger == null)
+        tokens = request.executeWithinDeadline();
+      else
+      {
+        // Hedging is enabled; the duplicate request goes to the alternate endpoint, or to another pooled connection,
+        // and needs a concurrency limit slot of its own
+        hedgeRequest = new AuthorityRequest(connectionPool,hedgeAuthorityBaseURL,domainMap,socketTimeOut,deadline,
+          authorityCompression,authorityBinaryTokens);
+        hedgeRequest.setCachedEntry(cachedEntry);
+        tokens = hedger.execute(request,hedgeRequest,limiter);
+      }
+      success = true;
+    }
+    catch (SolrException e)
+    {
+      // The authority answered with an error
+      if (authorityErrorCache != null)
+        authorityErrorCache.putError(cacheKey,e);
+      throw e;
+    }
+    finally
+    {
+      if (limiter != null)
+        limiter.release(System.currentTimeMillis() - startTime,success);
+    }
+    String validator = request.getResponseValidator();
+    if (validator == null && hedgeRequest != null)
+      validator = hedgeRequest.getResponseValidator();
+    return cacheAccessTokens(cacheKey,tokens,validator);
+  }
+
+  /** Ask the peer that owns a user for the user's tokens.
+  *@return the tokens, or null if the peer could not answer, and the authority should be asked instead.
+  */
+  protected List<String> getPeerAccessTokens(String peerURL, Map<String,String> domainMap, long deadline)
+    throws IOException
+  {
+    peerTokenRequests.incrementAndGet();
+    try
+    {
+      // Peers answer in the authority service's text format
+      return new AuthorityRequest(connectionPool,peerURL,domainMap,peerTimeOut,deadline).executeWithinDeadline();
+    }
+    catch (AuthorityDeadlineExceededException e)
+    {
+      // There is no time left to ask the authority either
+      throw e;
+    }
+    catch (IOException e)
+    {
+      peerTokenErrors.incrementAndGet();
+      LOG.warn("Could not get access tokens from peer "+peerURL+"; asking the authority service: "+e.getMessage());
+      return null;
+    }
+    catch (SolrException e)
+    {
+      peerTokenErrors.incrementAndGet();
+      LOG.warn("Could not get access tokens from peer "+peerURL+"; asking the authority service: "+e.getMessage());
+      return null;
+    }
+  }
+
+  /** Remember the tokens obtained for a user.
+  *@param validator is the validator (ETag) of the authority's response, or null.
+  *@return the tokens to use, which are the cached list if it has not changed.
+  */
+  protected List<String> cacheAccessTokens(String cacheKey, List<String> tokens, String validator)
+  {
+    if (tokens.size() == 0 && unknownUserCache != null)
+      unknownUserCache.putNoTokens(cacheKey);
+    else if (tokenCache != null)
+    {
+      // Keep the cached token list if it has not changed, so that everything derived from it stays valid
+      tokens = tokenCache.put(cacheKey,tokens,validator);
+    }
+    if (staleTokenCache != null)
+      staleTokenCache.put(cacheKey,tokens);
+    return tokens;
+  }
+
+  /** The access tokens of a request, possibly still being looked up.  Kept in the request
+  * context, so that each plugin using the service finds the same lookup.
+  */
+  public static class TokenLookup
+  {
+    protected final List<String> tokens;
+    protected final Future<List<String>> future;
+    /** The CPU time and bytes allocated by the lookup, once it is done, or null if not accounted */
+    protected final long[] usage;
+
+    public TokenLookup(List<String> tokens, long[] usage)
+    {
+      this.tokens = tokens;
+      this.future = null;
+      this.usage = usage;
+    }
+
+    public TokenLookup(Future<List<String>> future, long[] usage)
+    {
+      this.tokens = null;
+      this.future = future;
+      this.usage = usage;
+    }
+
+    public boolean isDone()
+    {
+      return future == null || future.isDone();
+    }
+
+    /** Wait for the tokens.
+    *@return the tokens, or null if no documents should match.
+    */
+    public List<String> get()
+      throws IOException
+    {
+      if (future == null)
+        return tokens;
+      try
+      {
+        return future.get();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for access tokens");
+      }
+      catch (ExecutionException e)
+      {
+        throw AuthorityRequest.unwrap(e);
+      }
+    }
+  }
+
+  /** CloseHook implementation.
+  */
+  protected class CloseHandler extends CloseHook
+  {
+    public CloseHandler()
+    {
+    }
+
+    @Override
+    public void preClose(SolrCore core)
+    {
+    }
+
+    @Override
+    public void postClose(SolrCore core)
+    {
+      synchronized (services)
+      {
+        services.remove(core);
+      }
+      // Save the ACL filters, so that the next start does not have to rebuild them
+      if (aclFilterCacheSnapshotFile != null)
+      {
+        try
+        {
+          int saved = aclFilterCache.writeSnapshot();
+          LOG.info("Saved "+saved+" cached ACL filters");
+        }
+        catch (IOException e)
+        {
+          LOG.warn("Could not save ACL filter cache snapshot: "+e.getMessage(),e);
+        }
+      }
+      stopClient();
+    }
+
+  }
+
+}
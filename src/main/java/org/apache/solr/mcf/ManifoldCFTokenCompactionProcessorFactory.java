@@ -0,0 +1,89 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Update processor factory that replaces the access tokens in the ManifoldCF security fields
+* with the short IDs produced by TokenEncoder.  The query parser plugin or search component
+* must then be configured with CompactTokens set to true.
+*/
+public class ManifoldCFTokenCompactionProcessorFactory extends UpdateRequestProcessorFactory
+{
+  String[] fieldNames = null;
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(NamedList args)
+  {
+    String allowAttributePrefix = (String)args.get("AllowAttributePrefix");
+    String denyAttributePrefix = (String)args.get("DenyAttributePrefix");
+    if (allowAttributePrefix == null)
+      allowAttributePrefix = "allow_token_";
+    if (denyAttributePrefix == null)
+      denyAttributePrefix = "deny_token_";
+    fieldNames = new String[]{allowAttributePrefix+"share",denyAttributePrefix+"share",
+      allowAttributePrefix+"parent",denyAttributePrefix+"parent",
+      allowAttributePrefix+"document",denyAttributePrefix+"document"};
+  }
+
+  @Override
+  public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next)
+  {
+    return new TokenCompactionProcessor(next);
+  }
+
+  protected class TokenCompactionProcessor extends UpdateRequestProcessor
+  {
+    public TokenCompactionProcessor(UpdateRequestProcessor next)
+    {
+      super(next);
+    }
+
+    @Override
+    public void processAdd(AddUpdateCommand cmd)
+      throws IOException
+    {
+      SolrInputDocument doc = cmd.getSolrInputDocument();
+      for (String fieldName : fieldNames)
+      {
+        SolrInputField field = doc.getField(fieldName);
+        if (field == null)
+          continue;
+        List<Object> encoded = new ArrayList<Object>(field.getValueCount());
+        for (Object value : field.getValues())
+        {
+          encoded.add(TokenEncoder.encode(value.toString()));
+        }
+        field.setValue(encoded,field.getBoost());
+      }
+      super.processAdd(cmd);
+    }
+  }
+
+}
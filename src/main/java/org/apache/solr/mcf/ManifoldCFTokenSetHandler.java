@@ -0,0 +1,104 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+import java.util.*;
+
+/**
+* Request handler with which callers register a set of access tokens, passed as UserTokens
+* parameters (preferably in a POST body), and get back its ID.  Searches can then pass the ID
+* as the UserTokenSet parameter, instead of every token.  If a search refers to an ID that is
+* no longer registered, it fails with a 404 error, and the caller should register the set again.
+*/
+public class ManifoldCFTokenSetHandler extends RequestHandlerBase implements SolrCoreAware
+{
+  /** The response field holding the ID */
+  static final public String TOKEN_SET = "tokenSet";
+
+  Integer maxTokenSets = null;
+  TokenSetRegistry registry = null;
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(NamedList args)
+  {
+    super.init(args);
+    maxTokenSets = (Integer)args.get("MaxTokenSets");
+  }
+
+  @Override
+  public void inform(SolrCore core)
+  {
+    registry = TokenSetRegistry.getRegistry(core);
+    if (maxTokenSets != null)
+      registry.setMaxSize(maxTokenSets.intValue());
+  }
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp)
+    throws Exception
+  {
+    String[] passedTokens = req.getParams().getParams(ManifoldCFSearchComponent.USER_TOKENS);
+    List<String> tokens = (passedTokens == null) ? new ArrayList<String>() : Arrays.asList(passedTokens);
+    rsp.add(TOKEN_SET,registry.register(tokens));
+  }
+
+  //---------------------------------------------------------------------------------
+  // SolrInfoMBean
+  //---------------------------------------------------------------------------------
+  @Override
+  public String getDescription()
+  {
+    return "ManifoldCF access token set registration";
+  }
+
+  @Override
+  public String getVersion()
+  {
+    return "$Revision$";
+  }
+
+  @Override
+  public String getSourceId()
+  {
+    return "$Id$";
+  }
+
+  @Override
+  public String getSource()
+  {
+    return "$URL$";
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public NamedList<Object> getStatistics()
+  {
+    NamedList<Object> stats = super.getStatistics();
+    if (registry != null)
+      registry.addStatistics(stats);
+    return stats;
+  }
+
+}
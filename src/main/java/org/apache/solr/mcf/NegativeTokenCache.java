@@ -0,0 +1,136 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.*;
+
+/**
+* A bounded, least-recently-used cache of negative authority results for user identities:
+* either that the user has no tokens (typically because the authority does not know the
+* user), or that the authority answered with an error.  Entries expire after a fixed
+* lifetime.  It is kept apart from the TokenCache, so that many unknown users cannot push
+* out the tokens of real ones.
+*/
+public class NegativeTokenCache
+{
+  protected final String statisticsPrefix;
+  protected final int maxSize;
+  protected final long lifetime;
+  protected final Map<String,Entry> cache;
+
+  protected long hits = 0L;
+  protected long puts = 0L;
+
+  /** Constructor.
+  *@param statisticsPrefix is the prefix of the names of the statistics.
+  *@param maxSize is the most entries kept.
+  *@param lifetime is how long an entry is used, in milliseconds.
+  */
+  public NegativeTokenCache(String statisticsPrefix, int maxSize, long lifetime)
+  {
+    this.statisticsPrefix = statisticsPrefix;
+    this.maxSize = maxSize;
+    this.lifetime = lifetime;
+    this.cache = new LinkedHashMap<String,Entry>(16,0.75f,true)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest)
+        {
+          return size() > NegativeTokenCache.this.maxSize;
+        }
+      };
+  }
+
+  /** Look up an unexpired entry.
+  *@return the entry, or null if there is none.
+  */
+  public synchronized Entry get(String key)
+  {
+    Entry entry = cache.get(key);
+    if (entry == null)
+      return null;
+    if (System.currentTimeMillis() - entry.time >= lifetime)
+    {
+      cache.remove(key);
+      return null;
+    }
+    hits++;
+    return entry;
+  }
+
+  /** Record that a user has no tokens.
+  */
+  public synchronized void putNoTokens(String key)
+  {
+    cache.put(key,new Entry(System.currentTimeMillis(),null,null));
+    puts++;
+  }
+
+  /** Record that the authority answered with an error.
+  */
+  public synchronized void putError(String key, SolrException e)
+  {
+    cache.put(key,new Entry(System.currentTimeMillis(),SolrException.ErrorCode.getErrorCode(e.code()),e.getMessage()));
+    puts++;
+  }
+
+  public synchronized int size()
+  {
+    return cache.size();
+  }
+
+  /** Add the cache statistics to a statistics list.
+  */
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    stats.add(statisticsPrefix+"Size",cache.size());
+    stats.add(statisticsPrefix+"Hits",hits);
+    stats.add(statisticsPrefix+"Puts",puts);
+  }
+
+  /** A negative result, with the time it was obtained.
+  */
+  public static class Entry
+  {
+    public final long time;
+    /** The error code, or null if the user simply has no tokens */
+    public final SolrException.ErrorCode errorCode;
+    public final String message;
+
+    public Entry(long time, SolrException.ErrorCode errorCode, String message)
+    {
+      this.time = time;
+      this.errorCode = errorCode;
+      this.message = message;
+    }
+
+    /** Get the tokens this entry stands for, or throw the error it stands for.
+    */
+    public List<String> getTokens()
+    {
+      if (errorCode != null)
+        throw new SolrException(errorCode,message);
+      return new ArrayList<String>();
+    }
+  }
+
+}
@@ -0,0 +1,281 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.search.SolrIndexReader;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Holds, for every index segment, the set of documents that are open to everyone: those
+* carrying the no-security token in both the allow and deny fields of every level.  The sets
+* are computed when a new searcher is opened (or on first use), and kept for as long as the
+* segment exists.  Optionally the open documents of each level are kept too, as the starting
+* point for evaluating authenticated users' access.
+*/
+public class OpenDocumentCache
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OpenDocumentCache.class);
+
+  protected final String[] allowFields;
+  protected final String[] denyFields;
+  protected final boolean keepLevels;
+  /** Per-segment entries, keyed by segment core */
+  protected final Map<Object,Entry> entries = new WeakHashMap<Object,Entry>();
+
+  protected long warmed = 0L;
+  protected long computedOnDemand = 0L;
+  protected long lookups = 0L;
+
+  /** Constructor.
+  *@param allowFields are the allow fields, one per level.
+  *@param denyFields are the corresponding deny fields.
+  *@param keepLevels is true if the open documents of each level should be kept as well.
+  */
+  public OpenDocumentCache(String[] allowFields, String[] denyFields, boolean keepLevels)
+  {
+    this.allowFields = allowFields;
+    this.denyFields = denyFields;
+    this.keepLevels = keepLevels;
+  }
+
+  /** Compute the entries for any segments of a top-level reader that do not have one yet.
+  */
+  public void warm(IndexReader reader)
+    throws IOException
+  {
+    IndexReader[] segments = new IndexReader[]{reader};
+    if (reader instanceof SolrIndexReader)
+      segments = ((SolrIndexReader)reader).getLeafReaders();
+    for (IndexReader segment : segments)
+    {
+      synchronized (this)
+      {
+        if (entries.containsKey(segment.getCoreCacheKey()))
+          continue;
+      }
+      Entry entry = computeEntry(segment);
+      synchronized (this)
+      {
+        entries.put(segment.getCoreCacheKey(),entry);
+        warmed++;
+      }
+    }
+  }
+
+  /** Get the open documents of a segment.
+  *@return the set, limited to the reader's live documents.
+  */
+  public DocIdSet getOpenDocuments(IndexReader reader)
+    throws IOException
+  {
+    Entry entry = getEntry(reader);
+    return CompressedDocIdSets.withoutDeletions(entry.openDocuments,reader);
+  }
+
+  /** Get the documents of a segment that are open at one level, as a private copy the caller
+  * may modify.
+  *@return the bits, or null if this cache does not keep levels.
+  */
+  public OpenBitSet getLevelBits(IndexReader reader, int level)
+    throws IOException
+  {
+    if (!keepLevels)
+      return null;
+    OpenBitSet bits = (OpenBitSet)getEntry(reader).levels[level].clone();
+    CompressedDocIdSets.clearDeletions(bits,reader);
+    return bits;
+  }
+
+  /** Get the documents of a segment that are open at one level, without copying them.
+  *@return the set, which skips the reader's deleted documents as it is iterated over, or null
+  * if this cache does not keep levels.
+  */
+  public DocIdSet getLevelDocuments(IndexReader reader, int level)
+    throws IOException
+  {
+    if (!keepLevels)
+      return null;
+    return CompressedDocIdSets.withoutDeletions(getEntry(reader).levels[level],reader);
+  }
+
+  protected Entry getEntry(IndexReader reader)
+    throws IOException
+  {
+    Object coreKey = reader.getCoreCacheKey();
+    synchronized (this)
+    {
+      lookups++;
+      Entry entry = entries.get(coreKey);
+      if (entry != null)
+        return entry;
+    }
+    // Not warmed, e.g. the searcher was opened before this cache was set up
+    Entry entry = computeEntry(reader);
+    synchronized (this)
+    {
+      entries.put(coreKey,entry);
+      computedOnDemand++;
+    }
+    return entry;
+  }
+
+  protected Entry computeEntry(IndexReader reader)
+    throws IOException
+  {
+    OpenBitSet[] levels = new OpenBitSet[allowFields.length];
+    OpenBitSet open = null;
+    TermDocs termDocs = reader.termDocs();
+    try
+    {
+      for (int level = 0; level < allowFields.length; level++)
+      {
+        OpenBitSet levelBits = new OpenBitSet(reader.maxDoc());
+        AclFilter.addPostings(termDocs,new Term(allowFields[level],ManifoldCFSearchComponent.NOSECURITY_TOKEN),levelBits);
+        OpenBitSet denyOpen = new OpenBitSet(reader.maxDoc());
+        AclFilter.addPostings(termDocs,new Term(denyFields[level],ManifoldCFSearchComponent.NOSECURITY_TOKEN),denyOpen);
+        levelBits.and(denyOpen);
+        levels[level] = levelBits;
+        if (open == null)
+          open = (OpenBitSet)levelBits.clone();
+        else
+          open.and(levelBits);
+      }
+    }
+    finally
+    {
+      termDocs.close();
+    }
+    return new Entry(CompressedDocIdSets.compress(open,reader.maxDoc()),keepLevels?levels:null);
+  }
+
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+  /** Add the cache statistics to a statistics list.
+  */
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    long bytes = 0L;
+    for (Entry entry : entries.values())
+    {
+      bytes += CompressedDocIdSets.ramBytesUsed(entry.openDocuments);
+      if (entry.levels != null)
+      {
+        for (OpenBitSet levelBits : entry.levels)
+          bytes += CompressedDocIdSets.ramBytesUsed(levelBits);
+      }
+    }
+    stats.add("openDocumentSegments",entries.size());
+    stats.add("openDocumentBytes",bytes);
+    stats.add("openDocumentLookups",lookups);
+    stats.add("openDocumentSegmentsWarmed",warmed);
+    stats.add("openDocumentSegmentsComputedOnDemand",computedOnDemand);
+  }
+
+  protected static class Entry
+  {
+    public final DocIdSet openDocuments;
+    public final OpenBitSet[] levels;
+
+    public Entry(DocIdSet openDocuments, OpenBitSet[] levels)
+    {
+      this.openDocuments = openDocuments;
+      this.levels = levels;
+    }
+  }
+
+  /** Listener that computes the entries for new segments whenever a searcher is opened.
+  */
+  public class WarmingListener implements SolrEventListener
+  {
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void init(NamedList args)
+    {
+    }
+
+    @Override
+    public void postCommit()
+    {
+    }
+
+    @Override
+    public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher)
+    {
+      try
+      {
+        warm(newSearcher.getReader());
+      }
+      catch (IOException e)
+      {
+        // Not fatal; the entries will be computed on first use instead
+        LOG.warn("Error computing open documents for new searcher: "+e.getMessage(),e);
+      }
+    }
+  }
+
+  /** Filter that matches the open documents of each segment.
+  */
+  public static class OpenDocumentFilter extends Filter
+  {
+    private static final long serialVersionUID = 1L;
+
+    protected final OpenDocumentCache cache;
+
+    public OpenDocumentFilter(OpenDocumentCache cache)
+    {
+      this.cache = cache;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader)
+      throws IOException
+    {
+      return cache.getOpenDocuments(reader);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      return (o instanceof OpenDocumentFilter) && ((OpenDocumentFilter)o).cache == cache;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return System.identityHashCode(cache);
+    }
+
+    @Override
+    public String toString()
+    {
+      return "OpenDocumentFilter";
+    }
+  }
+
+}
@@ -0,0 +1,160 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.slf4j.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+* Accounts for the CPU time used, and the memory allocated, by the ACL path: looking up a
+* user's tokens, and building the ACL query from them.  Both are measured with the current
+* thread's counters, so work done for other requests at the same time is not included.
+* Allocation can only be measured on JVMs that count the bytes allocated by each thread
+* (such as HotSpot); elsewhere it is reported as -1.
+*/
+public class ResourceAccounting
+{
+  /** A logger we can use */
+  private static final Logger LOG = LoggerFactory.getLogger(ResourceAccounting.class);
+
+  /** The thread counters, or null if CPU time cannot be measured */
+  protected static final ThreadMXBean threadBean;
+  /** The allocation counters, or null if allocation cannot be measured */
+  protected static final com.sun.management.ThreadMXBean allocationBean;
+
+  static
+  {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!bean.isCurrentThreadCpuTimeSupported())
+      bean = null;
+    else if (!bean.isThreadCpuTimeEnabled())
+      bean.setThreadCpuTimeEnabled(true);
+    threadBean = bean;
+    com.sun.management.ThreadMXBean sunBean = null;
+    try
+    {
+      Object platformBean = ManagementFactory.getThreadMXBean();
+      if (platformBean instanceof com.sun.management.ThreadMXBean)
+      {
+        sunBean = (com.sun.management.ThreadMXBean)platformBean;
+        if (!sunBean.isThreadAllocatedMemorySupported())
+          sunBean = null;
+        else if (!sunBean.isThreadAllocatedMemoryEnabled())
+          sunBean.setThreadAllocatedMemoryEnabled(true);
+      }
+    }
+    catch (LinkageError e)
+    {
+      // Not a JVM with the extended interface
+      sunBean = null;
+    }
+    allocationBean = sunBean;
+    if (threadBean == null || allocationBean == null)
+      LOG.warn("This JVM cannot measure per-thread "+((threadBean == null)?"CPU time":"allocation")+"; it will be reported as -1");
+  }
+
+  protected final Phase tokenLookup = new Phase("tokenLookup");
+  protected final Phase aclQuery = new Phase("aclQuery");
+
+  /** Read the current thread's counters.
+  *@return the CPU time in nanoseconds, and the bytes allocated; either is -1 if it cannot be measured.
+  */
+  public static long[] sample()
+  {
+    long cpuTime = (threadBean == null) ? -1L : threadBean.getCurrentThreadCpuTime();
+    long allocated = (allocationBean == null) ? -1L : allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    return new long[]{cpuTime,allocated};
+  }
+
+  /** Record a token lookup that began with the given sample.
+  *@return the CPU time and bytes used, as for sample().
+  */
+  public long[] recordTokenLookup(long[] start)
+  {
+    return tokenLookup.record(start);
+  }
+
+  /** Record the building of an ACL query that began with the given sample.
+  *@return the CPU time and bytes used, as for sample().
+  */
+  public long[] recordAclQuery(long[] start)
+  {
+    return aclQuery.record(start);
+  }
+
+  /** Add the totals and averages to a statistics list.
+  */
+  public void addStatistics(NamedList<Object> stats)
+  {
+    tokenLookup.addStatistics(stats);
+    aclQuery.addStatistics(stats);
+  }
+
+  /** Describe the usage of one step, for the debug section.
+  */
+  public static NamedList<Object> describe(long[] usage)
+  {
+    NamedList<Object> rval = new SimpleOrderedMap<Object>();
+    rval.add("cpuTimeUs",(usage[0] < 0L) ? -1L : usage[0] / 1000L);
+    rval.add("allocatedBytes",usage[1]);
+    return rval;
+  }
+
+  /** The totals of one step of the ACL path.
+  */
+  protected static class Phase
+  {
+    protected final String name;
+    protected long count = 0L;
+    protected long cpuTime = 0L;
+    protected long allocated = 0L;
+
+    public Phase(String name)
+    {
+      this.name = name;
+    }
+
+    public long[] record(long[] start)
+    {
+      long[] end = sample();
+      long[] usage = new long[2];
+      for (int i = 0; i < 2; i++)
+        usage[i] = (start[i] < 0L || end[i] < 0L) ? -1L : end[i] - start[i];
+      synchronized (this)
+      {
+        count++;
+        cpuTime += Math.max(usage[0],0L);
+        allocated += Math.max(usage[1],0L);
+      }
+      return usage;
+    }
+
+    public synchronized void addStatistics(NamedList<Object> stats)
+    {
+      stats.add(name+"Count",count);
+      stats.add(name+"CpuTimeMs",(threadBean == null) ? -1L : cpuTime / 1000000L);
+      stats.add(name+"AvgCpuTimeUs",(threadBean == null || count == 0L) ? -1L : cpuTime / count / 1000L);
+      stats.add(name+"AllocatedBytes",(allocationBean == null) ? -1L : allocated);
+      stats.add(name+"AvgAllocatedBytes",(allocationBean == null || count == 0L) ? -1L : allocated / count);
+    }
+  }
+
+}
@@ -0,0 +1,109 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.search.*;
+
+import java.util.*;
+
+/**
+* DocIdSet stored as runs of consecutive document numbers.  Well suited to sets
+* whose documents are clustered, such as content from one repository that was
+* indexed in one go.
+*/
+public class RunLengthDocIdSet extends DocIdSet
+{
+  /** First document of each run */
+  protected final int[] starts;
+  /** One past the last document of each run */
+  protected final int[] ends;
+
+  public RunLengthDocIdSet(int[] starts, int[] ends)
+  {
+    this.starts = starts;
+    this.ends = ends;
+  }
+
+  public int[] getStarts()
+  {
+    return starts;
+  }
+
+  public int[] getEnds()
+  {
+    return ends;
+  }
+
+  /** Check whether a document is in the set.
+  */
+  public boolean contains(int doc)
+  {
+    int index = Arrays.binarySearch(starts,doc);
+    if (index >= 0)
+      return true;
+    index = -index - 2;
+    return index >= 0 && doc < ends[index];
+  }
+
+  /** Estimate the memory used by this set, in bytes.
+  */
+  public long ramBytesUsed()
+  {
+    return 48L + 8L * starts.length;
+  }
+
+  @Override
+  public boolean isCacheable()
+  {
+    return true;
+  }
+
+  @Override
+  public DocIdSetIterator iterator()
+  {
+    return new DocIdSetIterator()
+      {
+        protected int run = 0;
+        protected int doc = -1;
+
+        @Override
+        public int docID()
+        {
+          return doc;
+        }
+
+        @Override
+        public int nextDoc()
+        {
+          return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target)
+        {
+          while (run < starts.length && ends[run] <= target)
+            run++;
+          if (run == starts.length)
+            doc = NO_MORE_DOCS;
+          else
+            doc = Math.max(target,starts[run]);
+          return doc;
+        }
+      };
+  }
+
+}
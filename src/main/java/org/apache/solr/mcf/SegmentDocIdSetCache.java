@@ -0,0 +1,208 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.solr.common.util.NamedList;
+
+import java.lang.ref.*;
+import java.util.*;
+
+/**
+* A least-recently-used cache of DocIdSets, per index segment and key, bounded by memory
+* rather than entry count.  Entries are keyed by the segment's core, so they survive reopens
+* that only add deletions, and are dropped once the segment is no longer in use.  Cached sets
+* reflect the deletions at the time they were built; get() filters out later ones.
+*/
+public class SegmentDocIdSetCache
+{
+  protected final String statisticsPrefix;
+  protected final long maxBytes;
+  protected final Map<Key,DocIdSet> cache = new LinkedHashMap<Key,DocIdSet>(16,0.75f,true);
+  protected final ReferenceQueue<Object> collectedCores = new ReferenceQueue<Object>();
+
+  protected long bytes = 0L;
+  protected long uncompressedBytes = 0L;
+  protected long hits = 0L;
+  protected long misses = 0L;
+  protected long evictions = 0L;
+
+  /** Constructor.
+  *@param statisticsPrefix is the prefix for the names of this cache's statistics.
+  *@param maxBytes is the memory budget for cached sets, in bytes.
+  */
+  public SegmentDocIdSetCache(String statisticsPrefix, long maxBytes)
+  {
+    this.statisticsPrefix = statisticsPrefix;
+    this.maxBytes = maxBytes;
+  }
+
+  /** Look up the set for a segment.
+  *@return the cached set, limited to the reader's live documents, or null if not cached.
+  */
+  public DocIdSet get(IndexReader reader, Object key)
+  {
+    DocIdSet set = getUnfiltered(reader,key);
+    if (set == null)
+      return null;
+    // The entry may predate some of this reader's deletions
+    return CompressedDocIdSets.withoutDeletions(set,reader);
+  }
+
+  /** Look up the set for a segment, as it was cached.  It may include documents the reader
+  * has since deleted.
+  *@return the cached set, or null if not cached.
+  */
+  public synchronized DocIdSet getUnfiltered(IndexReader reader, Object key)
+  {
+    expungeCollectedCores();
+    DocIdSet set = cache.get(new Key(reader.getCoreCacheKey(),key,null));
+    if (set == null)
+      misses++;
+    else
+      hits++;
+    return set;
+  }
+
+  /** Check whether a segment's set is cached, without counting it as a lookup.
+  */
+  public synchronized boolean contains(IndexReader reader, Object key)
+  {
+    return cache.containsKey(new Key(reader.getCoreCacheKey(),key,null));
+  }
+
+  /** Add a set to the cache, evicting the least recently used sets as needed.
+  *@param set is the set, preferably compressed.
+  *@param uncompressedSize is the size the set would have as a bit set, for the statistics.
+  */
+  public void put(IndexReader reader, Object key, DocIdSet set, long uncompressedSize)
+  {
+    long size = CompressedDocIdSets.ramBytesUsed(set);
+    if (size > maxBytes)
+      return;
+    synchronized (this)
+    {
+      expungeCollectedCores();
+      Key cacheKey = new Key(reader.getCoreCacheKey(),key,collectedCores);
+      // Another thread may have computed the same set meanwhile
+      if (cache.containsKey(cacheKey))
+        return;
+      cacheKey.size = size;
+      cacheKey.uncompressedSize = uncompressedSize;
+      cache.put(cacheKey,set);
+      bytes += size;
+      uncompressedBytes += uncompressedSize;
+      Iterator<Key> iter = cache.keySet().iterator();
+      while (bytes > maxBytes && iter.hasNext())
+      {
+        Key eldest = iter.next();
+        iter.remove();
+        bytes -= eldest.size;
+        uncompressedBytes -= eldest.uncompressedSize;
+        evictions++;
+      }
+    }
+  }
+
+  /** Remove the entries for segments that have been garbage collected.
+  */
+  protected void expungeCollectedCores()
+  {
+    Reference<?> ref;
+    while ((ref = collectedCores.poll()) != null)
+    {
+      Key key = ((CoreReference)ref).key;
+      if (cache.remove(key) != null)
+      {
+        bytes -= key.size;
+        uncompressedBytes -= key.uncompressedSize;
+      }
+    }
+  }
+
+  public synchronized int size()
+  {
+    return cache.size();
+  }
+
+  /** Add the cache statistics to a statistics list.
+  */
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    long lookups = hits + misses;
+    stats.add(statisticsPrefix+"Lookups",lookups);
+    stats.add(statisticsPrefix+"Hits",hits);
+    stats.add(statisticsPrefix+"HitRatio",(lookups == 0L)?0.0:(double)hits / (double)lookups);
+    stats.add(statisticsPrefix+"Evictions",evictions);
+    stats.add(statisticsPrefix+"Size",cache.size());
+    stats.add(statisticsPrefix+"Bytes",bytes);
+    stats.add(statisticsPrefix+"UncompressedBytes",uncompressedBytes);
+    stats.add(statisticsPrefix+"MaxBytes",maxBytes);
+  }
+
+  /** Cache key: a segment core, held weakly, and a key within the segment.
+  */
+  protected static class Key
+  {
+    protected final Reference<Object> core;
+    protected final Object key;
+    protected final int hashCode;
+    protected long size;
+    protected long uncompressedSize;
+
+    /** Constructor.
+    *@param queue is the queue to register the core reference with, or null for a lookup key.
+    */
+    public Key(Object coreKey, Object key, ReferenceQueue<Object> queue)
+    {
+      this.core = (queue == null) ? new WeakReference<Object>(coreKey) : new CoreReference(coreKey,queue,this);
+      this.key = key;
+      this.hashCode = System.identityHashCode(coreKey) + 31 * key.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (o == this)
+        return true;
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key)o;
+      Object coreKey = core.get();
+      return coreKey != null && coreKey == other.core.get() && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hashCode;
+    }
+  }
+
+  protected static class CoreReference extends WeakReference<Object>
+  {
+    protected final Key key;
+
+    public CoreReference(Object coreKey, ReferenceQueue<Object> queue, Key key)
+    {
+      super(coreKey,queue);
+      this.key = key;
+    }
+  }
+
+}
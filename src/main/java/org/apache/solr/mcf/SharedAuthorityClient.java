@@ -0,0 +1,113 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.commons.httpclient.*;
+
+import java.util.*;
+
+/**
+* Connection pool, token cache and token dictionary for one authority service, shared by
+* every plugin instance in the JVM (across all cores) that uses the same
+* AuthorityServiceBaseURL and is configured with ShareAuthorityClient.  Instances are
+* reference counted: each plugin acquires one, and releases it when its core closes.  The
+* pool is shut down when the last reference is released.
+*/
+public class SharedAuthorityClient
+{
+  /** The shared clients, by authority service base URL */
+  protected static final Map<String,SharedAuthorityClient> clients = new HashMap<String,SharedAuthorityClient>();
+
+  protected final String authorityBaseURL;
+  protected final AuthorityConnectionPool connectionPool;
+  protected final TokenDictionary dictionary;
+  protected final TokenCache tokenCache;
+  protected int references = 0;
+
+  protected SharedAuthorityClient(String authorityBaseURL, AuthorityConnectionPool connectionPool, int tokenCacheSize)
+  {
+    this.authorityBaseURL = authorityBaseURL;
+    this.connectionPool = connectionPool;
+    dictionary = new TokenDictionary();
+    tokenCache = new TokenCache(tokenCacheSize,dictionary);
+  }
+
+  /** Get a reference to the shared client for an authority service, creating it if needed.
+  * If the pool is smaller than requested, it is grown; the token cache, and the rest of the
+  * pool's settings, stay as they were when the client was created.
+  *@param authorityBaseURL is the authority service base URL.
+  *@param poolSize is the connection pool size the caller wants.
+  *@param staleChecking, connectionTimeOut, idleTimeOut and idleCheckInterval configure the pool, if the client is
+  *  created (see AuthorityConnectionPool).
+  *@param tokenCacheSize is the token cache size, if the client is created.
+  */
+  public static SharedAuthorityClient acquire(String authorityBaseURL, int poolSize, boolean staleChecking,
+    int connectionTimeOut, long idleTimeOut, long idleCheckInterval, int tokenCacheSize)
+  {
+    synchronized (clients)
+    {
+      SharedAuthorityClient shared = clients.get(authorityBaseURL);
+      if (shared == null)
+      {
+        shared = new SharedAuthorityClient(authorityBaseURL,
+          new AuthorityConnectionPool(poolSize,staleChecking,connectionTimeOut,idleTimeOut,idleCheckInterval),tokenCacheSize);
+        clients.put(authorityBaseURL,shared);
+      }
+      else
+        shared.connectionPool.ensurePoolSize(poolSize);
+      shared.references++;
+      return shared;
+    }
+  }
+
+  /** Release a reference.  The last release shuts down the connection pool.
+  */
+  public void release()
+  {
+    synchronized (clients)
+    {
+      if (--references > 0)
+        return;
+      clients.remove(authorityBaseURL);
+    }
+    connectionPool.shutdown();
+  }
+
+  public AuthorityConnectionPool getConnectionPool()
+  {
+    return connectionPool;
+  }
+
+  public HttpClient getClient()
+  {
+    return connectionPool.getClient();
+  }
+
+  public TokenCache getTokenCache()
+  {
+    return tokenCache;
+  }
+
+  public int getReferences()
+  {
+    synchronized (clients)
+    {
+      return references;
+    }
+  }
+
+}
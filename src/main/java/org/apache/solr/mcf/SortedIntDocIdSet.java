@@ -0,0 +1,172 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.search.*;
+
+import java.util.*;
+
+/**
+* DocIdSet backed by a sorted array of document numbers.  Used for sparse sets.
+* If inverted, the array instead lists the documents <em>not</em> in the set, which
+* makes it suitable for very dense sets too.
+*/
+public class SortedIntDocIdSet extends DocIdSet
+{
+  protected final int[] docs;
+  protected final int maxDoc;
+  protected final boolean inverted;
+
+  /** Constructor.
+  *@param docs are the sorted document numbers.
+  *@param maxDoc is the number of documents in the segment.
+  *@param inverted is true if docs lists the documents that are excluded from the set.
+  */
+  public SortedIntDocIdSet(int[] docs, int maxDoc, boolean inverted)
+  {
+    this.docs = docs;
+    this.maxDoc = maxDoc;
+    this.inverted = inverted;
+  }
+
+  public int[] getDocs()
+  {
+    return docs;
+  }
+
+  public int getMaxDoc()
+  {
+    return maxDoc;
+  }
+
+  public boolean isInverted()
+  {
+    return inverted;
+  }
+
+  /** Check whether a document is in the set.
+  */
+  public boolean contains(int doc)
+  {
+    return (Arrays.binarySearch(docs,doc) >= 0) != inverted;
+  }
+
+  /** Estimate the memory used by this set, in bytes.
+  */
+  public long ramBytesUsed()
+  {
+    return 32L + 4L * docs.length;
+  }
+
+  @Override
+  public boolean isCacheable()
+  {
+    return true;
+  }
+
+  @Override
+  public DocIdSetIterator iterator()
+  {
+    if (inverted)
+      return new InvertedIterator();
+    return new Iterator();
+  }
+
+  /** Find the first index at or after start whose value is at least target.
+  */
+  protected int seek(int start, int target)
+  {
+    // Gallop, then binary search; targets are usually close to the current position
+    int step = 1;
+    int high = start;
+    while (high < docs.length && docs[high] < target)
+    {
+      start = high + 1;
+      high += step;
+      step <<= 1;
+    }
+    if (high > docs.length)
+      high = docs.length;
+    int index = Arrays.binarySearch(docs,start,high,target);
+    return (index < 0) ? -index - 1 : index;
+  }
+
+  protected class Iterator extends DocIdSetIterator
+  {
+    protected int index = -1;
+    protected int doc = -1;
+
+    @Override
+    public int docID()
+    {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc()
+    {
+      index++;
+      doc = (index < docs.length) ? docs[index] : NO_MORE_DOCS;
+      return doc;
+    }
+
+    @Override
+    public int advance(int target)
+    {
+      index = seek(Math.max(index,0),target);
+      doc = (index < docs.length) ? docs[index] : NO_MORE_DOCS;
+      return doc;
+    }
+  }
+
+  protected class InvertedIterator extends DocIdSetIterator
+  {
+    /** Index of the next excluded document at or after doc */
+    protected int index = 0;
+    protected int doc = -1;
+
+    @Override
+    public int docID()
+    {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc()
+    {
+      return advance(doc + 1);
+    }
+
+    @Override
+    public int advance(int target)
+    {
+      if (doc == NO_MORE_DOCS)
+        return doc;
+      int candidate = target;
+      index = seek(index,candidate);
+      // Skip over any run of excluded documents
+      while (index < docs.length && docs[index] == candidate)
+      {
+        candidate++;
+        index++;
+      }
+      doc = (candidate < maxDoc) ? candidate : NO_MORE_DOCS;
+      return doc;
+    }
+  }
+
+}
@@ -0,0 +1,146 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+
+import java.io.*;
+
+/**
+* Intersects a sorted list of tokens with the terms of one field, in a single forward pass over
+* the field's terms dictionary.  Tokens that the field does not contain are skipped without a
+* lookup of their own.  When the next token is close by, the TermEnum is stepped forward to it;
+* when it is far away, the enum is repositioned with a seek.
+*
+* Typical use:
+*   SortedTermIntersection intersection = new SortedTermIntersection(reader,field,tokens);
+*   try
+*   {
+*     while (intersection.next())
+*       termDocs.seek(intersection.getTermEnum());
+*   }
+*   finally
+*   {
+*     intersection.close();
+*   }
+*/
+public class SortedTermIntersection
+{
+  /** How many terms to step over before seeking instead */
+  protected static final int MAX_SCAN_STEPS = 8;
+
+  protected final IndexReader reader;
+  protected final String field;
+  protected final String[] tokens;
+
+  protected TermEnum termEnum = null;
+  protected int tokenIndex = -1;
+  protected boolean exhausted = false;
+
+  /** Constructor.
+  *@param reader is the reader whose terms dictionary is used.
+  *@param field is the field.
+  *@param tokens are the tokens, sorted in term order and without duplicates.
+  */
+  public SortedTermIntersection(IndexReader reader, String field, String[] tokens)
+  {
+    this.reader = reader;
+    this.field = field;
+    this.tokens = tokens;
+  }
+
+  /** Advance to the next token that the field contains.
+  *@return false if there are no more such tokens.
+  */
+  public boolean next()
+    throws IOException
+  {
+    while (!exhausted && ++tokenIndex < tokens.length)
+    {
+      String token = tokens[tokenIndex];
+      if (termEnum == null)
+        termEnum = reader.terms(new Term(field,token));
+      int steps = 0;
+      while (true)
+      {
+        Term term = termEnum.term();
+        if (term == null || !term.field().equals(field))
+        {
+          // No more terms in this field, so no more matches
+          exhausted = true;
+          return false;
+        }
+        int comparison = term.text().compareTo(token);
+        if (comparison == 0)
+          return true;
+        if (comparison > 0)
+          // The field does not contain this token
+          break;
+        if (++steps > MAX_SCAN_STEPS)
+        {
+          termEnum.close();
+          termEnum = reader.terms(new Term(field,token));
+          steps = 0;
+        }
+        else if (!termEnum.next())
+        {
+          exhausted = true;
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Get the current token. */
+  public String getToken()
+  {
+    return tokens[tokenIndex];
+  }
+
+  /** Get the current term. */
+  public Term getTerm()
+  {
+    return termEnum.term();
+  }
+
+  /** Get the number of documents containing the current term. */
+  public int docFreq()
+  {
+    return termEnum.docFreq();
+  }
+
+  /** Get the TermEnum, positioned on the current term, e.g. for TermDocs.seek(TermEnum).
+  */
+  public TermEnum getTermEnum()
+  {
+    return termEnum;
+  }
+
+  /** Release the TermEnum.
+  */
+  public void close()
+    throws IOException
+  {
+    if (termEnum != null)
+    {
+      termEnum.close();
+      termEnum = null;
+    }
+  }
+
+}
@@ -0,0 +1,248 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.util.NamedList;
+
+import java.util.*;
+
+/**
+* A bounded, least-recently-used cache of the access tokens last obtained
+* from the authority service for each user identity.  Each entry keeps a validator
+* (the authority's ETag, if it sent one) and a hash of its tokens, so that an expired
+* entry can be revalidated rather than replaced: if the authority answers 304 Not
+* Modified, or sends the same tokens again, the entry keeps its token list.
+*/
+public class TokenCache
+{
+  protected final int maxSize;
+  protected final Map<String,Entry> cache;
+  /** Dictionary for the tokens of new entries, or null */
+  protected final TokenDictionary dictionary;
+
+  protected long hits = 0L;
+  protected long misses = 0L;
+  protected long notModified = 0L;
+  protected long unchanged = 0L;
+  protected long changed = 0L;
+
+  public TokenCache(int maxSize)
+  {
+    this(maxSize,null);
+  }
+
+  /** Constructor.
+  *@param maxSize is the most entries kept.
+  *@param dictionary is used to share token instances between entries, or null.
+  */
+  public TokenCache(int maxSize, TokenDictionary dictionary)
+  {
+    this.maxSize = maxSize;
+    this.dictionary = dictionary;
+    this.cache = new LinkedHashMap<String,Entry>(16,0.75f,true)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest)
+        {
+          return size() > TokenCache.this.maxSize;
+        }
+      };
+  }
+
+  /** Build the cache key for a user identity, which may consist of several domain/user tuples.
+  */
+  public static String makeKey(Map<String,String> domainMap)
+  {
+    String[] domains = domainMap.keySet().toArray(new String[domainMap.size()]);
+    Arrays.sort(domains);
+    StringBuilder sb = new StringBuilder();
+    for (String domain : domains)
+    {
+      // Neither of these characters can appear unescaped in the other parts
+      sb.append(domain.replace("\\","\\\\").replace(":","\\:")).append(":")
+        .append(domainMap.get(domain).replace("\\","\\\\").replace("\n","\\n")).append("\n");
+    }
+    return sb.toString();
+  }
+
+  /** Look up an entry, regardless of its age.
+  *@return the entry, or null if there is none.
+  */
+  public synchronized Entry get(String key)
+  {
+    return cache.get(key);
+  }
+
+  /** Look up an entry that was obtained no longer ago than a given lifetime.
+  *@return the entry, or null if there is none, or it has expired.
+  */
+  public synchronized Entry getFresh(String key, long lifetime)
+  {
+    Entry entry = cache.get(key);
+    if (entry != null && System.currentTimeMillis() - entry.fetchTime < lifetime)
+    {
+      hits++;
+      return entry;
+    }
+    misses++;
+    return null;
+  }
+
+  /** Record the tokens fetched for a user.
+  */
+  public void put(String key, List<String> tokens)
+  {
+    put(key,tokens,null);
+  }
+
+  /** Record the tokens fetched for a user, with the authority's validator for them.  If they
+  * are the cached tokens themselves (the authority answered 304 Not Modified), or equal to
+  * them, the cached token list is kept, and only its fetch time and validator are updated.
+  * Tokens sent with a validator are equal to the cached ones if the validator is the same;
+  * only tokens without one, replacing an entry, are compared by hash.
+  *@param validator is the ETag of the authority's response, or null.
+  *@return the token list now cached, which should be used in place of the one passed in.
+  */
+  public List<String> put(String key, List<String> tokens, String validator)
+  {
+    Entry existing;
+    synchronized (this)
+    {
+      existing = cache.get(key);
+    }
+    long now = System.currentTimeMillis();
+    Entry entry;
+    if (existing != null && tokens == existing.tokens)
+    {
+      entry = new Entry(existing,now,(validator == null) ? existing.validator : validator);
+      synchronized (this)
+      {
+        notModified++;
+      }
+    }
+    else
+    {
+      String hash = null;
+      boolean same;
+      if (existing == null)
+        same = false;
+      else if (validator != null)
+        same = validator.equals(existing.validator);
+      else
+      {
+        hash = computeHash(tokens);
+        same = hash.equals(existing.getHash());
+      }
+      if (same)
+      {
+        entry = new Entry(existing,now,validator);
+        synchronized (this)
+        {
+          unchanged++;
+        }
+      }
+      else
+      {
+        entry = new Entry((dictionary == null) ? tokens : dictionary.intern(tokens),now,validator,hash);
+        synchronized (this)
+        {
+          if (existing != null)
+            changed++;
+        }
+      }
+    }
+    synchronized (this)
+    {
+      cache.put(key,entry);
+    }
+    return entry.tokens;
+  }
+
+  /** Hash a token list regardless of order (see TokenSetRegistry.computeID).
+  */
+  protected static String computeHash(List<String> tokens)
+  {
+    return TokenSetRegistry.computeID(new ArrayList<String>(new TreeSet<String>(tokens)));
+  }
+
+  public synchronized int size()
+  {
+    return cache.size();
+  }
+
+  /** Add the cache statistics to a statistics list.
+  */
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    stats.add("tokenCacheSize",cache.size());
+    stats.add("tokenCacheHits",hits);
+    stats.add("tokenCacheMisses",misses);
+    stats.add("tokenCacheNotModified",notModified);
+    stats.add("tokenCacheUnchanged",unchanged);
+    stats.add("tokenCacheChanged",changed);
+    if (dictionary != null)
+      stats.add("tokenDictionarySize",dictionary.size());
+  }
+
+  /** A cached token list, with the time it was obtained.
+  */
+  public static class Entry
+  {
+    public final List<String> tokens;
+    public final long fetchTime;
+    /** The authority's ETag for the tokens, or null */
+    public final String validator;
+    /** Hash of the tokens, or null until it is first needed */
+    protected volatile String hash;
+
+    /** Constructor.
+    *@param hash is the hash of the tokens, if it is known, or null.
+    */
+    public Entry(List<String> tokens, long fetchTime, String validator, String hash)
+    {
+      this.tokens = Collections.unmodifiableList(new ArrayList<String>(tokens));
+      this.fetchTime = fetchTime;
+      this.validator = validator;
+      this.hash = hash;
+    }
+
+    /** Revalidated copy of an entry, sharing its token list. */
+    protected Entry(Entry entry, long fetchTime, String validator)
+    {
+      this.tokens = entry.tokens;
+      this.fetchTime = fetchTime;
+      this.validator = validator;
+      this.hash = entry.hash;
+    }
+
+    /** Get the hash of the tokens, regardless of their order.
+    */
+    public String getHash()
+    {
+      String rval = hash;
+      if (rval == null)
+      {
+        rval = computeHash(tokens);
+        hash = rval;
+      }
+      return rval;
+    }
+  }
+
+}
@@ -0,0 +1,56 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import java.lang.ref.*;
+import java.util.*;
+
+/**
+* Keeps one instance of each access token string, so that the token lists of many users
+* (who mostly share the same groups) do not each hold their own copies.  Tokens are held
+* weakly, and disappear from the dictionary once no cached list uses them.
+*/
+public class TokenDictionary
+{
+  protected final Map<String,WeakReference<String>> tokens = new WeakHashMap<String,WeakReference<String>>();
+
+  /** Get the shared instance of each token in a list.
+  *@return a new list of the shared instances.
+  */
+  public synchronized List<String> intern(List<String> list)
+  {
+    List<String> result = new ArrayList<String>(list.size());
+    for (String token : list)
+    {
+      WeakReference<String> ref = tokens.get(token);
+      String shared = (ref == null) ? null : ref.get();
+      if (shared == null)
+      {
+        shared = token;
+        tokens.put(shared,new WeakReference<String>(shared));
+      }
+      result.add(shared);
+    }
+    return result;
+  }
+
+  public synchronized int size()
+  {
+    return tokens.size();
+  }
+
+}
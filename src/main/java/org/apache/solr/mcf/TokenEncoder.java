@@ -0,0 +1,88 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import java.util.*;
+
+/**
+* Maps access tokens to short, fixed-width IDs: a stable 64-bit hash of the token, written as
+* eleven URL-safe base-64 characters.  The same encoding must be used at index time (see
+* ManifoldCFTokenCompactionProcessorFactory) and at query time.  The special no-security
+* token is left as it is.
+*/
+public class TokenEncoder
+{
+  protected static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  protected static final long FNV_PRIME = 0x100000001b3L;
+  protected static final char[] ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  private TokenEncoder()
+  {
+  }
+
+  /** Encode one token.
+  */
+  public static String encode(String token)
+  {
+    if (token.equals(ManifoldCFSearchComponent.NOSECURITY_TOKEN))
+      return token;
+    long hash = hash(token);
+    char[] chars = new char[11];
+    for (int i = chars.length - 1; i >= 0; i--)
+    {
+      chars[i] = ALPHABET[(int)(hash & 0x3fL)];
+      hash >>>= 6;
+    }
+    return new String(chars);
+  }
+
+  /** Encode a list of tokens.
+  */
+  public static List<String> encode(List<String> tokens)
+  {
+    List<String> result = new ArrayList<String>(tokens.size());
+    for (String token : tokens)
+    {
+      result.add(encode(token));
+    }
+    return result;
+  }
+
+  /** Compute the 64-bit hash of a token: FNV-1a over its UTF-16 code units, followed by a
+  * final avalanche step so that similar tokens spread over all of the bits.
+  */
+  protected static long hash(String token)
+  {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < token.length(); i++)
+    {
+      char c = token.charAt(i);
+      hash ^= (c & 0xff);
+      hash *= FNV_PRIME;
+      hash ^= (c >>> 8);
+      hash *= FNV_PRIME;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+}
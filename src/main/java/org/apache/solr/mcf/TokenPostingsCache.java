@@ -0,0 +1,116 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* A memory-bounded cache of the documents containing individual access tokens, per index
+* segment.  Only common tokens are worth caching ("Everyone", "Domain Users" and the like),
+* so a token's postings are admitted once the token has been used a minimum number of times
+* and has at least a minimum document frequency in the segment.  Rare tokens are always read
+* from the index.
+*/
+public class TokenPostingsCache extends SegmentDocIdSetCache
+{
+  /** The most tokens whose use is counted before admission */
+  protected static final int MAX_TRACKED_TOKENS = 10000;
+
+  protected final int minDocFreq;
+  protected final int minUses;
+  /** How often each not yet admitted term has been asked for */
+  protected final Map<Term,Integer> useCounts;
+
+  protected long admissions = 0L;
+
+  /** Constructor.
+  *@param maxBytes is the memory budget for cached postings, in bytes.
+  *@param minDocFreq is the smallest document frequency, in a segment, worth caching.
+  *@param minUses is the number of times a term must be asked for before it is cached.
+  */
+  public TokenPostingsCache(long maxBytes, int minDocFreq, int minUses)
+  {
+    super("postingsCache",maxBytes);
+    this.minDocFreq = minDocFreq;
+    this.minUses = minUses;
+    this.useCounts = new LinkedHashMap<Term,Integer>(16,0.75f,true)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Term,Integer> eldest)
+        {
+          return size() > MAX_TRACKED_TOKENS;
+        }
+      };
+  }
+
+  /** Get the documents of a segment containing a term, if they are cached or worth caching.
+  * The result may include documents the reader has deleted since it was cached.
+  *@return the set, or null if the caller should read the postings itself.
+  */
+  public DocIdSet getPostings(IndexReader reader, Term term)
+    throws IOException
+  {
+    DocIdSet set = getUnfiltered(reader,term);
+    if (set != null)
+      return set;
+    synchronized (this)
+    {
+      Integer uses = useCounts.get(term);
+      uses = new Integer((uses == null) ? 1 : uses.intValue() + 1);
+      if (uses.intValue() < minUses)
+      {
+        useCounts.put(term,uses);
+        return null;
+      }
+    }
+    if (reader.docFreq(term) < minDocFreq)
+      return null;
+    OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+    TermDocs termDocs = reader.termDocs();
+    try
+    {
+      AclFilter.addPostings(termDocs,term,bits);
+    }
+    finally
+    {
+      termDocs.close();
+    }
+    set = CompressedDocIdSets.compress(bits,reader.maxDoc());
+    put(reader,term,set,CompressedDocIdSets.ramBytesUsed(bits));
+    synchronized (this)
+    {
+      admissions++;
+    }
+    return set;
+  }
+
+  @Override
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    super.addStatistics(stats);
+    stats.add(statisticsPrefix+"Admissions",admissions);
+  }
+
+}
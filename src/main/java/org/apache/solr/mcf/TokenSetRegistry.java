@@ -0,0 +1,164 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+* Holds the access token sets that callers have registered with a core (see
+* ManifoldCFTokenSetHandler), so that later requests can refer to a set by a short ID instead
+* of passing every token.  The ID is a hash of the set's contents, so registering the same
+* set twice gives the same ID.  The registry is bounded; the least recently used sets are
+* forgotten first, and callers must then register them again.
+*/
+public class TokenSetRegistry
+{
+  /** The default number of token sets kept */
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  /** One registry per core */
+  protected static final Map<SolrCore,TokenSetRegistry> registries = new WeakHashMap<SolrCore,TokenSetRegistry>();
+
+  protected int maxSize = DEFAULT_MAX_SIZE;
+  /** The token sets, sorted and without duplicates, by ID, in access order */
+  protected final LinkedHashMap<String,List<String>> tokenSets = new LinkedHashMap<String,List<String>>(16,0.75f,true);
+
+  protected long registrations = 0L;
+  protected long lookups = 0L;
+  protected long misses = 0L;
+  protected long evictions = 0L;
+
+  /** Get the registry of a core, creating it if needed.
+  */
+  public static TokenSetRegistry getRegistry(SolrCore core)
+  {
+    synchronized (registries)
+    {
+      TokenSetRegistry registry = registries.get(core);
+      if (registry == null)
+      {
+        registry = new TokenSetRegistry();
+        registries.put(core,registry);
+      }
+      return registry;
+    }
+  }
+
+  /** Set the number of token sets kept.
+  */
+  public synchronized void setMaxSize(int maxSize)
+  {
+    this.maxSize = maxSize;
+    evict();
+  }
+
+  /** Register a token set.
+  *@return the set's ID.
+  */
+  public String register(Collection<String> tokens)
+  {
+    List<String> canonical = new ArrayList<String>(new TreeSet<String>(tokens));
+    String id = computeID(canonical);
+    synchronized (this)
+    {
+      registrations++;
+      if (tokenSets.get(id) == null)
+      {
+        tokenSets.put(id,Collections.unmodifiableList(canonical));
+        evict();
+      }
+    }
+    return id;
+  }
+
+  /** Look up a token set.
+  *@return the tokens, sorted, or null if the ID is not (or no longer) registered.
+  */
+  public synchronized List<String> get(String id)
+  {
+    lookups++;
+    List<String> tokens = tokenSets.get(id);
+    if (tokens == null)
+      misses++;
+    return tokens;
+  }
+
+  public synchronized int size()
+  {
+    return tokenSets.size();
+  }
+
+  /** Add the registry statistics to a statistics list.
+  */
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    stats.add("tokenSets",tokenSets.size());
+    stats.add("tokenSetRegistrations",registrations);
+    stats.add("tokenSetLookups",lookups);
+    stats.add("tokenSetMisses",misses);
+    stats.add("tokenSetEvictions",evictions);
+  }
+
+  protected void evict()
+  {
+    Iterator<String> iterator = tokenSets.keySet().iterator();
+    while (tokenSets.size() > maxSize && iterator.hasNext())
+    {
+      iterator.next();
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  /** Compute the ID of a sorted token set: the hex SHA-1 hash of its tokens.
+  */
+  protected static String computeID(List<String> tokens)
+  {
+    try
+    {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      for (String token : tokens)
+      {
+        digest.update(token.getBytes("UTF-8"));
+        // Separator, which cannot occur in UTF-8
+        digest.update((byte)0xff);
+      }
+      byte[] hash = digest.digest();
+      StringBuilder sb = new StringBuilder(hash.length * 2);
+      for (byte b : hash)
+      {
+        sb.append(Character.forDigit((b >> 4) & 0xf,16));
+        sb.append(Character.forDigit(b & 0xf,16));
+      }
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new RuntimeException("SHA-1 not supported: "+e.getMessage(),e);
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new RuntimeException("UTF-8 not supported: "+e.getMessage(),e);
+    }
+  }
+
+}
@@ -0,0 +1,263 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+
+/**
+* Holds the ACL fields of each index segment in uninverted form: for every document, the
+* ordinals of the terms it has in the field.  Like the FieldCache, entries are built on first
+* use, and are dropped once their segment is no longer in use; unlike it, they are bounded by
+* memory, and the least recently used fields are evicted to make room.  A field too large for
+* the whole budget is uninverted for the search that needs it, and not kept.
+*/
+public class UninvertedAclCache
+{
+  protected final long maxBytes;
+  /** Uninverted fields, by segment core and field name, least recently used first */
+  protected final Map<SegmentDocIdSetCache.Key,UninvertedField> entries = new LinkedHashMap<SegmentDocIdSetCache.Key,UninvertedField>(16,0.75f,true);
+  protected final ReferenceQueue<Object> collectedCores = new ReferenceQueue<Object>();
+
+  protected long bytes = 0L;
+  protected long uninversions = 0L;
+  protected long uninversionTime = 0L;
+  protected long evictions = 0L;
+
+  /** Constructor.
+  *@param maxBytes is the memory budget for uninverted fields, in bytes.
+  */
+  public UninvertedAclCache(long maxBytes)
+  {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Get the uninverted form of a field in a segment, building it if needed.
+  */
+  public UninvertedField getField(IndexReader reader, String field)
+    throws IOException
+  {
+    Object coreKey = reader.getCoreCacheKey();
+    synchronized (this)
+    {
+      expungeCollectedCores();
+      UninvertedField result = entries.get(new SegmentDocIdSetCache.Key(coreKey,field,null));
+      if (result != null)
+        return result;
+    }
+    long startTime = System.currentTimeMillis();
+    UninvertedField result = new UninvertedField(reader,field);
+    long size = result.ramBytesUsed();
+    synchronized (this)
+    {
+      uninversions++;
+      uninversionTime += System.currentTimeMillis() - startTime;
+      if (size > maxBytes)
+        return result;
+      expungeCollectedCores();
+      SegmentDocIdSetCache.Key cacheKey = new SegmentDocIdSetCache.Key(coreKey,field,collectedCores);
+      // Another thread may have uninverted the same field meanwhile
+      UninvertedField existing = entries.get(cacheKey);
+      if (existing != null)
+        return existing;
+      cacheKey.size = size;
+      entries.put(cacheKey,result);
+      bytes += size;
+      Iterator<SegmentDocIdSetCache.Key> iter = entries.keySet().iterator();
+      while (bytes > maxBytes && iter.hasNext())
+      {
+        SegmentDocIdSetCache.Key eldest = iter.next();
+        iter.remove();
+        bytes -= eldest.size;
+        evictions++;
+      }
+    }
+    return result;
+  }
+
+  /** Remove the entries for segments that have been garbage collected.
+  */
+  protected void expungeCollectedCores()
+  {
+    Reference<?> ref;
+    while ((ref = collectedCores.poll()) != null)
+    {
+      SegmentDocIdSetCache.Key key = ((SegmentDocIdSetCache.CoreReference)ref).key;
+      if (entries.remove(key) != null)
+        bytes -= key.size;
+    }
+  }
+
+  /** Get the number of uninverted fields kept, over all segments.
+  */
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+  /** Add the cache statistics to a statistics list.
+  */
+  public synchronized void addStatistics(NamedList<Object> stats)
+  {
+    stats.add("uninvertedFields",entries.size());
+    stats.add("uninvertedBytes",bytes);
+    stats.add("uninvertedMaxBytes",maxBytes);
+    stats.add("uninvertedEvictions",evictions);
+    stats.add("uninversions",uninversions);
+    stats.add("uninversionTimeMs",uninversionTime);
+  }
+
+  /** One field of one segment, uninverted.  The ordinals of document d are
+  * ords[docStarts[d]] up to (not including) ords[docStarts[d+1]].
+  */
+  public static class UninvertedField
+  {
+    /** The field's terms, in index order; a term's ordinal is its position */
+    protected final String[] terms;
+    protected final int[] docStarts;
+    protected final int[] ords;
+
+    public UninvertedField(IndexReader reader, String field)
+      throws IOException
+    {
+      int maxDoc = reader.maxDoc();
+      List<String> termList = new ArrayList<String>();
+      int[] counts = new int[maxDoc + 1];
+      TermDocs termDocs = reader.termDocs();
+      int[] docs = new int[64];
+      int[] freqs = new int[64];
+      try
+      {
+        // First pass: collect the terms and count the ordinals of each document
+        TermEnum termEnum = reader.terms(new Term(field,""));
+        try
+        {
+          do
+          {
+            Term term = termEnum.term();
+            if (term == null || !term.field().equals(field))
+              break;
+            termList.add(term.text());
+            termDocs.seek(termEnum);
+            int count;
+            while ((count = termDocs.read(docs,freqs)) != 0)
+            {
+              for (int i = 0; i < count; i++)
+                counts[docs[i]]++;
+            }
+          }
+          while (termEnum.next());
+        }
+        finally
+        {
+          termEnum.close();
+        }
+        terms = termList.toArray(new String[termList.size()]);
+        docStarts = new int[maxDoc + 1];
+        int total = 0;
+        for (int doc = 0; doc < maxDoc; doc++)
+        {
+          docStarts[doc] = total;
+          total += counts[doc];
+        }
+        docStarts[maxDoc] = total;
+        ords = new int[total];
+        // Second pass: walk the same terms again, filling in the ordinals, and reusing counts as the fill positions
+        System.arraycopy(docStarts,0,counts,0,maxDoc + 1);
+        termEnum = reader.terms(new Term(field,""));
+        try
+        {
+          for (int ord = 0; ord < terms.length; ord++)
+          {
+            termDocs.seek(termEnum);
+            int count;
+            while ((count = termDocs.read(docs,freqs)) != 0)
+            {
+              for (int i = 0; i < count; i++)
+                ords[counts[docs[i]]++] = ord;
+            }
+            termEnum.next();
+          }
+        }
+        finally
+        {
+          termEnum.close();
+        }
+      }
+      finally
+      {
+        termDocs.close();
+      }
+    }
+
+    /** Find the ordinal of a term.
+    *@return the ordinal, or -1 if the field does not contain the term.
+    */
+    public int getOrd(String text)
+    {
+      int index = Arrays.binarySearch(terms,text);
+      return (index < 0) ? -1 : index;
+    }
+
+    public int getTermCount()
+    {
+      return terms.length;
+    }
+
+    /** Check whether a document has any of the terms whose ordinals are set.
+    */
+    public boolean hasAny(int doc, long[] ordBits)
+    {
+      for (int i = docStarts[doc]; i < docStarts[doc + 1]; i++)
+      {
+        int ord = ords[i];
+        if ((ordBits[ord >>> 6] & (1L << ord)) != 0L)
+          return true;
+      }
+      return false;
+    }
+
+    /** Check whether a document has a term.
+    */
+    public boolean has(int doc, int ord)
+    {
+      if (ord < 0)
+        return false;
+      for (int i = docStarts[doc]; i < docStarts[doc + 1]; i++)
+      {
+        if (ords[i] == ord)
+          return true;
+      }
+      return false;
+    }
+
+    /** Estimate the memory used, in bytes.
+    */
+    public long ramBytesUsed()
+    {
+      long bytes = 64L + 4L * docStarts.length + 4L * ords.length;
+      for (String term : terms)
+        bytes += 40L + 2L * term.length();
+      return bytes;
+    }
+  }
+
+}
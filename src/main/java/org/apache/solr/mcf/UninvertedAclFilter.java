@@ -0,0 +1,148 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.solr.mcf;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* Filter that evaluates ManifoldCF document security against the uninverted ACL fields of
+* each segment (see UninvertedAclCache).  The user's tokens are looked up once per field, as
+* a bit set over the field's term ordinals; each document is then checked against its own
+* ordinals, with no per-token postings reads.  This suits users with very many tokens.
+*/
+public class UninvertedAclFilter extends Filter
+{
+  private static final long serialVersionUID = 1L;
+
+  protected final String[] allowFields;
+  protected final String[] denyFields;
+  protected final String[] tokens;
+  protected final UninvertedAclCache uninvertedCache;
+  protected final AclFilterCache.TokenSetKey tokenSetKey;
+
+  /** Constructor.
+  *@param allowFields are the allow fields, one per level.
+  *@param denyFields are the corresponding deny fields.
+  *@param userAccessTokens are the user's access tokens.
+  *@param uninvertedCache holds the uninverted fields.
+  */
+  public UninvertedAclFilter(String[] allowFields, String[] denyFields, Collection<String> userAccessTokens,
+    UninvertedAclCache uninvertedCache)
+  {
+    this.allowFields = allowFields;
+    this.denyFields = denyFields;
+    SortedSet<String> sortedTokens = new TreeSet<String>(userAccessTokens);
+    this.tokens = sortedTokens.toArray(new String[sortedTokens.size()]);
+    this.uninvertedCache = uninvertedCache;
+    this.tokenSetKey = new AclFilterCache.TokenSetKey(allowFields,denyFields,tokens);
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(IndexReader reader)
+    throws IOException
+  {
+    int levels = allowFields.length;
+    UninvertedAclCache.UninvertedField[] allow = new UninvertedAclCache.UninvertedField[levels];
+    UninvertedAclCache.UninvertedField[] deny = new UninvertedAclCache.UninvertedField[levels];
+    long[][] allowOrds = new long[levels][];
+    long[][] denyOrds = new long[levels][];
+    int[] allowOpenOrd = new int[levels];
+    int[] denyOpenOrd = new int[levels];
+    boolean[] anyDeny = new boolean[levels];
+    for (int level = 0; level < levels; level++)
+    {
+      allow[level] = uninvertedCache.getField(reader,allowFields[level]);
+      deny[level] = uninvertedCache.getField(reader,denyFields[level]);
+      allowOrds[level] = getOrdBits(allow[level]);
+      denyOrds[level] = getOrdBits(deny[level]);
+      allowOpenOrd[level] = allow[level].getOrd(ManifoldCFSearchComponent.NOSECURITY_TOKEN);
+      denyOpenOrd[level] = deny[level].getOrd(ManifoldCFSearchComponent.NOSECURITY_TOKEN);
+      anyDeny[level] = !isEmpty(denyOrds[level]);
+    }
+
+    int maxDoc = reader.maxDoc();
+    OpenBitSet result = new OpenBitSet(maxDoc);
+    boolean hasDeletions = reader.hasDeletions();
+    for (int doc = 0; doc < maxDoc; doc++)
+    {
+      if (hasDeletions && reader.isDeleted(doc))
+        continue;
+      boolean allowed = true;
+      for (int level = 0; level < levels && allowed; level++)
+      {
+        // Open documents have the special token in both the allow and the deny field
+        allowed = (allow[level].has(doc,allowOpenOrd[level]) && deny[level].has(doc,denyOpenOrd[level])) ||
+          allow[level].hasAny(doc,allowOrds[level]);
+        if (allowed && anyDeny[level])
+          allowed = !deny[level].hasAny(doc,denyOrds[level]);
+      }
+      if (allowed)
+        result.fastSet(doc);
+    }
+    return result;
+  }
+
+  /** Build the bit set of the ordinals of the user's tokens in a field.
+  */
+  protected long[] getOrdBits(UninvertedAclCache.UninvertedField field)
+  {
+    long[] bits = new long[(field.getTermCount() + 63) >>> 6];
+    for (String token : tokens)
+    {
+      int ord = field.getOrd(token);
+      if (ord >= 0)
+        bits[ord >>> 6] |= 1L << ord;
+    }
+    return bits;
+  }
+
+  protected static boolean isEmpty(long[] bits)
+  {
+    for (long word : bits)
+    {
+      if (word != 0L)
+        return false;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (!(o instanceof UninvertedAclFilter))
+      return false;
+    return tokenSetKey.equals(((UninvertedAclFilter)o).tokenSetKey);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return tokenSetKey.hashCode() + 17;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "UninvertedAclFilter(" + tokens.length + " tokens)";
+  }
+
+}
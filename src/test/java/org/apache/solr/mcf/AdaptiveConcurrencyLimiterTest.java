@@ -0,0 +1,172 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.solr.mcf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.common.SolrException;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimiterTest extends LuceneTestCase {
+
+  // Takes a slot in another thread, and holds it until told to release it
+  static class Holder extends Thread {
+    final AdaptiveConcurrencyLimiter limiter;
+    final long deadline;
+    volatile boolean acquired = false;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    Holder(AdaptiveConcurrencyLimiter limiter, long deadline) {
+      this.limiter = limiter;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void run() {
+      try {
+        limiter.acquire(deadline);
+        acquired = true;
+      } catch (Throwable e) {
+        failure.set(e);
+      }
+    }
+  }
+
+  static void waitForQueueDepth(AdaptiveConcurrencyLimiter limiter, int depth) throws InterruptedException {
+    long waitUntil = System.currentTimeMillis() + 5000L;
+    while (limiter.getQueueDepth() != depth && System.currentTimeMillis() < waitUntil)
+      Thread.sleep(10L);
+    assertEquals(depth, limiter.getQueueDepth());
+  }
+
+  @Test
+  public void testQueueAndReject() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 2, 1);
+    limiter.acquire(0L);
+    limiter.acquire(0L);
+    // The third caller waits for a slot
+    Holder waiting = new Holder(limiter, 0L);
+    waiting.start();
+    waitForQueueDepth(limiter, 1);
+    assertFalse(waiting.acquired);
+    // The queue is full, so the fourth is turned away at once
+    try {
+      limiter.acquire(0L);
+      fail("Request should have been rejected");
+    } catch (SolrException e) {
+      assertEquals(SolrException.ErrorCode.SERVICE_UNAVAILABLE.code, e.code());
+    }
+    // A slot coming free lets the waiting caller in
+    limiter.release(10L, true);
+    waiting.join(5000L);
+    assertTrue(waiting.acquired);
+    assertNull(waiting.failure.get());
+    assertEquals(0, limiter.getQueueDepth());
+    assertFalse(limiter.tryAcquire());
+  }
+
+  @Test
+  public void testDeadlineWhileQueued() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 10);
+    limiter.acquire(0L);
+    Holder waiting = new Holder(limiter, System.currentTimeMillis() + 100L);
+    waiting.start();
+    waiting.join(5000L);
+    assertFalse(waiting.acquired);
+    assertTrue(waiting.failure.get() instanceof AuthorityDeadlineExceededException);
+    assertEquals(0, limiter.getQueueDepth());
+  }
+
+  @Test
+  public void testAdditiveIncrease() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 4, 10);
+    // Requests that use every slot, at a steady latency, raise the limit to its maximum
+    for (int round = 0; round < 20; round++) {
+      int limit = limiter.getLimit();
+      for (int i = 0; i < limit; i++)
+        limiter.acquire(0L);
+      for (int i = 0; i < limit; i++)
+        limiter.release(10L, true);
+    }
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testMultiplicativeDecrease() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 10, 10);
+    limiter.acquire(0L);
+    limiter.release(10L, true);
+    // Latency well above the baseline cuts the limit back
+    limiter.acquire(0L);
+    limiter.release(100L, true);
+    assertEquals(9, limiter.getLimit());
+    // So does a failure, however fast
+    limiter.acquire(0L);
+    limiter.release(1L, false);
+    assertEquals(8, limiter.getLimit());
+    // But never below one
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire(0L);
+      limiter.release(1L, false);
+    }
+    assertEquals(1, limiter.getLimit());
+  }
+
+  @Test
+  public void testConcurrentCallersStayWithinLimit() throws Exception {
+    final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(3, 3, 100);
+    final AtomicInteger inFlight = new AtomicInteger(0);
+    final AtomicInteger maxInFlight = new AtomicInteger(0);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 12; t++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 20; i++) {
+              limiter.acquire(0L);
+              int current = inFlight.incrementAndGet();
+              synchronized (maxInFlight) {
+                if (current > maxInFlight.get())
+                  maxInFlight.set(current);
+              }
+              Thread.sleep(1L);
+              inFlight.decrementAndGet();
+              limiter.release(1L, true);
+            }
+          } catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads)
+      thread.join(30000L);
+    assertNull(failure.get());
+    assertTrue(maxInFlight.get() <= 3);
+    assertTrue(maxInFlight.get() > 1);
+    assertEquals(0, limiter.getQueueDepth());
+  }
+}
@@ -0,0 +1,97 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.solr.mcf;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.common.util.NamedList;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+public class AuthorityConnectionPoolTest extends LuceneTestCase {
+
+  static final String BASE_URL = "http://localhost:8348";
+
+  static Server server;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    server = new Server(8348);
+    Context asContext = new Context(server,"/mcf-as",Context.SESSIONS);
+    asContext.addServlet(new ServletHolder(new AuthorityRequestTest.UserACLServlet()), "/UserACLs");
+    server.start();
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    server.stop();
+  }
+
+  static int statistic(AuthorityConnectionPool pool, String name) {
+    NamedList<Object> stats = new NamedList<Object>();
+    pool.addStatistics(stats);
+    return ((Number)stats.get(name)).intValue();
+  }
+
+  static void waitForStatistic(AuthorityConnectionPool pool, String name, int value) throws InterruptedException {
+    long waitUntil = System.currentTimeMillis() + 5000L;
+    while (statistic(pool, name) != value && System.currentTimeMillis() < waitUntil)
+      Thread.sleep(50L);
+    assertEquals(value, statistic(pool, name));
+  }
+
+  @Test
+  public void testPrewarmAndIdleClose() throws Exception {
+    AuthorityConnectionPool pool = new AuthorityConnectionPool(4,false,1000,1000L,100L);
+    try {
+      // Connections are opened in the background
+      pool.prewarm(BASE_URL + "/mcf-as", 2);
+      waitForStatistic(pool, "prewarmedConnections", 2);
+      assertEquals(2, statistic(pool, "pooledConnections"));
+      // And closed once they have been idle for a second
+      waitForStatistic(pool, "pooledConnections", 0);
+      // Which does not get in the way of later requests
+      AuthorityRequest request = new AuthorityRequest(pool, BASE_URL + "/mcf-as", Collections.singletonMap("", "user1"), 3000, 0L);
+      assertEquals(Arrays.asList("token1"), request.execute());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testPrewarmCountsOpenConnections() throws Exception {
+    AuthorityConnectionPool pool = new AuthorityConnectionPool(4,false,1000,0L,0L);
+    try {
+      AuthorityRequest request = new AuthorityRequest(pool, BASE_URL + "/mcf-as", Collections.singletonMap("", "user1"), 3000, 0L);
+      assertEquals(Arrays.asList("token1"), request.execute());
+      assertEquals(1, statistic(pool, "pooledConnections"));
+      // The connection already open counts towards the number wanted
+      pool.prewarm(BASE_URL + "/mcf-as", 2);
+      waitForStatistic(pool, "prewarmedConnections", 1);
+      assertEquals(2, statistic(pool, "pooledConnections"));
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
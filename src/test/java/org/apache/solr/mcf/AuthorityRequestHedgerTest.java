@@ -0,0 +1,96 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.solr.mcf;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.common.util.NamedList;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+public class AuthorityRequestHedgerTest extends LuceneTestCase {
+
+  static final String BASE_URL = "http://localhost:8348";
+
+  static Server server;
+  static AuthorityConnectionPool pool;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    server = new Server(8348);
+    Context asContext = new Context(server,"/mcf-as",Context.SESSIONS);
+    asContext.addServlet(new ServletHolder(new AuthorityRequestTest.UserACLServlet()), "/UserACLs");
+    Context slowContext = new Context(server,"/mcf-slow-as",Context.SESSIONS);
+    slowContext.addServlet(new ServletHolder(new AuthorityRequestTest.SlowUserACLServlet()), "/UserACLs");
+    server.start();
+    pool = new AuthorityConnectionPool(4,false,1000,0L,0L);
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    pool.shutdown();
+    server.stop();
+  }
+
+  static AuthorityRequest request(String context, String user) throws Exception {
+    Map<String,String> domainMap = Collections.singletonMap("", user);
+    return new AuthorityRequest(pool, BASE_URL + context, domainMap, 5000, System.currentTimeMillis() + 5000L);
+  }
+
+  @Test
+  public void testHedgeWinsWhenPrimaryIsSlow() throws Exception {
+    AuthorityRequestHedger hedger = new AuthorityRequestHedger(95.0, 100L, 10.0);
+    long startTime = System.currentTimeMillis();
+    assertEquals(Arrays.asList("token1", "token2"), hedger.execute(request("/mcf-slow-as", "user2"), request("/mcf-as", "user2")));
+    // The answer comes from the hedge, long before the primary's
+    assertTrue(System.currentTimeMillis() - startTime < 1500L);
+    assertEquals(1L, hedger.getHedgesSent());
+    assertEquals(1L, hedger.getHedgesWon());
+  }
+
+  @Test
+  public void testNoHedgeWhenPrimaryIsFast() throws Exception {
+    AuthorityRequestHedger hedger = new AuthorityRequestHedger(95.0, 1000L, 10.0);
+    assertEquals(Arrays.asList("token1"), hedger.execute(request("/mcf-as", "user1"), request("/mcf-slow-as", "user1")));
+    assertEquals(0L, hedger.getHedgesSent());
+    assertEquals(0L, hedger.getHedgesWon());
+  }
+
+  @Test
+  public void testBudget() throws Exception {
+    // No budget at all, so the slow primary must be waited for
+    AuthorityRequestHedger hedger = new AuthorityRequestHedger(95.0, 100L, 0.0);
+    hedger.budget = 0.0;
+    assertEquals(Arrays.asList("token1"), hedger.execute(request("/mcf-slow-as", "user1"), request("/mcf-as", "user1")));
+    assertEquals(0L, hedger.getHedgesSent());
+    assertEquals(1L, ((Number)statistics(hedger).get("hedgesDeniedByBudget")).longValue());
+  }
+
+  static NamedList<Object> statistics(AuthorityRequestHedger hedger) {
+    NamedList<Object> stats = new NamedList<Object>();
+    hedger.addStatistics(stats);
+    return stats;
+  }
+}
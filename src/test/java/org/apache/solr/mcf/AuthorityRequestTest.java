@@ -0,0 +1,214 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.solr.mcf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+public class AuthorityRequestTest extends LuceneTestCase {
+
+  static final String BASE_URL = "http://localhost:8348";
+
+  static Server server;
+  static AuthorityConnectionPool pool;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    server = new Server(8348);
+    Context asContext = new Context(server,"/mcf-as",Context.SESSIONS);
+    asContext.addServlet(new ServletHolder(new UserACLServlet()), "/UserACLs");
+    Context stallingContext = new Context(server,"/mcf-stalling-as",Context.SESSIONS);
+    stallingContext.addServlet(new ServletHolder(new StallingUserACLServlet()), "/UserACLs");
+    Context slowContext = new Context(server,"/mcf-slow-as",Context.SESSIONS);
+    slowContext.addServlet(new ServletHolder(new SlowUserACLServlet()), "/UserACLs");
+    server.start();
+    pool = new AuthorityConnectionPool(2,false,1000,0L,0L);
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    pool.shutdown();
+    server.stop();
+  }
+
+  static Map<String,String> user(String name) {
+    return Collections.singletonMap("", name);
+  }
+
+  @Test
+  public void testExecute() throws Exception {
+    AuthorityRequest request = new AuthorityRequest(pool, BASE_URL + "/mcf-as", user("user2"), 3000, 0L);
+    assertEquals(Arrays.asList("token1", "token2"), request.execute());
+  }
+
+  @Test
+  public void testCompressedResponse() throws Exception {
+    int compressed = UserACLServlet.compressedResponses.get();
+    AuthorityRequest request = new AuthorityRequest(pool, BASE_URL + "/mcf-as", user("user3"), 3000, 0L, true, false);
+    assertEquals(Arrays.asList("token1", "token2", "token3"), request.execute());
+    assertEquals(compressed + 1, UserACLServlet.compressedResponses.get());
+  }
+
+  @Test
+  public void testBinaryResponse() throws Exception {
+    int binary = UserACLServlet.binaryResponses.get();
+    AuthorityRequest request = new AuthorityRequest(pool, BASE_URL + "/mcf-as", user("user3"), 3000, 0L, true, true);
+    assertEquals(Arrays.asList("token1", "token2", "token3"), request.execute());
+    assertEquals(binary + 1, UserACLServlet.binaryResponses.get());
+    // A user without tokens gets an empty binary response
+    request = new AuthorityRequest(pool, BASE_URL + "/mcf-as", user("user0"), 3000, 0L, false, true);
+    assertEquals(0, request.execute().size());
+  }
+
+  @Test
+  public void testBodyTimeoutPastDeadline() throws Exception {
+    // The response starts at once, but its body stalls past the deadline; that must always
+    // be reported as the deadline being exceeded, whichever thread notices it first
+    for (int i = 0; i < 3; i++) {
+      AuthorityRequest request = new AuthorityRequest(pool, BASE_URL + "/mcf-stalling-as", user("user1"), 3000, System.currentTimeMillis() + 300L);
+      try {
+        request.execute();
+        fail("Deadline should have been exceeded");
+      } catch (AuthorityDeadlineExceededException e) {
+        // Expected
+      }
+      request = new AuthorityRequest(pool, BASE_URL + "/mcf-stalling-as", user("user1"), 3000, System.currentTimeMillis() + 300L);
+      try {
+        request.executeWithinDeadline();
+        fail("Deadline should have been exceeded");
+      } catch (AuthorityDeadlineExceededException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testCallerRunsWhenExecutorIsBusy() throws Exception {
+    // Occupy every thread of the pool's executor
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(2);
+    for (int i = 0; i < 2; i++) {
+      pool.getExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+    try {
+      started.await();
+      AuthorityRequest request = new AuthorityRequest(pool, BASE_URL + "/mcf-as", user("user1"), 3000, System.currentTimeMillis() + 5000L);
+      assertEquals(Arrays.asList("token1"), request.executeWithinDeadline());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  // user<n> gets token1 ... token<n>.
+  // Responses are gzip-compressed, and in binary form, when the request accepts that.
+  public static class UserACLServlet extends HttpServlet {
+    static final AtomicInteger compressedResponses = new AtomicInteger(0);
+    static final AtomicInteger binaryResponses = new AtomicInteger(0);
+
+    @Override
+    public void service(HttpServletRequest req, HttpServletResponse res)
+        throws IOException {
+      int count = Integer.parseInt(req.getParameter("username").substring("user".length()));
+      List<String> tokens = new ArrayList<String>();
+      for (int i = 1; i <= count; i++)
+        tokens.add("token" + i);
+      res.setStatus(HttpServletResponse.SC_OK);
+      String acceptEncoding = req.getHeader("Accept-Encoding");
+      String accept = req.getHeader("Accept");
+      boolean binary = accept != null && accept.contains(BinaryTokenFormat.CONTENT_TYPE);
+      res.setContentType(binary ? BinaryTokenFormat.CONTENT_TYPE : "text/plain; charset=utf-8");
+      OutputStream os = res.getOutputStream();
+      if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+        res.setHeader("Content-Encoding", "gzip");
+        os = new GZIPOutputStream(os);
+        compressedResponses.incrementAndGet();
+      }
+      if (binary) {
+        BinaryTokenFormat.write(tokens, os);
+        binaryResponses.incrementAndGet();
+      } else {
+        for (String token : tokens)
+          os.write(("TOKEN:" + token + "\n").getBytes("UTF-8"));
+      }
+      os.close();
+    }
+  }
+
+  // Same as UserACLServlet, but takes two seconds to answer
+  public static class SlowUserACLServlet extends UserACLServlet {
+    @Override
+    public void service(HttpServletRequest req, HttpServletResponse res)
+        throws IOException {
+      try {
+        Thread.sleep(2000L);
+      } catch (InterruptedException e) {
+        return;
+      }
+      super.service(req, res);
+    }
+  }
+
+  // Sends the start of the response, then stalls
+  public static class StallingUserACLServlet extends HttpServlet {
+    @Override
+    public void service(HttpServletRequest req, HttpServletResponse res)
+        throws IOException {
+      res.setStatus(HttpServletResponse.SC_OK);
+      res.setContentType("text/plain; charset=utf-8");
+      OutputStream os = res.getOutputStream();
+      os.write("TOKEN:token1\n".getBytes("UTF-8"));
+      os.flush();
+      try {
+        Thread.sleep(2000L);
+      } catch (InterruptedException e) {
+        return;
+      }
+      os.write("TOKEN:token2\n".getBytes("UTF-8"));
+    }
+  }
+}
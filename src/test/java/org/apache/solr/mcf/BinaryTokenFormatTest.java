@@ -0,0 +1,110 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.solr.mcf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+public class BinaryTokenFormatTest extends LuceneTestCase {
+
+  static List<String> roundTrip(List<String> tokens) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    BinaryTokenFormat.write(tokens, os);
+    return BinaryTokenFormat.read(new ByteArrayInputStream(os.toByteArray()));
+  }
+
+  // Builds a response from raw vints and UTF-8 strings
+  static ByteArrayInputStream response(Object... parts) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    for (Object part : parts) {
+      if (part instanceof Integer)
+        BinaryTokenFormat.writeVInt(os, ((Integer)part).intValue());
+      else
+        os.write(((String)part).getBytes("UTF-8"));
+    }
+    return new ByteArrayInputStream(os.toByteArray());
+  }
+
+  static void assertMalformed(ByteArrayInputStream is) throws IOException {
+    try {
+      BinaryTokenFormat.read(is);
+      fail("Response should have been rejected");
+    } catch (EOFException e) {
+      fail("Response should have been rejected as malformed, not truncated");
+    } catch (IOException e) {
+      assertEquals("Malformed binary token response", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    assertEquals(new ArrayList<String>(), roundTrip(new ArrayList<String>()));
+    assertEquals(Arrays.asList("ActiveDirectory:S-1-5-21-1", "ActiveDirectory:S-1-5-21-12", "Share:été"),
+        roundTrip(Arrays.asList("Share:été", "ActiveDirectory:S-1-5-21-12", "ActiveDirectory:S-1-5-21-1")));
+    // Tokens longer than the initial buffer
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++)
+      sb.append('a');
+    String longToken = sb.toString();
+    assertEquals(Arrays.asList(longToken, longToken + "b"), roundTrip(Arrays.asList(longToken + "b", longToken)));
+  }
+
+  @Test
+  public void testHugeCount() throws Exception {
+    // A huge count must not be allocated up front; the response simply runs out
+    try {
+      BinaryTokenFormat.read(response(Integer.MAX_VALUE, 0, 1, "a"));
+      fail("Response should have been rejected");
+    } catch (EOFException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testHugeLength() throws Exception {
+    try {
+      BinaryTokenFormat.read(response(1, 0, Integer.MAX_VALUE, "abc"));
+      fail("Response should have been rejected");
+    } catch (EOFException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testNegativeValues() throws Exception {
+    assertMalformed(response(-1));
+    assertMalformed(response(1, 0, -1));
+    assertMalformed(response(1, -1, 1, "a"));
+    // A prefix and suffix whose sum overflows
+    assertMalformed(response(2, 0, 1, "a", 1, Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testPrefixLongerThanPreviousToken() throws Exception {
+    assertMalformed(response(1, 1, 1, "a"));
+    assertMalformed(response(2, 0, 2, "ab", 3, 1, "c"));
+  }
+}
@@ -18,12 +18,22 @@
 package org.apache.solr.mcf;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.util.TestHarness;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -58,6 +68,8 @@ public class ManifoldCFQParserPluginTest extends SolrTestCaseJ4 {
     //
     assertU(adoc("id", "da12", "allow_token_document", "token1", "allow_token_document", "token2"));
     assertU(adoc("id", "da13-dd3", "allow_token_document", "token1", "allow_token_document", "token3", "deny_token_document", "token3"));
+    // Spread the documents over more than one segment
+    assertU(commit());
     assertU(adoc("id", "sa123-sd13", "allow_token_share", "token1", "allow_token_share", "token2", "allow_token_share", "token3", "deny_token_share", "token1", "deny_token_share", "token3"));
     assertU(adoc("id", "sa3-sd1-da23", "allow_token_document", "token2", "allow_token_document", "token3", "allow_token_share", "token3", "deny_token_share", "token1"));
     assertU(adoc("id", "notoken"));
@@ -71,10 +83,14 @@ public class ManifoldCFQParserPluginTest extends SolrTestCaseJ4 {
   
   @Test
   public void testNullUsers() throws Exception {
-    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id"),
+    checkNullUsers("/mcf");
+  }
+
+  protected void checkNullUsers(String handler) throws Exception {
+    assertQ(req("qt", handler, "q", "*:*", "fl", "id"),
         "//*[@numFound='1']",
         "//result/doc[1]/str[@name='id'][.='notoken']");
-    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id", "AuthenticatedUserName", "anonymous"),
+    assertQ(req("qt", handler, "q", "*:*", "fl", "id", "AuthenticatedUserName", "anonymous"),
         "//*[@numFound='1']",
         "//result/doc[1]/str[@name='id'][.='notoken']");
   }
@@ -86,24 +102,37 @@ public class ManifoldCFQParserPluginTest extends SolrTestCaseJ4 {
   // notoken
   @Test
   public void testAuthUsers() throws Exception {
-    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id", "AuthenticatedUserName", "user1"),
+    checkAuthUsers("/mcf");
+  }
+
+  protected void checkAuthUsers(String handler) throws Exception {
+    assertQ(req("qt", handler, "q", "*:*", "fl", "id", "AuthenticatedUserName", "user1"),
         "//*[@numFound='3']",
         "//result/doc[1]/str[@name='id'][.='da12']",
         "//result/doc[2]/str[@name='id'][.='da13-dd3']",
         "//result/doc[3]/str[@name='id'][.='notoken']");
 
-    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id", "AuthenticatedUserName", "user2"),
+    assertQ(req("qt", handler, "q", "*:*", "fl", "id", "AuthenticatedUserName", "user2"),
         "//*[@numFound='3']",
         "//result/doc[1]/str[@name='id'][.='da12']",
         "//result/doc[2]/str[@name='id'][.='da13-dd3']",
         "//result/doc[3]/str[@name='id'][.='notoken']");
 
-    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id", "AuthenticatedUserName", "user3"),
+    assertQ(req("qt", handler, "q", "*:*", "fl", "id", "AuthenticatedUserName", "user3"),
         "//*[@numFound='2']",
         "//result/doc[1]/str[@name='id'][.='da12']",
         "//result/doc[2]/str[@name='id'][.='notoken']");
   }
 
+  @Test
+  public void testQueryPruning() throws Exception {
+    ManifoldCFQParserPlugin plugin = (ManifoldCFQParserPlugin)h.getCore().getQueryPlugin("mcf_security");
+    // No document has parent tokens, and most tokens are never denied
+    checkAuthUsers("/mcf");
+    assertTrue(((Number)plugin.getStatistics().get("aclLevelsPruned")).longValue() > 0L);
+    assertTrue(((Number)plugin.getStatistics().get("aclDenyClausesPruned")).longValue() > 0L);
+  }
+
   // da12
   // da13-dd3
   // sa123-sd13
@@ -111,31 +140,207 @@ public class ManifoldCFQParserPluginTest extends SolrTestCaseJ4 {
   // notoken
   @Test
   public void testUserTokens() throws Exception {
+    checkUserTokens("/mcf");
+  }
 
-    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id", "UserTokens", "token1"),
+  protected void checkUserTokens(String handler) throws Exception {
+    assertQ(req("qt", handler, "q", "*:*", "fl", "id", "UserTokens", "token1"),
         "//*[@numFound='3']",
         "//result/doc[1]/str[@name='id'][.='da12']",
         "//result/doc[2]/str[@name='id'][.='da13-dd3']",
         "//result/doc[3]/str[@name='id'][.='notoken']");
 
-    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id", "UserTokens", "token2"),
+    assertQ(req("qt", handler, "q", "*:*", "fl", "id", "UserTokens", "token2"),
         "//*[@numFound='3']",
         "//result/doc[1]/str[@name='id'][.='da12']",
         "//result/doc[2]/str[@name='id'][.='sa123-sd13']",
         "//result/doc[3]/str[@name='id'][.='notoken']");
 
-    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id", "UserTokens", "token3"),
+    assertQ(req("qt", handler, "q", "*:*", "fl", "id", "UserTokens", "token3"),
         "//*[@numFound='2']",
         "//result/doc[1]/str[@name='id'][.='sa3-sd1-da23']",
         "//result/doc[2]/str[@name='id'][.='notoken']");
 
-    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id", "UserTokens", "token2", "UserTokens", "token3"),
+    assertQ(req("qt", handler, "q", "*:*", "fl", "id", "UserTokens", "token2", "UserTokens", "token3"),
         "//*[@numFound='3']",
         "//result/doc[1]/str[@name='id'][.='da12']",
         "//result/doc[2]/str[@name='id'][.='sa3-sd1-da23']",
         "//result/doc[3]/str[@name='id'][.='notoken']");
   }
   
+  @Test
+  public void testTokenSets() throws Exception {
+    String id = TokenSetRegistry.computeID(Arrays.asList("token2", "token3"));
+    assertQ(req("qt", "/mcf-tokensets", "UserTokens", "token3", "UserTokens", "token2", "UserTokens", "token3"),
+        "//str[@name='tokenSet'][.='" + id + "']");
+
+    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id", "UserTokenSet", id),
+        "//*[@numFound='3']",
+        "//result/doc[1]/str[@name='id'][.='da12']",
+        "//result/doc[2]/str[@name='id'][.='sa3-sd1-da23']",
+        "//result/doc[3]/str[@name='id'][.='notoken']");
+
+    assertQ(req("qt", "/search", "q", "*:*", "fl", "id", "fq", "{!mcf_security tokenset=" + id + "}"),
+        "//*[@numFound='3']",
+        "//result/doc[1]/str[@name='id'][.='da12']",
+        "//result/doc[2]/str[@name='id'][.='sa3-sd1-da23']",
+        "//result/doc[3]/str[@name='id'][.='notoken']");
+
+    ignoreException("is not registered");
+    assertQEx("Unregistered token set", req("qt", "/mcf", "q", "*:*", "UserTokenSet", "unknown"), 404);
+    resetExceptionIgnores();
+  }
+
+  // Starts a new core on the same index, then closes the old one, as a core reload does
+  static void reloadCore() throws Exception {
+    TestHarness closing = h;
+    // A fresh configuration, since its resource loader informs each new core's plugins
+    solrConfig = TestHarness.createConfig(getSolrConfigFile());
+    h = new TestHarness(dataDir.getAbsolutePath(), solrConfig, getSchemaFile());
+    lrf = h.getRequestFactory("standard", 0, 20, "version", "2.2");
+    closing.close();
+  }
+
+  @Test
+  public void testAclFilterCacheSnapshot() throws Exception {
+    ManifoldCFQParserPlugin plugin = (ManifoldCFQParserPlugin)h.getCore().getQueryPlugin("mcf_security_snapshot");
+    checkAuthUsers("/mcf-snapshot");
+    int size = plugin.service.aclFilterCache.size();
+    assertTrue(size > 0);
+    // Closing the core saves the cache; the reloaded core's empty cache is filled from the snapshot, with the same results
+    reloadCore();
+    plugin = (ManifoldCFQParserPlugin)h.getCore().getQueryPlugin("mcf_security_snapshot");
+    checkAuthUsers("/mcf-snapshot");
+    assertEquals(size, plugin.service.aclFilterCache.size());
+    assertEquals((long)size, ((Number)plugin.getStatistics().get("aclCacheSnapshotLoads")).longValue());
+    // The sets read in place from the snapshot are charged to the cache, and saved again on the next close
+    assertTrue(((Number)plugin.getStatistics().get("aclCacheBytes")).longValue() > 0L);
+    reloadCore();
+    plugin = (ManifoldCFQParserPlugin)h.getCore().getQueryPlugin("mcf_security_snapshot");
+    checkAuthUsers("/mcf-snapshot");
+    assertEquals(size, plugin.service.aclFilterCache.size());
+    assertEquals((long)size, ((Number)plugin.getStatistics().get("aclCacheSnapshotLoads")).longValue());
+  }
+
+  @Test
+  public void testCompactTokens() throws Exception {
+    assertFalse(TokenEncoder.encode("token1").equals("token1"));
+    assertEquals(TokenEncoder.encode("token1"), TokenEncoder.encode("token1"));
+    // Index a document through the compaction chain
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", "compact-da1");
+    doc.addField("allow_token_document", "token1");
+    SolrQueryRequest req = req();
+    try {
+      UpdateRequestProcessor processor = h.getCore().getUpdateProcessingChain("mcf-compact").createProcessor(req, new SolrQueryResponse());
+      AddUpdateCommand cmd = new AddUpdateCommand();
+      cmd.solrDoc = doc;
+      processor.processAdd(cmd);
+      processor.finish();
+    } finally {
+      req.close();
+    }
+    assertU(commit());
+    try {
+      assertQ(req("qt", "/mcf-compact", "q", "id:compact-da1", "fl", "id", "AuthenticatedUserName", "user1"),
+          "//*[@numFound='1']");
+      assertQ(req("qt", "/mcf-compact", "q", "id:compact-da1", "fl", "id", "AuthenticatedUserName", "user4"),
+          "//*[@numFound='0']");
+      // The plain parser no longer recognizes the token
+      assertQ(req("qt", "/mcf", "q", "id:compact-da1", "fl", "id", "AuthenticatedUserName", "user1"),
+          "//*[@numFound='0']");
+    } finally {
+      assertU(delI("compact-da1"));
+      assertU(commit());
+    }
+  }
+
+  @Test
+  public void testSharedSecurityService() throws Exception {
+    ManifoldCFSearchComponent component = (ManifoldCFSearchComponent)h.getCore().getSearchComponent("mcf-service");
+    // The component's service is the core's default, which other tests use as well
+    long lookups = ((Number)component.getStatistics().get("requestTokenLookups")).longValue();
+    long reuses = ((Number)component.getStatistics().get("requestTokenReuses")).longValue();
+    checkAuthUsers("/mcf-service");
+    ManifoldCFQParserPlugin plugin = (ManifoldCFQParserPlugin)h.getCore().getQueryPlugin("mcf_security_service");
+    assertSame(component.service, plugin.service);
+    // A plugin configured differently has a service of its own
+    ManifoldCFQParserPlugin other = (ManifoldCFQParserPlugin)h.getCore().getQueryPlugin("mcf_security_shared_a");
+    other.initializeService(h.getCore());
+    assertNotSame(component.service, other.service);
+    assertEquals(0L, component.service.tokenCacheLifetime);
+    assertEquals(60000L, other.service.tokenCacheLifetime);
+    // Plugins that name the same security service must be configured alike
+    NamedList<Object> args = new NamedList<Object>();
+    args.add("SecurityService", "mcf_security_named");
+    args.add("AuthorityServiceBaseURL", "http://localhost:8347/mcf-as");
+    ManifoldCFSecurityService named = ManifoldCFSecurityService.getService(h.getCore(), "mcf_security_named", args);
+    assertSame(named, ManifoldCFSecurityService.getService(h.getCore(), "mcf_security_named", args));
+    NamedList<Object> otherArgs = new NamedList<Object>();
+    otherArgs.add("SecurityService", "mcf_security_named");
+    otherArgs.add("AuthorityServiceBaseURL", "http://localhost:8347/mcf-other-as");
+    try {
+      ManifoldCFSecurityService.getService(h.getCore(), "mcf_security_named", otherArgs);
+      fail("A differently configured plugin should not share the service");
+    } catch (SolrException e) {
+      assertEquals(SolrException.ErrorCode.SERVER_ERROR.code, e.code());
+    }
+    // Each request asks the authority once, for both plugins
+    assertEquals(lookups + 3L, ((Number)plugin.getStatistics().get("requestTokenLookups")).longValue());
+    assertEquals(reuses + 3L, ((Number)component.getStatistics().get("requestTokenReuses")).longValue());
+  }
+
+  @Test
+  public void testSharedAuthorityClient() throws Exception {
+    checkAuthUsers("/mcf-shared-a");
+    // The second plugin finds the tokens already cached by the first
+    checkAuthUsers("/mcf-shared-b");
+    ManifoldCFQParserPlugin pluginA = (ManifoldCFQParserPlugin)h.getCore().getQueryPlugin("mcf_security_shared_a");
+    ManifoldCFQParserPlugin pluginB = (ManifoldCFQParserPlugin)h.getCore().getQueryPlugin("mcf_security_shared_b");
+    assertSame(pluginA.service.client, pluginB.service.client);
+    assertSame(pluginA.service.tokenCache, pluginB.service.tokenCache);
+    assertEquals(2, pluginA.service.sharedClient.getReferences());
+    assertTrue(((Number)pluginB.getStatistics().get("tokenCacheHits")).longValue() >= 3L);
+  }
+
+  @Test
+  public void testPeerTokenCache() throws Exception {
+    int peerRequests = MockMCFAuthorityService.PeerUserACLServlet.peerRequests.get();
+    checkAuthUsers("/mcf-peer");
+    assertEquals(peerRequests + 3, MockMCFAuthorityService.PeerUserACLServlet.peerRequests.get());
+    // The peer's answers are cached locally
+    checkAuthUsers("/mcf-peer");
+    assertEquals(peerRequests + 3, MockMCFAuthorityService.PeerUserACLServlet.peerRequests.get());
+    ManifoldCFQParserPlugin plugin = (ManifoldCFQParserPlugin)h.getCore().getQueryPlugin("mcf_security_peer");
+    assertEquals(3L, ((Number)plugin.getStatistics().get("peerTokenRequests")).longValue());
+    assertEquals(0L, ((Number)plugin.getStatistics().get("peerTokenErrors")).longValue());
+  }
+
+  @Test
+  public void testPeerTokenHandler() throws Exception {
+    ManifoldCFQParserPlugin plugin = (ManifoldCFQParserPlugin)h.getCore().getQueryPlugin("mcf_security_peer");
+    // Peers may ask before this node has used the plugin itself, so the plugin is set up by the first request.
+    // Users are given with domains, so that they are not cached under the same keys as in testPeerTokenCache.
+    String served = h.query("/mcf-peer-tokens/UserACLs", req("username_0", "user2", "domain_0", "ad"));
+    // This node answers its peers in the authority service's format
+    assertEquals("TOKEN:token1\nTOKEN:token2\n", served);
+    long peerTokensServed = ((Number)plugin.getStatistics().get("peerTokensServed")).longValue();
+    assertEquals("TOKEN:token1\nTOKEN:token2\nTOKEN:token3\n",
+        h.query("/mcf-peer-tokens/UserACLs", req("username_0", "user3", "domain_0", "ad")));
+    assertEquals("", h.query("/mcf-peer-tokens/UserACLs", req("username", "nobody")));
+    assertEquals(peerTokensServed + 2L, ((Number)plugin.getStatistics().get("peerTokensServed")).longValue());
+    // A request without a user is refused
+    ignoreException("No user name given");
+    try {
+      h.query("/mcf-peer-tokens/UserACLs", req("domain_0", "ad"));
+      fail("Request without a user should have been refused");
+    } catch (SolrException e) {
+      assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+    } finally {
+      resetExceptionIgnores();
+    }
+  }
+
   static class MockMCFAuthorityService {
     
     Server server;
@@ -144,6 +349,8 @@ public class ManifoldCFQParserPluginTest extends SolrTestCaseJ4 {
       server = new Server(8347);
       Context asContext = new Context(server,"/mcf-as",Context.SESSIONS);
       asContext.addServlet(new ServletHolder(new UserACLServlet()), "/UserACLs");
+      Context peerContext = new Context(server,"/mcf-peer",Context.SESSIONS);
+      peerContext.addServlet(new ServletHolder(new PeerUserACLServlet()), "/UserACLs");
     }
     
     public void start() throws Exception {
@@ -165,6 +372,8 @@ public class ManifoldCFQParserPluginTest extends SolrTestCaseJ4 {
       public void service(HttpServletRequest req, HttpServletResponse res)
           throws IOException {
         String user = req.getParameter("username");
+        if (user == null)
+          user = req.getParameter("username_0");
         res.setStatus(HttpServletResponse.SC_OK);
         if(user.equals("user1") || user.equals("user2") || user.equals("user3"))
           res.getWriter().printf("TOKEN:token1\n");
@@ -174,5 +383,17 @@ public class ManifoldCFQParserPluginTest extends SolrTestCaseJ4 {
           res.getWriter().printf("TOKEN:token3\n");
       }
     }
+
+    // Another Solr node sharing its token cache, which answers like the authority service
+    public static class PeerUserACLServlet extends UserACLServlet {
+      static final AtomicInteger peerRequests = new AtomicInteger(0);
+
+      @Override
+      public void service(HttpServletRequest req, HttpServletResponse res)
+          throws IOException {
+        peerRequests.incrementAndGet();
+        super.service(req, res);
+      }
+    }
   }
 }
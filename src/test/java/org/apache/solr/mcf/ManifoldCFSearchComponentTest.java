@@ -18,12 +18,16 @@
 package org.apache.solr.mcf;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.search.SolrCache;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -147,6 +151,135 @@ public class ManifoldCFSearchComponentTest extends SolrTestCaseJ4 {
         "//result/doc[3]/str[@name='id'][.='notoken']");
   }
   
+  @Test
+  public void testTokenSets() throws Exception {
+    String id = TokenSetRegistry.computeID(Arrays.asList("token2", "token3"));
+    assertQ(req("qt", "/mcf-tokensets", "UserTokens", "token2", "UserTokens", "token3"),
+        "//str[@name='tokenSet'][.='" + id + "']");
+
+    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id", "UserTokenSet", id),
+        "//*[@numFound='3']",
+        "//result/doc[1]/str[@name='id'][.='da12']",
+        "//result/doc[2]/str[@name='id'][.='sa3-sd1-da23']",
+        "//result/doc[3]/str[@name='id'][.='notoken']");
+
+    ignoreException("is not registered");
+    assertQEx("Unregistered token set", req("qt", "/mcf", "q", "*:*", "UserTokenSet", "unknown"), 404);
+    resetExceptionIgnores();
+  }
+
+  @Test
+  public void testPipelinedLookup() throws Exception {
+    ManifoldCFSearchComponent mcfFilter = (ManifoldCFSearchComponent)h.getCore().getSearchComponent("mcf-pipelined");
+    long pipelined = ((Number)mcfFilter.getStatistics().get("pipelinedLookups")).longValue();
+    assertQ(req("qt", "/mcf-pipelined", "q", "*:*", "fl", "id", "AuthenticatedUserName", "user1"),
+        "//*[@numFound='3']",
+        "//result/doc[1]/str[@name='id'][.='da12']",
+        "//result/doc[2]/str[@name='id'][.='da13-dd3']",
+        "//result/doc[3]/str[@name='id'][.='notoken']");
+
+    // Facet counts come from the filtered document set too
+    assertQ(req("qt", "/mcf-pipelined", "q", "*:*", "fl", "id", "AuthenticatedUserName", "user3", "facet", "true", "facet.field", "id"),
+        "//*[@numFound='2']",
+        "//result/doc[1]/str[@name='id'][.='da12']",
+        "//result/doc[2]/str[@name='id'][.='notoken']",
+        "//lst[@name='facet_fields']/lst[@name='id']/int[@name='da12'][.='1']",
+        "//lst[@name='facet_fields']/lst[@name='id']/int[@name='da13-dd3'][.='0']");
+
+    // Users without a lookup are filtered as usual
+    assertQ(req("qt", "/mcf-pipelined", "q", "*:*", "fl", "id", "UserTokens", "token3"),
+        "//*[@numFound='2']",
+        "//result/doc[1]/str[@name='id'][.='sa3-sd1-da23']",
+        "//result/doc[2]/str[@name='id'][.='notoken']");
+    assertEquals(pipelined + 2, ((Number)mcfFilter.getStatistics().get("pipelinedLookups")).longValue());
+  }
+
+  @Test
+  public void testPipelinedLookupWhenThreadsAreBusy() throws Exception {
+    ManifoldCFSearchComponent mcfFilter = (ManifoldCFSearchComponent)h.getCore().getSearchComponent("mcf-pipelined");
+    ThreadPoolExecutor executor = mcfFilter.service.lookupExecutor;
+    int threads = executor.getMaximumPoolSize();
+    // Occupy every lookup thread
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+    try {
+      started.await();
+      long pipelined = ((Number)mcfFilter.getStatistics().get("pipelinedLookups")).longValue();
+      // The lookup runs in the request's thread instead, with the same results
+      assertQ(req("qt", "/mcf-pipelined", "q", "*:*", "fl", "id", "AuthenticatedUserName", "user1"),
+          "//*[@numFound='3']",
+          "//result/doc[1]/str[@name='id'][.='da12']",
+          "//result/doc[2]/str[@name='id'][.='da13-dd3']",
+          "//result/doc[3]/str[@name='id'][.='notoken']");
+      assertEquals(pipelined, ((Number)mcfFilter.getStatistics().get("pipelinedLookups")).longValue());
+      assertEquals(threads, executor.getPoolSize());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void testPipelinedLookupNotInQueryResultCache() throws Exception {
+    // Each request's post filter is equal only to itself, so caching its results is useless
+    SolrCache cache = (SolrCache)h.getCore().getInfoRegistry().get("queryResultCache");
+    int size = cache.size();
+    for (int i = 0; i < 3; i++)
+      assertQ(req("qt", "/mcf-pipelined", "q", "*:*", "fl", "id", "AuthenticatedUserName", "user2"), "//*[@numFound='3']");
+    assertEquals(size, cache.size());
+  }
+
+  @Test
+  public void testHeavyHitters() throws Exception {
+    for (int i = 0; i < 3; i++)
+      assertQ(req("qt", "/mcf-heavy", "q", "*:*", "fl", "id", "AuthenticatedUserName", "user1"), "//*[@numFound='3']");
+    assertQ(req("qt", "/mcf-heavy", "q", "*:*", "fl", "id", "AuthenticatedUserName", "user2"), "//*[@numFound='3']");
+    assertQ(req("qt", "/mcf-heavy", "q", "*:*", "fl", "id", "UserTokens", "token1"), "//*[@numFound='3']");
+
+    assertQ(req("qt", "/mcf-heavyhitters"),
+        "//lst[@name='heavyHitters']/long[@name='heavyHitterUsersRequests'][.='4']",
+        "//lst[@name='heavyHitters']/long[@name='heavyHitterTokenSetsRequests'][.='5']",
+        "//lst[@name='heavyHitterUsersTopByRequests']/long[1][@name='user1'][.='3']",
+        "//lst[@name='heavyHitterUsersTopByRequests']/long[2][@name='user2'][.='1']",
+        "count(//lst[@name='heavyHitterTokenSetsTopByRequests']/long)=2");
+  }
+
+  @Test
+  public void testOpenDocumentCache() throws Exception {
+    ManifoldCFSearchComponent mcfFilter = (ManifoldCFSearchComponent)h.getCore().getSearchComponent("mcf");
+    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id"),
+        "//*[@numFound='1']",
+        "//result/doc[1]/str[@name='id'][.='notoken']");
+    assertTrue(mcfFilter.service.openDocumentCache.size() > 0);
+    // A new segment is picked up when the searcher opens, and deletions are honored
+    long warmed = ((Number)mcfFilter.getStatistics().get("openDocumentSegmentsWarmed")).longValue();
+    assertU(adoc("id", "notoken2"));
+    assertU(commit());
+    try {
+      assertTrue(((Number)mcfFilter.getStatistics().get("openDocumentSegmentsWarmed")).longValue() > warmed);
+      assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id"),
+          "//*[@numFound='2']");
+    } finally {
+      assertU(delI("notoken2"));
+      assertU(commit());
+    }
+    assertQ(req("qt", "/mcf", "q", "*:*", "fl", "id"),
+        "//*[@numFound='1']",
+        "//result/doc[1]/str[@name='id'][.='notoken']");
+  }
+
   static class MockMCFAuthorityService {
     
     Server server;
@@ -155,6 +288,8 @@ public class ManifoldCFSearchComponentTest extends SolrTestCaseJ4 {
       server = new Server(8345);
       Context asContext = new Context(server,"/mcf-authority-service",Context.SESSIONS);
       asContext.addServlet(new ServletHolder(new UserACLServlet()), "/UserACLs");
+      Context delayedContext = new Context(server,"/mcf-delayed-authority-service",Context.SESSIONS);
+      delayedContext.addServlet(new ServletHolder(new SlowUserACLServlet(200L)), "/UserACLs");
     }
     
     public void start() throws Exception {
@@ -185,5 +320,25 @@ public class ManifoldCFSearchComponentTest extends SolrTestCaseJ4 {
           res.getWriter().printf("TOKEN:token3\n");
       }
     }
+
+    // Same as UserACLServlet, but takes a while to answer
+    public static class SlowUserACLServlet extends UserACLServlet {
+      final long delay;
+
+      public SlowUserACLServlet(long delay) {
+        this.delay = delay;
+      }
+
+      @Override
+      public void service(HttpServletRequest req, HttpServletResponse res)
+          throws IOException {
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          return;
+        }
+        super.service(req, res);
+      }
+    }
   }
 }
@@ -0,0 +1,541 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.solr.mcf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+public class ManifoldCFSecurityServiceTest extends LuceneTestCase {
+
+  static final String BASE_URL = "http://localhost:8349";
+
+  static Server server;
+  static Directory dir;
+  static IndexReader reader;
+  static IndexSearcher searcher;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    server = new Server(8349);
+    Context asContext = new Context(server,"/mcf-as",Context.SESSIONS);
+    asContext.addServlet(new ServletHolder(new UserACLServlet()), "/UserACLs");
+    Context slowContext = new Context(server,"/mcf-slow-as",Context.SESSIONS);
+    slowContext.addServlet(new ServletHolder(new SlowUserACLServlet()), "/UserACLs");
+    server.start();
+
+    //             |     share    |   document
+    //             |--------------|--------------
+    //             | allow | deny | allow | deny
+    // ------------+-------+------+-------+------
+    // da12        |       |      | 1, 2  |
+    // ------------+-------+------+-------+------
+    // da13-dd3    |       |      | 1,3   | 3
+    // ------------+-------+------+-------+------
+    // sa123-sd13  | 1,2,3 | 1, 3 |       |
+    // ------------+-------+------+-------+------
+    // sa3-sd1-da23| 3     | 1    | 2,3   |
+    // ------------+-------+------+-------+------
+    // notoken     |       |      |       |
+    // ------------+-------+------+-------+------
+    //
+    dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(TEST_VERSION_CURRENT, new WhitespaceAnalyzer(TEST_VERSION_CURRENT)));
+    writer.addDocument(doc("da12", "allow_token_document", "token1 token2"));
+    writer.addDocument(doc("da13-dd3", "allow_token_document", "token1 token3", "deny_token_document", "token3"));
+    // Spread the documents over more than one segment
+    writer.commit();
+    writer.addDocument(doc("sa123-sd13", "allow_token_share", "token1 token2 token3", "deny_token_share", "token1 token3"));
+    writer.addDocument(doc("sa3-sd1-da23", "allow_token_document", "token2 token3", "allow_token_share", "token3", "deny_token_share", "token1"));
+    writer.addDocument(doc("notoken"));
+    writer.close();
+    reader = IndexReader.open(dir);
+    searcher = new IndexSearcher(reader);
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    searcher.close();
+    reader.close();
+    dir.close();
+    server.stop();
+  }
+
+  // Fields without tokens get the schema's default, as they would in Solr
+  static Document doc(String id, String... fields) {
+    Document doc = new Document();
+    doc.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < fields.length; i += 2) {
+      names.add(fields[i]);
+      for (String token : fields[i + 1].split(" "))
+        doc.add(new Field(fields[i], token, Field.Store.NO, Field.Index.NOT_ANALYZED));
+    }
+    for (String prefix : new String[]{"allow_token_", "deny_token_"}) {
+      for (String level : new String[]{"share", "parent", "document"}) {
+        if (!names.contains(prefix + level))
+          doc.add(new Field(prefix + level, ManifoldCFSearchComponent.NOSECURITY_TOKEN, Field.Store.NO, Field.Index.NOT_ANALYZED));
+      }
+    }
+    return doc;
+  }
+
+  // A service talking to the mock authority service, configured by name/value pairs
+  static ManifoldCFSecurityService startService(Object... args) {
+    NamedList<Object> config = new NamedList<Object>();
+    for (int i = 0; i < args.length; i += 2)
+      config.add((String)args[i], args[i + 1]);
+    if (config.get("AuthorityServiceBaseURL") == null)
+      config.add("AuthorityServiceBaseURL", BASE_URL + "/mcf-as");
+    ManifoldCFSecurityService service = new ManifoldCFSecurityService(config);
+    service.startClient();
+    return service;
+  }
+
+  static Map<String,String> user(String name) {
+    return Collections.singletonMap("", name);
+  }
+
+  static long statistic(ManifoldCFSecurityService service, String name) {
+    return ((Number)service.getStatistics().get(name)).longValue();
+  }
+
+  static List<String> search(Query query) throws IOException {
+    TopDocs docs = searcher.search(query, 100);
+    List<String> ids = new ArrayList<String>();
+    for (ScoreDoc scoreDoc : docs.scoreDocs)
+      ids.add(searcher.doc(scoreDoc.doc).get("id"));
+    Collections.sort(ids);
+    return ids;
+  }
+
+  static List<String> tokens(String... tokens) {
+    return Arrays.asList(tokens);
+  }
+
+  // The documents each set of tokens may see, whichever engine finds them
+  static void checkAccess(ManifoldCFSecurityService service, boolean cached) throws IOException {
+    assertEquals(tokens("notoken"), search(service.getAccessQuery(tokens(), cached)));
+    assertEquals(tokens("da12", "da13-dd3", "notoken"), search(service.getAccessQuery(tokens("token1"), cached)));
+    assertEquals(tokens("da12", "da13-dd3", "notoken"), search(service.getAccessQuery(tokens("token1", "token2"), cached)));
+    assertEquals(tokens("da12", "notoken"), search(service.getAccessQuery(tokens("token1", "token2", "token3"), cached)));
+    assertEquals(tokens("da12", "notoken", "sa123-sd13"), search(service.getAccessQuery(tokens("token2"), cached)));
+    assertEquals(tokens("notoken", "sa3-sd1-da23"), search(service.getAccessQuery(tokens("token3"), cached)));
+    assertEquals(tokens("da12", "notoken", "sa3-sd1-da23"), search(service.getAccessQuery(tokens("token2", "token3"), cached)));
+  }
+
+  @Test
+  public void testQueryEngine() throws Exception {
+    ManifoldCFSecurityService service = startService();
+    try {
+      checkAccess(service, true);
+      // No document has parent tokens, and most tokens are never denied
+      assertTrue(statistic(service, "aclLevelsPruned") > 0L);
+      assertTrue(statistic(service, "aclDenyClausesPruned") > 0L);
+      // Tokens that could not be obtained in time match nothing
+      assertEquals(0, search(service.getAccessQuery((List<String>)null, true)).size());
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testFilterEngine() throws Exception {
+    ManifoldCFSecurityService service = startService("AclEngine", "filter", "ParallelAclConstruction", true);
+    try {
+      checkAccess(service, true);
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testLeapfrogFilterEngine() throws Exception {
+    ManifoldCFSecurityService service = startService("AclEngine", "filter");
+    try {
+      // Filters Solr does not cache are evaluated as the main query advances them
+      checkAccess(service, false);
+      assertTrue(statistic(service, "leapfrogAclFilters") >= 6L);
+      // A selective main query only looks at the documents it matches
+      BooleanQuery query = new BooleanQuery();
+      query.add(new TermQuery(new Term("id", "da13-dd3")), BooleanClause.Occur.MUST);
+      query.add(service.getAccessQuery(tokens("token1"), false), BooleanClause.Occur.MUST);
+      assertEquals(tokens("da13-dd3"), search(query));
+      query = new BooleanQuery();
+      query.add(new TermQuery(new Term("id", "da13-dd3")), BooleanClause.Occur.MUST);
+      query.add(service.getAccessQuery(tokens("token1", "token2", "token3"), false), BooleanClause.Occur.MUST);
+      assertEquals(0, search(query).size());
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testAclFilterCache() throws Exception {
+    ManifoldCFSecurityService service = startService("AclEngine", "filter", "AclFilterCacheMemoryMB", 1);
+    try {
+      checkAccess(service, true);
+      int size = service.aclFilterCache.size();
+      assertTrue(size > 0);
+      // The second pass must be answered from the cache, with the same results
+      checkAccess(service, true);
+      assertEquals(size, service.aclFilterCache.size());
+      assertTrue(statistic(service, "aclCacheHits") > 0L);
+      assertTrue(statistic(service, "aclCacheBytes") > 0L);
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testTokenPostingsCache() throws Exception {
+    ManifoldCFSecurityService service = startService("AclEngine", "filter", "TokenPostingsCacheMemoryMB", 1,
+        "TokenPostingsCacheMinDocFreq", 1, "TokenPostingsCacheMinUses", 1);
+    try {
+      // Results must not change once common tokens' postings come from the cache
+      checkAccess(service, true);
+      assertTrue(service.tokenPostingsCache.size() > 0);
+      checkAccess(service, true);
+      assertTrue(statistic(service, "postingsCacheHits") > 0L);
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testIncrementalAcls() throws Exception {
+    ManifoldCFSecurityService service = startService("AclEngine", "filter", "IncrementalAclCacheMemoryMB", 1);
+    try {
+      // Each token set after the first differs from an earlier one by a token or two, so it is derived
+      checkAccess(service, true);
+      assertTrue(statistic(service, "incrementalCacheDerivations") > 0L);
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testUninvertedEngine() throws Exception {
+    ManifoldCFSecurityService service = startService("AclEngine", "uninverted");
+    try {
+      checkAccess(service, true);
+      assertTrue(service.uninvertedAclCache.size() > 0);
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testAutoEngine() throws Exception {
+    ManifoldCFSecurityService service = startService("AclEngine", "auto", "UninvertedAclMinTokens", 2);
+    try {
+      // A single token uses the filter engine, and more use the uninverted engine
+      assertEquals(tokens("da12", "da13-dd3", "notoken"), search(service.getAccessQuery(tokens("token1"), true)));
+      assertEquals(0, service.uninvertedAclCache.size());
+      checkAccess(service, true);
+      assertTrue(service.uninvertedAclCache.size() > 0);
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testTokenCacheHitSkipsAuthority() throws Exception {
+    ManifoldCFSecurityService service = startService("TokenCacheLifetime", 60000);
+    try {
+      int requests = UserACLServlet.requests("user2");
+      for (int i = 0; i < 3; i++)
+        assertEquals(tokens("token1", "token2"), service.getAccessTokens(user("user2"), 0L, true));
+      assertEquals(requests + 1, UserACLServlet.requests("user2"));
+      assertEquals(2L, statistic(service, "tokenCacheHits"));
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testTokenCacheRevalidation() throws Exception {
+    ManifoldCFSecurityService service = startService("TokenCacheLifetime", 1);
+    try {
+      int notModified = UserACLServlet.notModifiedResponses.get();
+      List<String> tokens = service.getAccessTokens(user("user3"), 0L, true);
+      // The cached tokens have expired by now, and are revalidated
+      Thread.sleep(10L);
+      assertSame(tokens, service.getAccessTokens(user("user3"), 0L, true));
+      assertEquals(notModified + 1, UserACLServlet.notModifiedResponses.get());
+      assertEquals(1L, statistic(service, "tokenCacheNotModified"));
+      assertEquals(0L, statistic(service, "tokenCacheChanged"));
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testUnknownUserCacheHitSkipsAuthority() throws Exception {
+    ManifoldCFSecurityService service = startService("UnknownUserCacheLifetime", 60000);
+    try {
+      int requests = UserACLServlet.requests("nobody");
+      for (int i = 0; i < 3; i++)
+        assertEquals(0, service.getAccessTokens(user("nobody"), 0L, true).size());
+      assertEquals(requests + 1, UserACLServlet.requests("nobody"));
+      assertEquals(2L, statistic(service, "unknownUserCacheHits"));
+      // Users with tokens are not cached without a token cache
+      service.getAccessTokens(user("user1"), 0L, true);
+      service.getAccessTokens(user("user1"), 0L, true);
+      assertEquals(1L, statistic(service, "unknownUserCacheSize"));
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testAuthorityErrorCachedForLifetime() throws Exception {
+    ManifoldCFSecurityService service = startService("AuthorityErrorCacheLifetime", 500);
+    try {
+      int requests = UserACLServlet.requests("broken");
+      for (int i = 0; i < 3; i++) {
+        try {
+          service.getAccessTokens(user("broken"), 0L, true);
+          fail("Authority error should have been reported");
+        } catch (SolrException e) {
+          // Expected, whether the authority was asked or not
+        }
+      }
+      assertEquals(requests + 1, UserACLServlet.requests("broken"));
+      // Once the error expires, the authority is asked again
+      Thread.sleep(600L);
+      try {
+        service.getAccessTokens(user("broken"), 0L, true);
+        fail("Authority error should have been reported");
+      } catch (SolrException e) {
+        // Expected
+      }
+      assertEquals(requests + 2, UserACLServlet.requests("broken"));
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testDeadlineFallback() throws Exception {
+    ManifoldCFSecurityService deny = startService("AuthorityServiceBaseURL", BASE_URL + "/mcf-slow-as");
+    ManifoldCFSecurityService open = startService("AuthorityServiceBaseURL", BASE_URL + "/mcf-slow-as", "DeadlineFallback", "public");
+    ManifoldCFSecurityService stale = startService("AuthorityServiceBaseURL", BASE_URL + "/mcf-slow-as", "DeadlineFallback", "stale");
+    try {
+      // The authority takes far longer than the deadline
+      long startTime = System.currentTimeMillis();
+      assertNull(deny.resolveAccessTokens(user("user1"), System.currentTimeMillis() + 200L, null));
+      assertEquals(0, open.resolveAccessTokens(user("user1"), System.currentTimeMillis() + 200L, null).size());
+      // Without an earlier answer there are no stale tokens either
+      assertNull(stale.resolveAccessTokens(user("user1"), System.currentTimeMillis() + 200L, null));
+      assertTrue(System.currentTimeMillis() - startTime < 1500L);
+      assertEquals(1L, statistic(deny, "deadlinesExceeded"));
+      assertEquals(1L, statistic(open, "deadlinesExceeded"));
+      // Once the authority has answered, its last answer is used
+      assertEquals(tokens("token1"), stale.resolveAccessTokens(user("user1"), 0L, null));
+      assertEquals(tokens("token1"), stale.resolveAccessTokens(user("user1"), System.currentTimeMillis() + 200L, null));
+      assertEquals(2L, statistic(stale, "deadlinesExceeded"));
+    } finally {
+      deny.stopClient();
+      open.stopClient();
+      stale.stopClient();
+    }
+  }
+
+  @Test
+  public void testCompressedAuthorityResponses() throws Exception {
+    ManifoldCFSecurityService gzip = startService("AuthorityCompression", true);
+    ManifoldCFSecurityService binary = startService("AuthorityCompression", true, "AuthorityBinaryTokens", true);
+    try {
+      int compressed = UserACLServlet.compressedResponses.get();
+      int binaryResponses = UserACLServlet.binaryResponses.get();
+      assertEquals(tokens("token1", "token2", "token3"), gzip.getAccessTokens(user("user3"), 0L, true));
+      assertEquals(compressed + 1, UserACLServlet.compressedResponses.get());
+      assertEquals(binaryResponses, UserACLServlet.binaryResponses.get());
+      assertEquals(tokens("token1", "token2", "token3"), binary.getAccessTokens(user("user3"), 0L, true));
+      assertEquals(compressed + 2, UserACLServlet.compressedResponses.get());
+      assertEquals(binaryResponses + 1, UserACLServlet.binaryResponses.get());
+    } finally {
+      gzip.stopClient();
+      binary.stopClient();
+    }
+  }
+
+  @Test
+  public void testHedgedRequests() throws Exception {
+    ManifoldCFSecurityService service = startService("AuthorityServiceBaseURL", BASE_URL + "/mcf-slow-as",
+        "HedgeAuthorityRequests", true, "HedgeAuthorityServiceBaseURL", BASE_URL + "/mcf-as", "HedgeMinDelay", 100);
+    try {
+      // The primary authority is slow, so the hedge request must answer
+      long startTime = System.currentTimeMillis();
+      assertEquals(tokens("token1"), service.getAccessTokens(user("user1"), 0L, true));
+      assertTrue(System.currentTimeMillis() - startTime < 1500L);
+      assertEquals(1L, statistic(service, "hedgesWon"));
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    ManifoldCFSecurityService service = startService("ConnectionPoolSize", 4, "AdaptiveConcurrencyLimit", true,
+        "MaxQueuedAuthorityRequests", 8);
+    try {
+      // The limit starts at half the connection pool
+      assertEquals(2L, statistic(service, "concurrencyLimit"));
+      assertEquals(tokens("token1", "token2", "token3"), service.getAccessTokens(user("user3"), 0L, true));
+      assertEquals(0L, statistic(service, "concurrencyInFlight"));
+      assertEquals(0L, statistic(service, "concurrencyQueueDepth"));
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  @Test
+  public void testResourceAccounting() throws Exception {
+    ManifoldCFSecurityService service = startService("AccountResourceUsage", true);
+    try {
+      long[] usage = new long[2];
+      assertEquals(tokens("token1"), service.resolveAccessTokens(user("user1"), 0L, usage));
+      assertEquals(1L, statistic(service, "tokenLookupCount"));
+      assertTrue(statistic(service, "tokenLookupAllocatedBytes") != 0L);
+    } finally {
+      service.stopClient();
+    }
+  }
+
+  // username | tokens rewarded
+  // ---------+-------------------------------
+  // user1    | token1
+  // user2    | token1, token2
+  // user3    | token1, token2, token3
+  // nobody   | (no tokens)
+  // broken   | (server error)
+  // Responses are gzip-compressed, and in binary form, when the request accepts that.
+  // Conditional requests with the current ETag get a 304 response.
+  public static class UserACLServlet extends HttpServlet {
+    static final Map<String,AtomicInteger> userRequests = new ConcurrentHashMap<String,AtomicInteger>();
+    static final AtomicInteger compressedResponses = new AtomicInteger(0);
+    static final AtomicInteger binaryResponses = new AtomicInteger(0);
+    static final AtomicInteger notModifiedResponses = new AtomicInteger(0);
+
+    static int requests(String user) {
+      AtomicInteger count = userRequests.get(user);
+      return (count == null) ? 0 : count.get();
+    }
+
+    @Override
+    public void service(HttpServletRequest req, HttpServletResponse res)
+        throws IOException {
+      String user = req.getParameter("username");
+      synchronized (userRequests) {
+        if (!userRequests.containsKey(user))
+          userRequests.put(user, new AtomicInteger(0));
+      }
+      userRequests.get(user).incrementAndGet();
+      if (user.equals("broken")) {
+        res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        return;
+      }
+      List<String> tokens = new ArrayList<String>();
+      if (user.equals("user1") || user.equals("user2") || user.equals("user3"))
+        tokens.add("token1");
+      if (user.equals("user2") || user.equals("user3"))
+        tokens.add("token2");
+      if (user.equals("user3"))
+        tokens.add("token3");
+      String etag = "\"" + tokens.hashCode() + "\"";
+      res.setHeader("ETag", etag);
+      if (etag.equals(req.getHeader("If-None-Match"))) {
+        res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        notModifiedResponses.incrementAndGet();
+        return;
+      }
+      res.setStatus(HttpServletResponse.SC_OK);
+      String acceptEncoding = req.getHeader("Accept-Encoding");
+      String accept = req.getHeader("Accept");
+      boolean binary = accept != null && accept.contains(BinaryTokenFormat.CONTENT_TYPE);
+      res.setContentType(binary ? BinaryTokenFormat.CONTENT_TYPE : "text/plain; charset=utf-8");
+      OutputStream os = res.getOutputStream();
+      if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+        res.setHeader("Content-Encoding", "gzip");
+        os = new GZIPOutputStream(os);
+        compressedResponses.incrementAndGet();
+      }
+      if (binary) {
+        BinaryTokenFormat.write(tokens, os);
+        binaryResponses.incrementAndGet();
+      } else {
+        for (String token : tokens)
+          os.write(("TOKEN:" + token + "\n").getBytes("UTF-8"));
+      }
+      os.close();
+    }
+  }
+
+  // Same as UserACLServlet, but takes two seconds to answer
+  public static class SlowUserACLServlet extends UserACLServlet {
+    @Override
+    public void service(HttpServletRequest req, HttpServletResponse res)
+        throws IOException {
+      try {
+        Thread.sleep(2000L);
+      } catch (InterruptedException e) {
+        return;
+      }
+      super.service(req, res);
+    }
+  }
+}
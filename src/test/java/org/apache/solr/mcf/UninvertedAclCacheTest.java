@@ -0,0 +1,113 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.solr.mcf;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+public class UninvertedAclCacheTest extends LuceneTestCase {
+
+  static Directory buildIndex(String... acls) throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(TEST_VERSION_CURRENT, new WhitespaceAnalyzer(TEST_VERSION_CURRENT)));
+    for (String acl : acls) {
+      Document doc = new Document();
+      doc.add(new Field("id", "doc", Field.Store.NO, Field.Index.NOT_ANALYZED));
+      if (acl != null) {
+        for (String token : acl.split(" "))
+          doc.add(new Field("allow_token_document", token, Field.Store.NO, Field.Index.NOT_ANALYZED));
+      }
+      writer.addDocument(doc);
+    }
+    writer.close();
+    return dir;
+  }
+
+  @Test
+  public void testUninvert() throws Exception {
+    Directory dir = buildIndex("token1 token2", null, "token2", "token3 token1");
+    IndexReader reader = IndexReader.open(dir);
+    try {
+      UninvertedAclCache.UninvertedField field = new UninvertedAclCache.UninvertedField(reader, "allow_token_document");
+      assertEquals(3, field.getTermCount());
+      int token1 = field.getOrd("token1");
+      int token2 = field.getOrd("token2");
+      int token3 = field.getOrd("token3");
+      assertEquals(-1, field.getOrd("token4"));
+      assertTrue(field.has(0, token1));
+      assertTrue(field.has(0, token2));
+      assertFalse(field.has(0, token3));
+      assertFalse(field.has(1, token1));
+      assertFalse(field.has(1, token2));
+      assertTrue(field.has(2, token2));
+      assertFalse(field.has(2, token1));
+      assertTrue(field.has(3, token1));
+      assertTrue(field.has(3, token3));
+      assertFalse(field.has(3, -1));
+      // A field the index does not have uninverts to nothing
+      UninvertedAclCache.UninvertedField missing = new UninvertedAclCache.UninvertedField(reader, "deny_token_document");
+      assertEquals(0, missing.getTermCount());
+      assertFalse(missing.has(0, missing.getOrd("token1")));
+    } finally {
+      reader.close();
+      dir.close();
+    }
+  }
+
+  @Test
+  public void testMemoryBound() throws Exception {
+    Directory dir = buildIndex("token1 token2", "token2", "token3");
+    IndexReader reader = IndexReader.open(dir);
+    try {
+      IndexReader segment = reader.getSequentialSubReaders()[0];
+      long fieldBytes = new UninvertedAclCache.UninvertedField(segment, "allow_token_document").ramBytesUsed();
+      long idBytes = new UninvertedAclCache.UninvertedField(segment, "id").ramBytesUsed();
+      // Room for one field, but not both
+      UninvertedAclCache cache = new UninvertedAclCache(Math.max(fieldBytes, idBytes));
+      UninvertedAclCache.UninvertedField field = cache.getField(segment, "allow_token_document");
+      assertSame(field, cache.getField(segment, "allow_token_document"));
+      assertEquals(1, cache.size());
+      cache.getField(segment, "id");
+      assertEquals(1, cache.size());
+      // The first field was evicted, so it is uninverted again
+      assertNotSame(field, cache.getField(segment, "allow_token_document"));
+      NamedList<Object> stats = new NamedList<Object>();
+      cache.addStatistics(stats);
+      assertEquals(1, stats.get("uninvertedFields"));
+      assertEquals(fieldBytes, stats.get("uninvertedBytes"));
+      assertEquals(2L, stats.get("uninvertedEvictions"));
+      assertEquals(3L, stats.get("uninversions"));
+      // A field too large for the whole budget is built, but not kept
+      UninvertedAclCache tiny = new UninvertedAclCache(1L);
+      assertNotNull(tiny.getField(segment, "allow_token_document"));
+      assertEquals(0, tiny.size());
+    } finally {
+      reader.close();
+      dir.close();
+    }
+  }
+}